@@ -1,7 +1,9 @@
 package com.bergerkiller.bukkit.lightcleaner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 
@@ -27,22 +29,37 @@ import com.bergerkiller.bukkit.common.bases.IntVector3;
 import com.bergerkiller.bukkit.common.config.FileConfiguration;
 import com.bergerkiller.bukkit.common.events.MultiBlockChangeEvent;
 import com.bergerkiller.bukkit.common.permissions.NoPermissionException;
+import com.bergerkiller.bukkit.common.utils.CommonUtil;
 import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.bergerkiller.bukkit.common.utils.ParseUtil;
 import com.bergerkiller.bukkit.common.utils.WorldUtil;
 import com.bergerkiller.bukkit.common.wrappers.BlockData;
 import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.lightcleaner.lighting.LightingAutoClean;
+import com.bergerkiller.bukkit.lightcleaner.lighting.LightingBorderSpill;
 import com.bergerkiller.bukkit.lightcleaner.lighting.LightingCube;
+import com.bergerkiller.bukkit.lightcleaner.lighting.LightingFaultScanner;
+import com.bergerkiller.bukkit.lightcleaner.lighting.LightingMicroRelight;
 import com.bergerkiller.bukkit.lightcleaner.lighting.LightingService;
 import com.bergerkiller.bukkit.lightcleaner.lighting.LightingService.ScheduleArguments;
+import com.bergerkiller.bukkit.lightcleaner.util.ChunkAvailabilityMap;
+import com.bergerkiller.bukkit.lightcleaner.util.CleanStateLedger;
 import com.bergerkiller.bukkit.lightcleaner.util.DelayClosedForcedChunk;
+import com.bergerkiller.bukkit.lightcleaner.util.LightAuditReport;
+import com.bergerkiller.bukkit.lightcleaner.util.RegionChunkIndex;
 
 public class LightCleaner extends PluginBase {
     public static LightCleaner plugin;
     public static long minFreeMemory = 100 * 1024 * 1024;
     public static boolean autoCleanEnabled = false;
+    public static int autoCleanQuietTicks = 80;
+    public static int autoCleanRegionCap = 256;
+    public static int autoCleanMaxBacklog = 20000;
     public static int asyncLoadConcurrency = 50;
     public static boolean skipWorldEdge = true;
+    public static int slabHeight = 1024;
+    public static boolean offHeapCubeStorage = false;
+    public static boolean borderSpill = false;
     public static final int WORLD_EDGE = 2;
     public static Set<String> unsavedWorldNames = new HashSet<String>();
 
@@ -107,6 +124,18 @@ public class LightCleaner extends PluginBase {
         config.addHeader("autoCleanEnabled", "This will eliminate dark shadows during world generation");
         autoCleanEnabled = config.get("autoCleanEnabled", false);
 
+        config.setHeader("autoCleanQuietTicks", "\nHow many ticks no new chunks must be generated in a region, before it is cleaned automatically");
+        autoCleanQuietTicks = config.get("autoCleanQuietTicks", 80);
+
+        config.setHeader("autoCleanRegionCap", "\nHow many newly generated chunks of a region are cleaned automatically at most in one go");
+        config.addHeader("autoCleanRegionCap", "When this many chunks are generated, the region is cleaned without waiting for it to be quiet");
+        autoCleanRegionCap = config.get("autoCleanRegionCap", 256);
+
+        config.setHeader("autoCleanMaxBacklog", "\nThe number of chunks waiting to be cleaned above which no new automatic cleaning is scheduled");
+        config.addHeader("autoCleanMaxBacklog", "Regions with newly generated chunks are then remembered and cleaned entirely later");
+        config.addHeader("autoCleanMaxBacklog", "Set to 0 to disable this limit");
+        autoCleanMaxBacklog = config.get("autoCleanMaxBacklog", 20000);
+
         config.setHeader("autoCleanWorldEditEnabled", "\nSets whether lighting is cleaned up when players perform WorldEdit operations");
         config.addHeader("autoCleanWorldEditEnabled", "This is primarily useful for FastAsyncWorldEdit");
         boolean autoCleanWorldeditEnabled = config.get("autoCleanWorldEditEnabled", false);
@@ -115,6 +144,22 @@ public class LightCleaner extends PluginBase {
         config.addHeader("asyncLoadConcurrency", "Setting this value too high may overflow the internal queues. Too low and it will idle too much.");
         asyncLoadConcurrency = config.get("asyncLoadConcurrency", 50);
 
+        config.setHeader("slabHeight", "\nThe maximum height (in blocks) of chunks that is cleaned at once");
+        config.addHeader("slabHeight", "Worlds taller than this are cleaned in vertical slabs of this height, top to bottom");
+        config.addHeader("slabHeight", "This limits the memory used while cleaning very tall worlds");
+        slabHeight = config.get("slabHeight", 1024);
+
+        config.setHeader("offHeapCubeStorage", "\nWhether the block data of chunks being cleaned is stored outside of the Java heap");
+        config.addHeader("offHeapCubeStorage", "This data is freed all at once when a batch of chunks is done, which reduces garbage collection");
+        config.addHeader("offHeapCubeStorage", "The server must allow enough direct memory (-XX:MaxDirectMemorySize) for this");
+        offHeapCubeStorage = config.get("offHeapCubeStorage", false);
+
+        config.setHeader("borderSpill", "\nWhether the light at the borders of batches is stored in a scratch file when cleaning large areas");
+        config.addHeader("borderSpill", "Batches next to it then read this light, instead of loading and cleaning those chunks again");
+        config.addHeader("borderSpill", "The file (" + LightingBorderSpill.FILE_NAME + ") is memory-mapped, and deleted once cleaning is done");
+        config.addHeader("borderSpill", "It never grows beyond " + (LightingBorderSpill.MAX_FILE_SIZE >> 20) + " MB, after which chunks at the borders are loaded again");
+        borderSpill = config.get("borderSpill", false);
+
         config.setHeader("unsavedWorldNames", "\nA list of world names that have saving disabled");
         config.addHeader("unsavedWorldNames", "Light Cleaner will not save these worlds to free up memory,");
         config.addHeader("unsavedWorldNames", "and will not write persistent PendingLight.dat entries for these worlds");
@@ -164,10 +209,15 @@ public class LightCleaner extends PluginBase {
 
     @Override
     public void disable() {        
+        LightingAutoClean.flushAll();
         LightingService.abort();
 
         closeForcedChunksTask.stop();
         DelayClosedForcedChunk.clear();
+        RegionChunkIndex.unloadAll();
+        CleanStateLedger.unloadAll();
+        LightAuditReport.unloadAll();
+        ChunkAvailabilityMap.clear();
 
         plugin = null;
     }
@@ -224,6 +274,42 @@ public class LightCleaner extends PluginBase {
                         LightingCube.DEBUG_BLOCK.z + blockInfoAppend);
                 return true;
             }
+            if (subCmd.equalsIgnoreCase("block")) {
+                // cleanlight block [radius]
+                Permission.CLEAN_BLOCK.handle(sender);
+                if (!(sender instanceof Player)) {
+                    sender.sendMessage(ChatColor.RED + "Only for players!");
+                    return true;
+                }
+                final Block target = WorldUtil.rayTraceBlock(((Player) sender).getEyeLocation(), 128);
+                if (target == null) {
+                    sender.sendMessage(ChatColor.RED + "You are not looking at a block");
+                    return true;
+                }
+
+                // Relight all blocks within the radius around the target block
+                int radius = MathUtil.clamp((args.length >= 2) ? ParseUtil.parseInt(args[1], 1) : 1, 0, 8);
+                List<IntVector3> blocks = new ArrayList<IntVector3>();
+                for (int dx = -radius; dx <= radius; dx++) {
+                    for (int dy = -radius; dy <= radius; dy++) {
+                        for (int dz = -radius; dz <= radius; dz++) {
+                            blocks.add(new IntVector3(target.getX() + dx, target.getY() + dy, target.getZ() + dz));
+                        }
+                    }
+                }
+                final long startTime = System.currentTimeMillis();
+                LightingMicroRelight.relight(target.getWorld(), blocks).whenCompleteAsync((numChanged, t) -> {
+                    if (t != null) {
+                        sender.sendMessage(ChatColor.RED + "Failed to relight blocks, check the server log");
+                        getLogger().log(Level.SEVERE, "Failed to relight blocks around " +
+                                target.getX() + "/" + target.getY() + "/" + target.getZ(), t);
+                    } else {
+                        sender.sendMessage(ChatColor.GREEN + "Relit the blocks around " + target.getX() + "/" + target.getY() + "/" + target.getZ() +
+                                ", " + numChanged + " sections changed " + ChatColor.WHITE + "(Took " + (System.currentTimeMillis() - startTime) + " ms)");
+                    }
+                }, CommonUtil.getPluginExecutor(this));
+                return true;
+            }
             if (subCmd.equalsIgnoreCase("abort")) {
                 // cleanlight abort
                 Permission.ABORT.handle(sender);
@@ -287,6 +373,104 @@ public class LightCleaner extends PluginBase {
                 } else {
                     sender.sendMessage(ChatColor.GREEN + "No lighting is being processed at this time.");
                 }
+                int held = DelayClosedForcedChunk.getHeldCount();
+                if (held > 0) {
+                    sender.sendMessage(ChatColor.YELLOW + "Keeping " + ChatColor.RED + held + ChatColor.YELLOW +
+                            " processed chunks loaded for a little while");
+                }
+                return true;
+            }
+            if (subCmd.equalsIgnoreCase("scan")) {
+                // cleanlight scan [world_name] [all]
+                Permission.CLEAN_WORLD.handle(sender);
+                World world = null;
+                int samplesPerSection = LightingFaultScanner.DEFAULT_SAMPLES_PER_SECTION;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equalsIgnoreCase("all")) {
+                        samplesPerSection = 0;
+                    } else if ((world = Bukkit.getWorld(args[i])) == null) {
+                        sender.sendMessage(ChatColor.RED + "World not found: " + args[i]);
+                        return true;
+                    }
+                }
+                if (world == null) {
+                    if (sender instanceof Entity) {
+                        world = ((Entity) sender).getWorld();
+                    } else if (sender instanceof BlockCommandSender) {
+                        world = ((BlockCommandSender) sender).getBlock().getWorld();
+                    } else {
+                        sender.sendMessage("As a console you have to specify the world to scan!");
+                        return true;
+                    }
+                }
+
+                sender.sendMessage(ChatColor.YELLOW + "Scanning the loaded chunks of world " + world.getName() +
+                        " for faulty light" + ((samplesPerSection <= 0) ? " (all blocks)" : "") + "...");
+                final String worldName = world.getName();
+                LightingFaultScanner.scan(world, samplesPerSection).whenCompleteAsync((report, t) -> {
+                    if (t != null) {
+                        sender.sendMessage(ChatColor.RED + "Failed to scan the light of world " + worldName);
+                        getLogger().log(Level.SEVERE, "Failed to scan the light of world " + worldName, t);
+                    } else {
+                        sender.sendMessage(ChatColor.GREEN + "Found " + report.getFaultyCount() + " of " +
+                                report.getAuditedCount() + " chunks with faulty light");
+                        if (report.getFaultyCount() > 0) {
+                            sender.sendMessage(ChatColor.YELLOW + "To clean them, use /cleanlight faulty " + worldName);
+                        }
+                    }
+                }, CommonUtil.getPluginExecutor(this));
+                return true;
+            }
+            if (subCmd.equalsIgnoreCase("faulty")) {
+                // cleanlight faulty [world_name]
+                Permission.CLEAN_WORLD.handle(sender);
+                World world;
+                if (args.length >= 2) {
+                    world = Bukkit.getWorld(args[1]);
+                    if (world == null) {
+                        sender.sendMessage(ChatColor.RED + "World not found: " + args[1]);
+                        return true;
+                    }
+                } else if (sender instanceof Entity) {
+                    world = ((Entity) sender).getWorld();
+                } else if (sender instanceof BlockCommandSender) {
+                    world = ((BlockCommandSender) sender).getBlock().getWorld();
+                } else {
+                    sender.sendMessage("As a console you have to specify the world to fix!");
+                    return true;
+                }
+
+                // Clean only the chunks the last audit or scan of the world found to be faulty
+                LongHashSet faultyChunks = LightAuditReport.getAllFaultyChunks(world);
+                if (faultyChunks.isEmpty()) {
+                    sender.sendMessage(ChatColor.YELLOW + "No faulty chunks were found in world " + world.getName() +
+                            ", use /cleanlight scan " + world.getName() + " or /cleanlight world " + world.getName() +
+                            " audit to find them");
+                    return true;
+                }
+                sender.sendMessage(ChatColor.GREEN + "Cleaning " + faultyChunks.size() + " faulty chunks found by auditing and scanning world " +
+                        world.getName());
+
+                // Clean the neighbours of every faulty chunk as well, like auto-cleaning does
+                // Otherwise the light at the edges of the faulty chunks is applied too dark
+                LongHashSet chunks = new LongHashSet(faultyChunks.size() * 9);
+                LongHashSet.LongIterator iter = faultyChunks.longIterator();
+                while (iter.hasNext()) {
+                    long key = iter.next();
+                    int cx = MathUtil.longHashMsw(key);
+                    int cz = MathUtil.longHashLsw(key);
+                    for (int dx = -1; dx <= 1; dx++) {
+                        for (int dz = -1; dz <= 1; dz++) {
+                            chunks.add(cx + dx, cz + dz);
+                        }
+                    }
+                }
+
+                LightingService.ScheduleArguments scheduleArgs = new LightingService.ScheduleArguments();
+                scheduleArgs.setWorld(world);
+                scheduleArgs.setChunks(chunks);
+                LightingService.schedule(scheduleArgs);
+                LightingService.addRecipient(sender);
                 return true;
             }
             if (subCmd.equalsIgnoreCase("at")) {
@@ -11,7 +11,10 @@ public class Localization extends LocalizationEnum {
     public static final Localization NO_PERMISSION = new Localization("lightcleaner.noperm", ChatColor.RED + "You don't have permission to use this!");
     public static final Localization PLAYERS_ONLY = new Localization("lightcleaner.playeronly", "This command is only for players!");
     public static final Localization COMPLETED = new Localization("lightcleaner.completed", ChatColor.GREEN + "All lighting operations are completed. " + ChatColor.WHITE + "(Took %0%)");
+    public static final Localization COMPLETED_SKIPPED = new Localization("lightcleaner.completed.skipped", ChatColor.WHITE + "Cleaned %0% chunks, skipped %1% chunks unchanged since they were last cleaned. " + ChatColor.GRAY + "(Use 'force' to clean them anyway)");
     public static final Localization AREA_CORRUPT = new Localization("lightcleaner.area.corrupt", ChatColor.YELLOW + "A %0% chunk area around you is currently being corrupted, introducing lighting issues...");
+    public static final Localization AREA_AUDIT = new Localization("lightcleaner.area.audit", ChatColor.GREEN + "A %0% chunk area around you is currently being audited for lighting issues...");
+    public static final Localization AREA_SEAMS = new Localization("lightcleaner.area.seams", ChatColor.GREEN + "A %0% chunk area around you is currently having the light at chunk borders fixed...");
     public static final Localization AREA_FIX = new Localization("lightcleaner.area.fix", ChatColor.GREEN + "A %0% chunk area around you is currently being fixed from lighting issues...");
 
     private Localization(String name, String defValue) {
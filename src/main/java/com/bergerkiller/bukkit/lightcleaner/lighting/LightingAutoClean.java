@@ -1,19 +1,37 @@
 package com.bergerkiller.bukkit.lightcleaner.lighting;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.bukkit.World;
 
 import com.bergerkiller.bukkit.common.Task;
+import com.bergerkiller.bukkit.common.utils.CommonUtil;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.bergerkiller.bukkit.common.utils.WorldUtil;
 import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
 import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+import com.bergerkiller.bukkit.lightcleaner.util.ChunkAvailabilityMap;
 
 /**
- * Handles the automatic cleanup of chunk lighting when chunks are generated
+ * Handles the automatic cleanup of chunk lighting when chunks are generated.<br>
+ * <br>
+ * Chunks to clean are queued per region of 32x32 chunks, without locking, so chunks can
+ * be queued from any thread. A region is scheduled for cleaning once no new chunks were
+ * queued in it for a while, or when many chunks are queued in it. While the lighting service
+ * has too many chunks left to clean, regions are not scheduled, and newly queued chunks only
+ * mark their region to be cleaned entirely later.
  */
 public class LightingAutoClean {
-    private static HashMap<World, LongHashSet> queues = new HashMap<World, LongHashSet>();
+    private static final int FLUSH_INTERVAL = 5; // ticks
+    private static final ConcurrentHashMap<World, WorldQueue> queues = new ConcurrentHashMap<World, WorldQueue>();
+    private static final AtomicBoolean autoCleanTaskStarted = new AtomicBoolean(false);
+    private static volatile boolean backlogged = false;
     private static Task autoCleanTask = null;
 
     /**
@@ -28,76 +46,228 @@ public class LightingAutoClean {
         if (!LightCleaner.autoCleanEnabled) {
             return;
         }
+        // The chunk that was generated exists now, check all chunks around its neighbours
+        ChunkAvailabilityMap available = ChunkAvailabilityMap.get(world);
+        available.markAvailable(chunkX, chunkZ);
         for (int dx = -1; dx <= 1; dx++) {
             for (int dz = -1; dz <= 1; dz++) {
                 if (dx == 0 && dz == 0) {
                     continue;
                 }
-                if (!WorldUtil.isChunkAvailable(world, chunkX + dx, chunkZ + dz)) {
-                    continue;
-                }
 
-                // Check that all chunks surrounding this chunk are all available
-                boolean allNeighboursLoaded = true;
-                for (int dx2 = -1; dx2 <= 1 && allNeighboursLoaded; dx2++) {
-                    for (int dz2 = -1; dz2 <= 1 && allNeighboursLoaded; dz2++) {
-                        if (dx2 == 0 && dz2 == 0) {
-                            continue; // ignore self
-                        }
-                        if (dx2 == -dx && dz2 == -dz) {
-                            continue; // ignore the original generated chunk
-                        }
-                        allNeighboursLoaded &= WorldUtil.isChunkAvailable(world, chunkX + dx + dx2, chunkZ + dz + dz2);
-                    }
-                }
-
-                // If all neighbours are available, schedule it for fixing
-                if (allNeighboursLoaded) {
+                // If the neighbour and all chunks surrounding it are available, schedule it for fixing
+                if (available.containsArea(chunkX + dx, chunkZ + dz, 1)) {
                     schedule(world, chunkX + dx, chunkZ + dz);
                 }
             }
         }
     }
 
-    private static synchronized void processAutoClean() {
-        while (queues.size() > 0) {
-            World world = queues.keySet().iterator().next();
-            LongHashSet chunks = queues.remove(world);
-            LightingService.schedule(world, chunks);
+    private static void processAutoClean() {
+        // While too many chunks are waiting to be cleaned, keep everything queued
+        // Only the running count of queued chunks is checked, which is cheap to read every tick
+        backlogged = (LightCleaner.autoCleanMaxBacklog > 0 &&
+                LightingService.getQueuedChunkCount() > LightCleaner.autoCleanMaxBacklog);
+        if (backlogged) {
+            return;
+        }
+
+        int now = CommonUtil.getServerTicks();
+        for (WorldQueue queue : queues.values()) {
+            queue.flush(now, false);
         }
     }
 
     public static void schedule(World world, int chunkX, int chunkZ) {
-        schedule(world, chunkX, chunkZ, 80);
+        schedule(world, chunkX, chunkZ, LightCleaner.autoCleanQuietTicks);
     }
 
-    public static synchronized void schedule(World world, int chunkX, int chunkZ, int tickDelay) {
-        LongHashSet queue = queues.get(world);
-        if (queue == null) {
-            queue = new LongHashSet(9);
-            queues.put(world, queue);
-        }
+    /**
+     * Queues a chunk and its neighbours for cleaning. Can be called from any thread.
+     *
+     * @param world the chunk is in
+     * @param chunkX coordinate
+     * @param chunkZ coordinate
+     * @param tickDelay Number of ticks no new chunks must be queued in the region of the chunk,
+     *                  before the region is cleaned
+     */
+    public static void schedule(World world, int chunkX, int chunkZ, int tickDelay) {
+        WorldQueue queue = queues.computeIfAbsent(world, WorldQueue::new);
 
         // Queue this chunk, and all its neighbours
         for (int dx = -1; dx <= 1; dx++) {
             for (int dz = -1; dz <= 1; dz++) {
-                queue.add(chunkX + dx, chunkZ + dz);
+                queue.add(chunkX + dx, chunkZ + dz, tickDelay);
             }
         }
 
         // Initialize clean task if it hasn't been yet
-        if (autoCleanTask == null) {
+        if (autoCleanTaskStarted.compareAndSet(false, true)) {
             autoCleanTask = new Task(LightCleaner.plugin) {
                 @Override
                 public void run() {
                     processAutoClean();
                 }
-            };
+            }.start(FLUSH_INTERVAL, FLUSH_INTERVAL);
+        }
+    }
+
+    /**
+     * Forgets all chunks queued for a world, for when the world unloads
+     *
+     * @param world
+     */
+    public static void clearWorld(World world) {
+        queues.remove(world);
+    }
+
+    /**
+     * Stops queueing and schedules all queued chunks and regions right away.
+     * Called when the plugin disables, before pending lighting tasks are saved.
+     */
+    public static void flushAll() {
+        if (autoCleanTaskStarted.compareAndSet(true, false)) {
+            autoCleanTask.stop();
+            autoCleanTask = null;
+        }
+        int now = CommonUtil.getServerTicks();
+        for (WorldQueue queue : queues.values()) {
+            queue.flush(now, true);
+        }
+        queues.clear();
+        backlogged = false;
+    }
+
+    /**
+     * All the regions of a world with chunks queued for cleaning
+     */
+    private static final class WorldQueue {
+        public final World world;
+        private final ConcurrentHashMap<Long, RegionQueue> regions = new ConcurrentHashMap<Long, RegionQueue>();
+        private final Set<Long> deferredRegions = ConcurrentHashMap.newKeySet();
+
+        public WorldQueue(World world) {
+            this.world = world;
+        }
+
+        public void add(int cx, int cz, int tickDelay) {
+            int rx = WorldUtil.chunkToRegionIndex(cx);
+            int rz = WorldUtil.chunkToRegionIndex(cz);
+            Long key = MathUtil.longHashToLong(rx, rz);
+            if (backlogged) {
+                this.deferredRegions.add(key);
+                return;
+            }
+
+            // Retry when the region was being scheduled at the same time
+            int now = CommonUtil.getServerTicks();
+            while (!this.regions.computeIfAbsent(key, k -> new RegionQueue(rx, rz, now)).add(cx, cz, tickDelay, now));
+        }
+
+        /**
+         * Schedules the chunks of regions that are ready to be cleaned, and
+         * one region that was deferred
+         *
+         * @param now Current server tick
+         * @param all Whether to schedule all regions, ready or not
+         */
+        public void flush(int now, boolean all) {
+            for (Map.Entry<Long, RegionQueue> entry : this.regions.entrySet()) {
+                RegionQueue region = entry.getValue();
+                if ((all || region.isReady(now)) && this.regions.remove(entry.getKey(), region)) {
+                    LongHashSet chunks = region.takeChunks();
+                    if (!chunks.isEmpty()) {
+                        LightingService.schedule(this.world, chunks);
+                    }
+                }
+            }
+
+            Iterator<Long> iter = this.deferredRegions.iterator();
+            while (iter.hasNext()) {
+                long key = iter.next().longValue();
+                iter.remove();
+
+                // Clean the region and the chunks bordering it
+                int minCx = WorldUtil.regionToChunkIndex(MathUtil.longHashMsw(key));
+                int minCz = WorldUtil.regionToChunkIndex(MathUtil.longHashLsw(key));
+                LightingService.ScheduleArguments args = new LightingService.ScheduleArguments();
+                args.setWorld(this.world);
+                args.setChunkFromTo(minCx - 1, minCz - 1, minCx + 32, minCz + 32);
+                LightingService.schedule(args);
+                if (!all) {
+                    break; // One region at a time to avoid filling the backlog right away
+                }
+            }
+        }
+    }
+
+    /**
+     * The chunks of a single region queued for cleaning, stored as a bitmap
+     */
+    static final class RegionQueue {
+        private final int rx, rz;
+        private final AtomicLongArray chunks = new AtomicLongArray(16);
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile int lastChangedTick;
+        private volatile int tickDelay = 0;
+        private volatile boolean taken = false;
+
+        public RegionQueue(int rx, int rz, int now) {
+            this.rx = rx;
+            this.rz = rz;
+            this.lastChangedTick = now;
         }
 
-        // Postpone the tick task while there are less than 100 chunks in the queue
-        if (queue.size() < 100) {
-            autoCleanTask.stop().start(tickDelay);
+        /**
+         * Adds a chunk of this region
+         *
+         * @param cx Chunk x-coordinate
+         * @param cz Chunk z-coordinate
+         * @param tickDelay Number of ticks no new chunks must be added before the region is ready
+         * @param now Current server tick
+         * @return False if the chunks of this region were taken already, and the chunk
+         *         must be added to a new region queue
+         */
+        public boolean add(int cx, int cz, int tickDelay, int now) {
+            int index = ((cz & 0x1F) << 5) | (cx & 0x1F);
+            long bit = 1L << (index & 0x3F);
+            if ((this.chunks.getAndAccumulate(index >> 6, bit, (a, b) -> a | b) & bit) == 0L) {
+                this.count.incrementAndGet();
+                this.tickDelay = tickDelay;
+                this.lastChangedTick = now;
+            }
+            return !this.taken;
+        }
+
+        /**
+         * Gets whether no chunks were added for long enough, or enough chunks were added,
+         * for this region to be cleaned
+         *
+         * @param now Current server tick
+         * @return True if ready
+         */
+        public boolean isReady(int now) {
+            return this.count.get() >= LightCleaner.autoCleanRegionCap ||
+                   (now - this.lastChangedTick) >= this.tickDelay;
+        }
+
+        /**
+         * Takes all chunks added to this region. Chunks added afterwards are refused.
+         *
+         * @return chunks
+         */
+        public LongHashSet takeChunks() {
+            this.taken = true;
+            LongHashSet result = new LongHashSet(this.count.get());
+            for (int w = 0; w < 16; w++) {
+                long bits = this.chunks.getAndSet(w, 0L);
+                while (bits != 0L) {
+                    int index = (w << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1L;
+                    result.add((this.rx << 5) | (index & 0x1F), (this.rz << 5) | (index >> 5));
+                }
+            }
+            return result;
         }
     }
 }
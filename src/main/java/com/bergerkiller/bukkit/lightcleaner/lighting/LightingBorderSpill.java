@@ -0,0 +1,332 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+import com.bergerkiller.bukkit.lightcleaner.util.BlockFaceSetSection;
+import com.bergerkiller.bukkit.lightcleaner.util.LightingUtil;
+import com.bergerkiller.generated.net.minecraft.world.level.chunk.NibbleArrayHandle;
+
+/**
+ * Scratch file storing the light at the borders of chunks cleaned by a batch. When a large
+ * area is cleaned one region at a time, the chunks at the edges of a batch are loaded again
+ * by the batches next to it, as the ring of chunks around them. Instead, the light and opaque
+ * faces of the blocks at the four sides of those chunks are read from this file, and are used
+ * as a fixed boundary that is not spread into or applied.<br>
+ * <br>
+ * The file is memory-mapped, so this data is not stored on the Java heap.
+ * It is deleted when closed. A chunk is forgotten once the chunks next to it were
+ * cleaned by the batches reading it, and its space in the file is reused. The file
+ * never grows beyond {@link #MAX_FILE_SIZE}, after which no more chunks are stored.
+ */
+public class LightingBorderSpill {
+    public static final String FILE_NAME = "BorderSpill.tmp";
+    public static final long MAX_FILE_SIZE = 512L << 20;
+    private static final int SEGMENT_SIZE = 16 << 20;
+    private static final int FACE_SIZE = 2 * 256; // Light and opaque faces of 16x16 blocks
+    private static final int CUBE_SIZE = 4 + (4 * FACE_SIZE);
+    private static final int HEADER_SIZE = 5;
+    private final World world;
+    private final File file;
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final LongHashMap<Record> records = new LongHashMap<Record>();
+    private final Map<Integer, ArrayDeque<Long>> freeRecords = new HashMap<Integer, ArrayDeque<Long>>();
+    private int writePosition = 0;
+    private boolean full = false;
+    private boolean closed = false;
+
+    private LightingBorderSpill(World world, File file) throws IOException {
+        this.world = world;
+        this.file = file;
+        this.access = new RandomAccessFile(file, "rw");
+        this.access.setLength(0);
+        this.channel = this.access.getChannel();
+    }
+
+    /**
+     * Gets the world of the chunks stored in this border spill
+     *
+     * @return world
+     */
+    public World getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Gets whether the light at the borders of a chunk is stored
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if stored
+     */
+    public synchronized boolean contains(int cx, int cz) {
+        return this.records.contains(cx, cz);
+    }
+
+    /**
+     * Gets the number of chunks whose light is stored
+     *
+     * @return chunk count
+     */
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    /**
+     * Stores the light and opaque faces at the four sides of all cubes of a lighting chunk.
+     * The light of the chunk must be final, and its block data must not have been released.
+     * The chunk is kept until all neighbouring chunks that were not cleaned yet are
+     * cleaned by batches reading it.
+     *
+     * @param chunk Lighting chunk to store
+     * @return True if stored, False if this failed, the chunk is too large or the file is full
+     */
+    public synchronized boolean write(LightingChunk chunk) {
+        List<LightingCube> cubes = chunk.getSections();
+        int size = HEADER_SIZE + cubes.size() * CUBE_SIZE;
+        if (this.closed || size > SEGMENT_SIZE) {
+            return false;
+        }
+
+        // Sides of the chunk next to chunks that still have to be cleaned
+        int pendingSides = 0;
+        for (int side = 0; side < 4; side++) {
+            LightingChunk neigh = chunk.neighbors.get(getSideX(side), getSideZ(side));
+            if (neigh != null && !neigh.neighbors.hasAll()) {
+                pendingSides |= (1 << side);
+            }
+        }
+        if (pendingSides == 0) {
+            return false;
+        }
+
+        // Replace a record stored before, re-using its space if it has the same size
+        Record old = this.records.remove(chunk.chunkX, chunk.chunkZ);
+        if (old != null) {
+            this.free(old);
+        }
+
+        long offset = this.allocate(size);
+        if (offset == -1L) {
+            return false;
+        }
+
+        ByteBuffer buffer = this.segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+        buffer.position((int) (offset % SEGMENT_SIZE));
+        buffer.put((byte) (chunk.hasSkyLight ? 1 : 0));
+        buffer.putInt(cubes.size());
+        for (LightingCube cube : cubes) {
+            buffer.putInt(cube.cy);
+            for (int face = 0; face < 4; face++) {
+                for (int i = 0; i < 256; i++) {
+                    int x = getFaceX(face, i & 0xF);
+                    int y = i >> 4;
+                    int z = getFaceZ(face, i & 0xF);
+                    int skyLight = (cube.skyLight == null) ? 0 : cube.skyLight.get(x, y, z);
+                    buffer.put((byte) ((skyLight << 4) | cube.blockLight.get(x, y, z)));
+                    buffer.put((byte) cube.getOpaqueFaces(x, y, z).mask());
+                }
+            }
+        }
+
+        this.records.put(chunk.chunkX, chunk.chunkZ, new Record(offset, size, pendingSides));
+        return true;
+    }
+
+    /**
+     * Finds room in the file for a record. Space freed by records of the same size is
+     * used first. Otherwise the record is added at the end, growing the file if needed.
+     *
+     * @param size Size of the record in bytes
+     * @return offset of the record in the file, or -1 if there is no room
+     */
+    private long allocate(int size) {
+        ArrayDeque<Long> free = this.freeRecords.get(Integer.valueOf(size));
+        if (free != null && !free.isEmpty()) {
+            return free.poll().longValue();
+        }
+
+        // Records never cross the end of a segment
+        if (this.segments.isEmpty() || (this.writePosition + size) > SEGMENT_SIZE) {
+            long offset = (long) this.segments.size() * SEGMENT_SIZE;
+            if ((offset + SEGMENT_SIZE) > MAX_FILE_SIZE) {
+                if (!this.full) {
+                    this.full = true;
+                    LightCleaner.plugin.log(Level.WARNING, FILE_NAME + " reached its maximum size of " + (MAX_FILE_SIZE >> 20) +
+                            " MB, the light at the borders of further batches is not stored");
+                }
+                return -1L;
+            }
+            try {
+                this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_SIZE));
+                this.writePosition = 0;
+            } catch (IOException ex) {
+                LightCleaner.plugin.log(Level.WARNING, "Failed to grow " + FILE_NAME + ": " + ex.getMessage());
+                return -1L;
+            }
+        }
+
+        long offset = (long) (this.segments.size() - 1) * SEGMENT_SIZE + this.writePosition;
+        this.writePosition += size;
+        return offset;
+    }
+
+    private void free(Record record) {
+        Integer key = Integer.valueOf(record.size);
+        ArrayDeque<Long> free = this.freeRecords.get(key);
+        if (free == null) {
+            free = new ArrayDeque<Long>();
+            this.freeRecords.put(key, free);
+        }
+        free.add(Long.valueOf(record.offset));
+    }
+
+    /**
+     * Reads the light at the borders of a chunk stored before, and fills the lighting
+     * chunk with it as a fixed boundary. See {@link LightingChunk#fillFixedBoundary(List, boolean)}.
+     * The neighbours of the lighting chunk must be known. Once all the chunks next to it
+     * that were not cleaned yet are cleaned by the batches reading it, the chunk is removed.
+     *
+     * @param chunk Lighting chunk to fill
+     * @return True if the chunk was stored and filled, False if not
+     */
+    public synchronized boolean read(LightingChunk chunk) {
+        Record record = this.records.get(chunk.chunkX, chunk.chunkZ);
+        if (record == null) {
+            return false;
+        }
+
+        ByteBuffer buffer = this.segments.get((int) (record.offset / SEGMENT_SIZE)).duplicate();
+        buffer.position((int) (record.offset % SEGMENT_SIZE));
+        boolean hasSkyLight = (buffer.get() != 0);
+        int count = buffer.getInt();
+        List<LightingCube> cubes = new ArrayList<LightingCube>(count);
+        for (int n = 0; n < count; n++) {
+            int cy = buffer.getInt();
+            NibbleArrayHandle skyLight = hasSkyLight ? NibbleArrayHandle.createNew() : null;
+            NibbleArrayHandle blockLight = NibbleArrayHandle.createNew();
+            BlockFaceSetSection opaqueFaces = new BlockFaceSetSection();
+            for (int face = 0; face < 4; face++) {
+                for (int i = 0; i < 256; i++) {
+                    int x = getFaceX(face, i & 0xF);
+                    int y = i >> 4;
+                    int z = getFaceZ(face, i & 0xF);
+                    int light = buffer.get() & 0xFF;
+                    if (skyLight != null) {
+                        skyLight.set(x, y, z, light >> 4);
+                    }
+                    blockLight.set(x, y, z, light & 0xF);
+                    opaqueFaces.set(x, y, z, BlockFaceSet.byMask(buffer.get() & 0xFF));
+                }
+            }
+            cubes.add(LightingCube.createBoundary(chunk, cy, skyLight, blockLight, opaqueFaces));
+        }
+        chunk.fillFixedBoundary(cubes, hasSkyLight);
+
+        // The sides next to chunks cleaned by the batch reading it are no longer needed
+        for (int side = 0; side < 4; side++) {
+            LightingChunk neigh = chunk.neighbors.get(getSideX(side), getSideZ(side));
+            if (neigh != null && neigh.neighbors.hasAll()) {
+                record.pendingSides &= ~(1 << side);
+            }
+        }
+        if (record.pendingSides == 0) {
+            this.records.remove(chunk.chunkX, chunk.chunkZ);
+            this.free(record);
+        }
+        return true;
+    }
+
+    /**
+     * Closes this border spill, and deletes the file. It can no longer be used afterwards.
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.records.clear();
+        this.freeRecords.clear();
+        for (MappedByteBuffer segment : this.segments) {
+            LightingUtil.freeDirectBuffer(segment);
+        }
+        this.segments.clear();
+        try {
+            this.access.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+        if (!this.file.delete() && this.file.exists()) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to delete " + FILE_NAME);
+        }
+    }
+
+    // Sides are -x, +x, -z and +z, in the same order as the faces
+    private static int getSideX(int side) {
+        return (side == 0) ? -1 : (side == 1) ? 1 : 0;
+    }
+
+    private static int getSideZ(int side) {
+        return (side == 2) ? -1 : (side == 3) ? 1 : 0;
+    }
+
+    // Faces are -x, +x, -z and +z. Along a face blocks are ordered by the other coordinate.
+    private static int getFaceX(int face, int along) {
+        return (face == 0) ? 0 : (face == 1) ? 15 : along;
+    }
+
+    private static int getFaceZ(int face, int along) {
+        return (face == 2) ? 0 : (face == 3) ? 15 : along;
+    }
+
+    /**
+     * Location and size of the light of a chunk in the file, and the sides of
+     * the chunk next to chunks that still have to be cleaned
+     */
+    private static final class Record {
+        public final long offset;
+        public final int size;
+        public int pendingSides;
+
+        public Record(long offset, int size, int pendingSides) {
+            this.offset = offset;
+            this.size = size;
+            this.pendingSides = pendingSides;
+        }
+    }
+
+    /**
+     * Creates a new, empty border spill for a world. The scratch file is
+     * stored in the plugin folder.
+     *
+     * @param world
+     * @return new border spill, or null if the file could not be created
+     */
+    public static LightingBorderSpill create(World world) {
+        File file = LightCleaner.plugin.getDataFile(FILE_NAME);
+        try {
+            return new LightingBorderSpill(world, file);
+        } catch (IOException ex) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to create " + FILE_NAME + ", the light at the borders of " +
+                    "batches will not be stored: " + ex.getMessage());
+            return null;
+        }
+    }
+}
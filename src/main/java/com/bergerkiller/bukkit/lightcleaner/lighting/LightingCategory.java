@@ -23,10 +23,19 @@ public enum LightingCategory {
             int x, y, z, light, height, opacity;
             BlockFaceSet opaqueFaces;
             LightingCube cube = null;
+            LightingCube boundary = chunk.boundaryAbove;
             // Apply initial sky lighting from top to bottom
             for (z = chunk.start.z; z <= chunk.end.z; z++) {
                 for (x = chunk.start.x; x <= chunk.end.x; x++) {
-                    light = 15;
+                    // When processing a slab below another one, continue with the light
+                    // of the bottom block of the slab above
+                    if (boundary == null) {
+                        light = 15;
+                    } else if (boundary.getOpaqueFaces(x, 0, z).down()) {
+                        light = 0;
+                    } else {
+                        light = boundary.skyLight.get(x, 0, z);
+                    }
                     height = chunk.getHeight(x, z) + 1;
                     for (y = chunk.maxY; y >= chunk.minY; y--) {
                         if ((cube = chunk.nextCube(cube, y)) == null) {
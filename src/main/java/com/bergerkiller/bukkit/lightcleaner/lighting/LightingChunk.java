@@ -5,10 +5,11 @@ import com.bergerkiller.bukkit.common.bases.IntVector2;
 import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
 import com.bergerkiller.bukkit.common.utils.ChunkUtil;
 import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.ChunkSection;
 import com.bergerkiller.bukkit.common.wrappers.HeightMap;
-import com.bergerkiller.bukkit.common.wrappers.IntHashMap;
 import com.bergerkiller.bukkit.lightcleaner.LCTimings;
 import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+import com.bergerkiller.bukkit.lightcleaner.util.CubeStorage;
 import com.bergerkiller.bukkit.lightcleaner.util.DelayClosedForcedChunk;
 import com.bergerkiller.generated.net.minecraft.world.level.chunk.ChunkHandle;
 
@@ -17,6 +18,7 @@ import org.bukkit.World;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
@@ -31,14 +33,28 @@ import java.util.stream.IntStream;
  * - fill/fillSection is called for all chunks, after which initLight is called<br>
  * - spread is called on all chunks until all spreading is finished<br>
  * - data from all LightingChunks/Sections is gathered and saved to chunks or region files<br>
- * - possible chunk resends are performed
+ * - possible chunk resends are performed<br>
+ * <br>
+ * Very tall chunks can be processed in vertical slabs, top to bottom, by filling only the cubes
+ * of one slab at a time. The lowest-but-one cube of the previous slab is then kept as the
+ * {@link #boundaryAbove}, whose light flows into the slab being processed.<br>
+ * <br>
+ * When only a range of cubes is cleaned ({@link #rangeMinCy} to {@link #rangeMaxCy}), the cubes
+ * right above and below the range are loaded with the light stored in the world, and are used
+ * as the {@link #boundaryAbove} and {@link #boundaryBelow}. They are never spread into or applied.<br>
+ * <br>
+ * Chunks at the border of a batch can be a {@link #isFixedBoundary fixed boundary}, storing only
+ * the light at the sides of the chunk computed by a batch before it. These are not loaded.
  */
 public class LightingChunk {
     public static final int OB = ~0xf; // Outside blocks
     public static final int OC = ~0xff; // Outside chunk
-    public IntHashMap<LightingCube> sections;
+    private static final LightingCube[] NO_CUBES = new LightingCube[0];
+    private LightingCube[] cubes = NO_CUBES; // Indexed by cy - cubesMinCy, can contain null
+    private int cubesMinCy = 0;
+    private List<LightingCube> sections = Collections.emptyList(); // All non-null cubes, in order
     public final LightingChunkNeighboring neighbors = new LightingChunkNeighboring();
-    public final int[] heightmap = new int[256];
+    public int[] heightmap = new int[256];
     public final World world;
     public final int chunkX, chunkZ;
     public boolean hasSkyLight = true;
@@ -46,10 +62,20 @@ public class LightingChunk {
     public boolean isBlockLightDirty = true;
     public boolean isFilled = false;
     public boolean isApplied = false;
+    public boolean isApplyStarted = false;
+    public boolean isUnchanged = false;
+    public boolean isFixedBoundary = false;
+    public long fingerprint = 0L;
     public IntVector2 start = new IntVector2(1, 1);
     public IntVector2 end = new IntVector2(14, 14);
     public int minY = 0;
     public int maxY = 0;
+    public LightingCube boundaryAbove = null;
+    public LightingCube boundaryBelow = null;
+    public int rangeMinCy = Integer.MIN_VALUE;
+    public int rangeMaxCy = Integer.MAX_VALUE;
+    public boolean isSkyExposureChanged = false;
+    public CubeStorage storage = CubeStorage.HEAP;
     public final DelayClosedForcedChunk forcedChunk = DelayClosedForcedChunk.none();
     public volatile boolean loadingStarted = false;
 
@@ -60,13 +86,88 @@ public class LightingChunk {
     }
 
     /**
-     * Gets all the sections inside this chunk.
+     * Gets all the sections inside this chunk, sorted bottom to top.
      * Elements are never null.
      * 
      * @return sections
      */
-    public Collection<LightingCube> getSections() {
-        return this.sections.values();
+    public List<LightingCube> getSections() {
+        return this.sections;
+    }
+
+    /**
+     * Gets the cube of this chunk at a cube y-coordinate
+     *
+     * @param cy Cube y-coordinate
+     * @return cube, null if this cube does not exist
+     */
+    public LightingCube getCube(int cy) {
+        int index = cy - this.cubesMinCy;
+        return (index >= 0 && index < this.cubes.length) ? this.cubes[index] : null;
+    }
+
+    /**
+     * Sets the cubes of this chunk
+     *
+     * @param list Cubes sorted by y-coordinate, bottom to top
+     */
+    private void setCubes(List<LightingCube> list) {
+        if (list.isEmpty()) {
+            this.cubes = NO_CUBES;
+            this.cubesMinCy = 0;
+        } else {
+            this.cubesMinCy = list.get(0).cy;
+            this.cubes = new LightingCube[list.get(list.size() - 1).cy - this.cubesMinCy + 1];
+            for (LightingCube cube : list) {
+                this.cubes[cube.cy - this.cubesMinCy] = cube;
+            }
+        }
+        this.updateSections();
+    }
+
+    /**
+     * Inserts cubes storing dummy data where no cube exists between two cube y-coordinates
+     *
+     * @param minCy Minimum cube y-coordinate (inclusive)
+     * @param maxCy Maximum cube y-coordinate (inclusive)
+     */
+    private void fillCubeGaps(int minCy, int maxCy) {
+        if (this.cubes.length == 0 || minCy < this.cubesMinCy || maxCy >= (this.cubesMinCy + this.cubes.length)) {
+            int newMinCy = (this.cubes.length == 0) ? minCy : Math.min(minCy, this.cubesMinCy);
+            int newMaxCy = (this.cubes.length == 0) ? maxCy : Math.max(maxCy, this.cubesMinCy + this.cubes.length - 1);
+            LightingCube[] newCubes = new LightingCube[newMaxCy - newMinCy + 1];
+            System.arraycopy(this.cubes, 0, newCubes, this.cubesMinCy - newMinCy, this.cubes.length);
+            this.cubes = newCubes;
+            this.cubesMinCy = newMinCy;
+        }
+        for (int cy = minCy; cy <= maxCy; cy++) {
+            int index = cy - this.cubesMinCy;
+            if (this.cubes[index] == null) {
+                this.cubes[index] = LightingCube.Data.create(this, cy, null).build();
+            }
+        }
+        this.updateSections();
+    }
+
+    private void updateSections() {
+        int count = 0;
+        for (LightingCube cube : this.cubes) {
+            if (cube != null) {
+                count++;
+            }
+        }
+        if (count == this.cubes.length) {
+            this.sections = Collections.unmodifiableList(Arrays.asList(this.cubes));
+        } else {
+            LightingCube[] nonNull = new LightingCube[count];
+            int index = 0;
+            for (LightingCube cube : this.cubes) {
+                if (cube != null) {
+                    nonNull[index++] = cube;
+                }
+            }
+            this.sections = Collections.unmodifiableList(Arrays.asList(nonNull));
+        }
     }
 
     /**
@@ -82,7 +183,7 @@ public class LightingChunk {
         if (previous != null && previous.cy == cy) {
             return previous;
         } else {
-            return this.sections.get(cy);
+            return this.getCube(cy);
         }
     }
 
@@ -128,10 +229,25 @@ public class LightingChunk {
      * the same chunk (vertical) and for neighboring chunks (horizontal).
      */
     public void detectCubeNeighbors() {
-        for (LightingCube cube : this.sections.values()) {
+        final LightingCube[] cubes = this.cubes;
+        for (int index = 0; index < cubes.length; index++) {
+            LightingCube cube = cubes[index];
+            if (cube == null) {
+                continue;
+            }
+
             // Neighbors above and below
-            cube.neighbors.set(0,  1, 0, this.sections.get(cube.cy + 1));
-            cube.neighbors.set(0, -1, 0, this.sections.get(cube.cy - 1));
+            // The cube above the top of the slab is the boundary cube of the previous slab
+            LightingCube above = (index < (cubes.length - 1)) ? cubes[index + 1] : null;
+            if (above == null && this.boundaryAbove != null && this.boundaryAbove.cy == (cube.cy + 1)) {
+                above = this.boundaryAbove;
+            }
+            cube.neighbors.set(0,  1, 0, above);
+            LightingCube below = (index > 0) ? cubes[index - 1] : null;
+            if (below == null && this.boundaryBelow != null && this.boundaryBelow.cy == (cube.cy - 1)) {
+                below = this.boundaryBelow;
+            }
+            cube.neighbors.set(0, -1, 0, below);
             // Neighbors in neighboring chunks
             cube.neighbors.set(-1, 0,  0, this.neighbors.getCube(-1,  0, cube.cy));
             cube.neighbors.set( 1, 0,  0, this.neighbors.getCube( 1,  0, cube.cy));
@@ -141,19 +257,57 @@ public class LightingChunk {
     }
 
     public void fill(Chunk chunk, int[] region_y_coordinates) {
+        fill(chunk, region_y_coordinates, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Fills this lighting chunk with the cubes of a vertical slab of a chunk.
+     * If cubes of a previous slab above it were filled, the cube right above the slab
+     * is kept as the {@link #boundaryAbove}, and all others are discarded.
+     * The slab is limited to the range of cubes set using {@link #rangeMinCy} and {@link #rangeMaxCy}.
+     *
+     * @param chunk Chunk to read the block data from
+     * @param region_y_coordinates Region y-coordinates to look for chunk sections
+     * @param slabMinCy Minimum cube y-coordinate of the slab, Integer.MIN_VALUE for no limit
+     * @param slabMaxCy Maximum cube y-coordinate of the slab, Integer.MAX_VALUE for no limit
+     */
+    public void fill(Chunk chunk, int[] region_y_coordinates, int slabMinCy, int slabMaxCy) {
         // Fill using chunk sections
         hasSkyLight = WorldUtil.getDimensionType(chunk.getWorld()).hasSkyLight();
+        final boolean isTopOfRange = (this.rangeMaxCy != Integer.MAX_VALUE && slabMaxCy >= this.rangeMaxCy);
+        final boolean isBottomOfRange = (this.rangeMinCy != Integer.MIN_VALUE && slabMinCy <= this.rangeMinCy);
+        final int minCy = Math.max(slabMinCy, this.rangeMinCy);
+        final int maxCy = Math.min(slabMaxCy, this.rangeMaxCy);
+        boolean isSlab = (minCy != Integer.MIN_VALUE || maxCy != Integer.MAX_VALUE);
+
+        // Keep the cube right above this slab of the previous slab, if any
+        // Its block data is read again below, the rest of the previous slab can be garbage collected
+        final LightingCube previousAbove = (!isTopOfRange && maxCy != Integer.MAX_VALUE)
+                ? this.getCube(maxCy + 1) : null;
+        this.boundaryAbove = null;
+        this.boundaryBelow = null;
+        this.isSkyExposureChanged = false;
+        this.isSkyLightDirty = true;
+        this.isBlockLightDirty = true;
+        this.isApplyStarted = false;
+        this.setCubes(Collections.emptyList());
 
         int minSectionCy = 0;
         int maxSectionCy = 0;
+        List<ChunkSection> allSections;
         try (Timings t = LCTimings.FILL_CHUNK_DATA.start()) {
             // First create a list of ChunkSection objects storing the data
             // We must do this sequentially, because asynchronous access is not permitted
-            List<LightingCube.Data> chunkSectionList = IntStream.of(region_y_coordinates)
+            allSections = IntStream.of(region_y_coordinates)
                     .map(WorldUtil::regionToChunkIndex)
                     .flatMap(base_cy -> IntStream.range(base_cy, base_cy + WorldUtil.CHUNKS_PER_REGION_AXIS))
                     .mapToObj(cy -> WorldUtil.getSection(chunk, cy))
                     .filter(section -> section != null)
+                    .collect(Collectors.toList());
+
+            // Only the sections within the slab are turned into cubes
+            List<LightingCube.Data> chunkSectionList = allSections.stream()
+                    .filter(section -> section.getY() >= minCy && section.getY() <= maxCy)
                     .map(section -> LightingCube.Data.create(LightingChunk.this, section.getY(), section))
                     .collect(Collectors.toList());
 
@@ -166,15 +320,35 @@ public class LightingChunk {
 
             // Calculate min/max chunk section coordinates
             // Make use of the fact that they are pre-sorted by y-coordinate
-            if (!lightingChunkSectionList.isEmpty()) {
+            // For slabs, the range of all sections of the chunk is clipped to the slab,
+            // so that gaps between sections in different slabs are filled as well
+            if (isSlab) {
+                if (!allSections.isEmpty()) {
+                    minSectionCy = Math.max(minCy, allSections.get(0).getY());
+                    maxSectionCy = Math.min(maxCy, allSections.get(allSections.size()-1).getY());
+                    if (minSectionCy > maxSectionCy) {
+                        minSectionCy = maxSectionCy = 0; // No part of the chunk is in this slab
+                    }
+                }
+            } else if (!lightingChunkSectionList.isEmpty()) {
                 minSectionCy = lightingChunkSectionList.get(0).cy;
                 maxSectionCy = lightingChunkSectionList.get(lightingChunkSectionList.size()-1).cy;
             }
 
             // Add to mapping
-            this.sections = new IntHashMap<LightingCube>();
-            for (LightingCube lightingChunkSection : lightingChunkSectionList) {
-                this.sections.put(lightingChunkSection.cy, lightingChunkSection);
+            this.setCubes(lightingChunkSectionList);
+
+            // The cube above the slab keeps the light computed for it in the previous slab
+            if (previousAbove != null) {
+                this.boundaryAbove = createSlabBoundary(allSections, previousAbove);
+            }
+
+            // Cubes outside of the range keep the light stored in the world
+            if (isTopOfRange) {
+                this.boundaryAbove = createStoredBoundary(allSections, maxCy + 1);
+            }
+            if (isBottomOfRange) {
+                this.boundaryBelow = createStoredBoundary(allSections, minCy - 1);
             }
         }
 
@@ -185,12 +359,9 @@ public class LightingChunk {
         // Insert sections storing dummy data between minY and maxY
         // Allow for gaps to exist, but we must make sure surface-touching cubes have light stored
         // Only do this if the distance isn't too extreme to prevent OOM
-        if (this.sections.size() >= 2 && (this.maxY - this.minY) < 4096) {
-            for (int cy = minSectionCy+1; cy < maxSectionCy; cy++) {
-                if (!this.sections.contains(cy)) {
-                    this.sections.put(cy, LightingCube.Data.create(this, cy, null).build());
-                }
-            }
+        // Slabs are always filled, as their height is limited
+        if (isSlab ? !allSections.isEmpty() : (this.sections.size() >= 2 && (this.maxY - this.minY) < 4096)) {
+            this.fillCubeGaps(minSectionCy, maxSectionCy);
         }
 
         // Log the DebugBlock's height level
@@ -206,6 +377,9 @@ public class LightingChunk {
         }
 
         // Initialize and then load sky light heightmap information
+        if (this.heightmap == null) {
+            this.heightmap = new int[256];
+        }
         if (this.hasSkyLight) {
             try (Timings t = LCTimings.INIT_HEIGHT_MAP.start()) {
                 HeightMap heightmap = ChunkUtil.getLightHeightMap(chunk, true);
@@ -218,6 +392,14 @@ public class LightingChunk {
                         }
                         int y = Math.max(this.minY, heightmap_value);
                         this.heightmap[this.getHeightKey(x, z)] = y;
+
+                        // When full sky light used to reach below the range of cubes cleaned, but
+                        // no longer does (or the other way around), the cubes below must be cleaned too
+                        if (this.boundaryBelow != null && this.boundaryBelow.skyLight != null &&
+                            (heightmap_value < this.minY) != (this.boundaryBelow.skyLight.get(x, 15, z) == 15)
+                        ) {
+                            this.isSkyExposureChanged = true;
+                        }
                         max_slice_y = Math.max(y, max_slice_y);
                     }
                 }
@@ -226,9 +408,123 @@ public class LightingChunk {
             Arrays.fill(this.heightmap, this.maxY);
         }
 
+        // Fingerprint the block data, if all of it was read
+        if (!isSlab && this.neighbors.hasAll()) {
+            this.computeFingerprint();
+        }
+
         this.isFilled = true;
     }
 
+    /**
+     * Fills this lighting chunk with cubes storing the light at the sides of the chunk, which was
+     * computed by a batch before this one. The chunk is not loaded, and its light is not initialized,
+     * spread or applied. Neighbouring chunks only read the light at its sides.
+     *
+     * @param cubes Cubes sorted by y-coordinate, bottom to top
+     * @param hasSkyLight Whether the cubes store sky light
+     */
+    public void fillFixedBoundary(List<LightingCube> cubes, boolean hasSkyLight) {
+        this.hasSkyLight = hasSkyLight;
+        this.isFixedBoundary = true;
+        this.isSkyLightDirty = false;
+        this.isBlockLightDirty = false;
+        this.isApplyStarted = true;
+        this.setCubes(cubes);
+        if (!cubes.isEmpty()) {
+            this.minY = cubes.get(0).cy << 4;
+            this.maxY = (cubes.get(cubes.size() - 1).cy << 4) + 15;
+        }
+        this.isFilled = true;
+    }
+
+    /**
+     * Creates the cube right above a slab, storing the light computed for it while
+     * processing the previous slab. Its block data was released after that slab was
+     * fixed, so it is read from the chunk again.
+     *
+     * @param allSections All the sections of the chunk
+     * @param previous Cube of the previous slab
+     * @return boundary cube
+     */
+    private LightingCube createSlabBoundary(List<ChunkSection> allSections, LightingCube previous) {
+        LightingCube cube = LightingCube.Data.create(this, previous.cy, findSection(allSections, previous.cy)).build();
+        cube.skyLight = previous.skyLight;
+        cube.blockLight = previous.blockLight;
+        return cube;
+    }
+
+    private static ChunkSection findSection(List<ChunkSection> allSections, int cy) {
+        for (ChunkSection section : allSections) {
+            if (section.getY() == cy) {
+                return section;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the block data of all cubes, and the heightmap, of this chunk. These are only
+     * needed while light is initialized and spread. Only the light of the cubes is kept,
+     * for saving it to the chunk.
+     */
+    public void releaseBuildData() {
+        for (LightingCube cube : this.sections) {
+            cube.releaseBuildData();
+        }
+        this.boundaryAbove = null;
+        this.boundaryBelow = null;
+        this.heightmap = null;
+    }
+
+    /**
+     * Creates a cube just outside the range of cubes being cleaned, storing the light
+     * currently stored in the world.
+     *
+     * @param allSections All the sections of the chunk
+     * @param cy Cube y-coordinate
+     * @return boundary cube, null if no block or light data is stored for it
+     */
+    private LightingCube createStoredBoundary(List<ChunkSection> allSections, int cy) {
+        ChunkSection section = findSection(allSections, cy);
+        if (section == null && WorldUtil.getSectionBlockLight(this.world, this.chunkX, cy, this.chunkZ) == null) {
+            return null;
+        }
+        LightingCube cube = LightingCube.Data.create(this, cy, section).build();
+        cube.loadStoredLight();
+        return cube;
+    }
+
+    /**
+     * Computes a fingerprint of the light-relevant block data of all the cubes
+     * of this chunk, and stores it in {@link #fingerprint}. The fingerprint
+     * is never 0.
+     */
+    public void computeFingerprint() {
+        long hash = 0xCBF29CE484222325L; // FNV-1a offset basis
+        for (int cy = (this.minY >> 4); cy <= (this.maxY >> 4); cy++) {
+            LightingCube cube = this.getCube(cy);
+            if (cube != null) {
+                hash = cube.fingerprint(hash);
+            }
+        }
+        this.fingerprint = (hash == 0L) ? 1L : hash;
+    }
+
+    /**
+     * Marks this chunk as unchanged since it was last cleaned. The light currently
+     * stored in the chunk is used, and it is not initialized or spread again unless
+     * neighbouring chunks change the light at its borders.
+     */
+    public void markUnchanged() {
+        for (LightingCube cube : this.sections) {
+            cube.loadStoredLight();
+        }
+        this.isUnchanged = true;
+        this.isSkyLightDirty = false;
+        this.isBlockLightDirty = false;
+    }
+
     private int getHeightKey(int x, int z) {
         return x | (z << 4);
     }
@@ -322,6 +618,37 @@ public class LightingChunk {
         return isSkyLightDirty || isBlockLightDirty;
     }
 
+    /**
+     * Gets whether the light of this chunk can no longer change while spreading. This is the
+     * case when this chunk and the 8 chunks around it have no faults. Light changes further
+     * away can not reach this chunk anymore, as light travels at most 15 blocks.
+     *
+     * @return True if the light of this chunk is final
+     */
+    public boolean isConverged() {
+        return !this.hasFaults() &&
+               !hasFaultsAround(this.neighbors.get(-1, 0), false) &&
+               !hasFaultsAround(this.neighbors.get( 1, 0), false) &&
+               !hasFaultsAround(this.neighbors.get(0, -1), true) &&
+               !hasFaultsAround(this.neighbors.get(0,  1), true);
+    }
+
+    private static boolean hasFaultsAround(LightingChunk neighbour, boolean alongX) {
+        if (neighbour == null) {
+            return false; // Chunks diagonally next to it can not spread light into this chunk either
+        } else if (neighbour.hasFaults()) {
+            return true;
+        } else if (alongX) {
+            return isFaulty(neighbour.neighbors.get(-1, 0)) || isFaulty(neighbour.neighbors.get(1, 0));
+        } else {
+            return isFaulty(neighbour.neighbors.get(0, -1)) || isFaulty(neighbour.neighbors.get(0, 1));
+        }
+    }
+
+    private static boolean isFaulty(LightingChunk chunk) {
+        return chunk != null && chunk.hasFaults();
+    }
+
     /**
      * Spreads the light from sources to 'zero' light level blocks
      *
@@ -382,7 +709,7 @@ public class LightingChunk {
             // Go through all blocks, using the heightmap for sky light to skip a few
             for (x = loop_start.x; x != loop_end.x; x += loop_increment) {
                 for (z = loop_start.z; z != loop_end.z; z += loop_increment) {
-                    startY = category.getStartY(this, x, z);
+                    startY = Math.min(category.getStartY(this, x, z), this.maxY);
                     for (y = startY; y >= this.minY; y--) {
                         if ((cube = nextCube(cube, y)) == null) {
                             // Skip this section entirely by setting y to the bottom of the section
@@ -448,7 +775,7 @@ public class LightingChunk {
 
     private void setNeighbourDirty(int dx, int dz, LightingCategory category) {
         LightingChunk n = neighbors.get(dx, dz);
-        if (n != null) {
+        if (n != null && !n.isFixedBoundary) {
             category.setDirty(n, true);
         }
     }
@@ -462,10 +789,24 @@ public class LightingChunk {
      * @return completable future completed when the chunk is saved,
      *         with value True passed when saving occurred, False otherwise
      */
-    @SuppressWarnings("unchecked")
     public CompletableFuture<Boolean> saveToChunk(Chunk chunk, final boolean force) {
+        return saveToChunk(chunk, this.sections, force);
+    }
+
+    /**
+     * Applies the lighting information of some of the cubes of this chunk to a chunk.
+     * The returned completable future is called on the main thread when saving finishes.
+     *
+     * @param chunk to save to
+     * @param cubes cubes of this chunk to save
+     * @param force whether to force the save, even when light wasn't changed
+     * @return completable future completed when the chunk is saved,
+     *         with value True passed when saving occurred, False otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Boolean> saveToChunk(Chunk chunk, Collection<LightingCube> cubes, final boolean force) {
         // Create futures for saving to all the chunk sections in parallel
-        final CompletableFuture<Boolean>[] futures = this.sections.values().stream()
+        final CompletableFuture<Boolean>[] futures = cubes.stream()
                 .map(c -> c.saveToChunk(force))
                 .toArray(CompletableFuture[]::new);
 
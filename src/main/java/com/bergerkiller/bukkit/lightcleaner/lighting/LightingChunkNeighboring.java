@@ -66,7 +66,7 @@ public class LightingChunkNeighboring {
      */
     public LightingCube getCube(int deltaChunkX, int deltaChunkZ, int cy) {
         LightingChunk chunk = get(deltaChunkX, deltaChunkZ);
-        return (chunk == null) ? null : chunk.sections.get(cy);
+        return (chunk == null) ? null : chunk.getCube(cy);
     }
 
     /**
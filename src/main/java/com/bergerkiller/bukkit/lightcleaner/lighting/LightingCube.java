@@ -14,6 +14,7 @@ import com.bergerkiller.bukkit.common.wrappers.BlockData;
 import com.bergerkiller.bukkit.common.wrappers.ChunkSection;
 import com.bergerkiller.bukkit.lightcleaner.LCTimings;
 import com.bergerkiller.bukkit.lightcleaner.util.BlockFaceSetSection;
+import com.bergerkiller.bukkit.lightcleaner.util.NibbleSection;
 import com.bergerkiller.generated.net.minecraft.world.level.chunk.NibbleArrayHandle;
 
 /**
@@ -26,14 +27,14 @@ public class LightingCube {
     public final LightingChunk owner;
     public final LightingCubeNeighboring neighbors = new LightingCubeNeighboring();
     public final int cy;
-    public final NibbleArrayHandle skyLight;
-    public final NibbleArrayHandle blockLight;
-    public final NibbleArrayHandle emittedLight;
-    public final NibbleArrayHandle opacity;
-    private final BlockFaceSetSection opaqueFaces;
+    public NibbleArrayHandle skyLight;
+    public NibbleArrayHandle blockLight;
+    public NibbleSection emittedLight;
+    public NibbleSection opacity;
+    private BlockFaceSetSection opaqueFaces;
 
     // Memory optimization for all-air cubes
-    private static final NibbleArrayHandle ALL_ZERO_NIBBLE_ARRAY = NibbleArrayHandle.createNew();
+    private static final NibbleSection ALL_ZERO_NIBBLE_SECTION = new NibbleSection();
     private static final BlockFaceSetSection ALL_TRANSPARENT_OPAQUE_FACES = new BlockFaceSetSection();
 
     // BKCL added this at some point
@@ -48,8 +49,8 @@ public class LightingCube {
 
         // Don't do anything more if there is no block data
         if (currentData.chunkSection == null) {
-            this.opacity = ALL_ZERO_NIBBLE_ARRAY;
-            this.emittedLight = ALL_ZERO_NIBBLE_ARRAY;
+            this.opacity = ALL_ZERO_NIBBLE_SECTION;
+            this.emittedLight = ALL_ZERO_NIBBLE_SECTION;
             this.opaqueFaces = ALL_TRANSPARENT_OPAQUE_FACES;
             return;
         }
@@ -60,9 +61,10 @@ public class LightingCube {
         int worldZ = owner.chunkZ << 4;
 
         // Fill opacity and initial block lighting values
-        this.opacity = NibbleArrayHandle.createNew();
-        this.emittedLight = NibbleArrayHandle.createNew();
-        this.opaqueFaces = new BlockFaceSetSection();
+        // This data is only needed while cleaning, and is stored in the storage of the chunk
+        this.opacity = owner.storage.createNibbleSection();
+        this.emittedLight = owner.storage.createNibbleSection();
+        this.opaqueFaces = owner.storage.createFaceSection();
         int x, y, z, opacity, blockEmission;
         BlockFaceSet opaqueFaces;
         BlockData info;
@@ -91,6 +93,102 @@ public class LightingCube {
         }
     }
 
+    private LightingCube(LightingChunk owner, int cy, NibbleArrayHandle skyLight, NibbleArrayHandle blockLight, BlockFaceSetSection opaqueFaces) {
+        this.owner = owner;
+        this.cy = cy;
+        this.skyLight = skyLight;
+        this.blockLight = blockLight;
+        this.opacity = ALL_ZERO_NIBBLE_SECTION;
+        this.emittedLight = ALL_ZERO_NIBBLE_SECTION;
+        this.opaqueFaces = opaqueFaces;
+    }
+
+    /**
+     * Creates a cube of a chunk that is used as a fixed boundary, storing only the light
+     * and opaque faces of its blocks. It has no opacity or emitted light.
+     *
+     * @param owner Chunk of the cube
+     * @param cy Cube y-coordinate
+     * @param skyLight Sky light, null if the world has no sky light
+     * @param blockLight Block light
+     * @param opaqueFaces Opaque faces of the blocks
+     * @return boundary cube
+     */
+    public static LightingCube createBoundary(LightingChunk owner, int cy, NibbleArrayHandle skyLight,
+            NibbleArrayHandle blockLight, BlockFaceSetSection opaqueFaces
+    ) {
+        return new LightingCube(owner, cy, skyLight, blockLight, opaqueFaces);
+    }
+
+    /**
+     * Gets the light a block emits, using the same method used to fill cubes
+     *
+     * @param data Block data of the block
+     * @param world World the block is in
+     * @param x Block x-coordinate
+     * @param y Block y-coordinate
+     * @param z Block z-coordinate
+     * @return emitted light
+     */
+    static int getEmission(BlockData data, World world, int x, int y, int z) {
+        return GET_EMISSION_FUNC.getEmission(data, world, x, y, z);
+    }
+
+    /**
+     * Discards the light computed for this cube so far, and uses the light
+     * currently stored in the world instead. Used for chunks whose light
+     * does not have to be cleaned again.
+     */
+    public void loadStoredLight() {
+        this.blockLight = Data.readStoredBlockLight(this.owner, this.cy);
+        this.skyLight = Data.readStoredSkyLight(this.owner, this.cy);
+    }
+
+    /**
+     * Releases the block data of this cube, and forgets its neighbouring cubes. These are only
+     * needed while light is initialized and spread. Only the sky and block light is kept,
+     * for saving it to the chunk.
+     */
+    public void releaseBuildData() {
+        this.opacity = null;
+        this.emittedLight = null;
+        this.opaqueFaces = null;
+        this.neighbors.clear();
+    }
+
+    /**
+     * Mixes the block information relevant for light of this cube into a 64-bit hash.
+     * This is the opacity, emitted light and opaque faces of all blocks.
+     *
+     * @param hash Input hash value
+     * @return updated hash value
+     */
+    public long fingerprint(long hash) {
+        hash = mixFingerprint(hash, this.cy);
+        if (this.opacity == ALL_ZERO_NIBBLE_SECTION) {
+            return mixFingerprint(hash, -1); // Air
+        }
+        hash = mixFingerprint(hash, this.opacity.getData());
+        hash = mixFingerprint(hash, this.emittedLight.getData());
+        hash = mixFingerprint(hash, this.opaqueFaces.getData());
+        return hash;
+    }
+
+    private static long mixFingerprint(long hash, byte[] data) {
+        for (byte b : data) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L; // FNV-1a
+        }
+        return hash;
+    }
+
+    private static long mixFingerprint(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ (value & 0xFF)) * 0x100000001B3L; // FNV-1a
+            value >>= 8;
+        }
+        return hash;
+    }
+
     /**
      * Gets the opaque faces of a block
      * 
@@ -224,6 +322,35 @@ public class LightingCube {
         }
     }
 
+    /**
+     * Counts the number of blocks whose light computed for this cube differs from
+     * the light stored in the world. Nothing is written to the world.
+     *
+     * @param category Category of light to compare
+     * @return number of blocks with different light
+     */
+    public int countStoredLightDifferences(LightingCategory category) {
+        NibbleArrayHandle light = (category == LightingCategory.SKY) ? this.skyLight : this.blockLight;
+        if (light == null) {
+            return 0;
+        }
+        byte[] newData = light.getData();
+        byte[] oldData = (category == LightingCategory.SKY)
+                ? WorldUtil.getSectionSkyLight(owner.world, owner.chunkX, this.cy, owner.chunkZ)
+                : WorldUtil.getSectionBlockLight(owner.world, owner.chunkX, this.cy, owner.chunkZ);
+        int count = 0;
+        for (int i = 0; i < newData.length; i++) {
+            int diff = newData[i] ^ ((oldData == null || i >= oldData.length) ? 0 : oldData[i]);
+            if ((diff & 0xF) != 0) {
+                count++;
+            }
+            if ((diff & 0xF0) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Applies the lighting information to a chunk section
      *
@@ -316,11 +443,15 @@ public class LightingCube {
             }
 
             // Other helpful propertes
-            int emitted = this.emittedLight.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
-            int opacity = this.opacity.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
-            BlockFaceSet opaqueFaces = this.opaqueFaces.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
-            CommonUtil.broadcast("  Emission=" + emitted + " Opacity=" + opacity);
-            CommonUtil.broadcast("  OpaqueFaces=" + opaqueFaces);
+            if (this.opacity == null) {
+                CommonUtil.broadcast("  Block data was released");
+            } else {
+                int emitted = this.emittedLight.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
+                int opacity = this.opacity.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
+                BlockFaceSet opaqueFaces = this.opaqueFaces.get(DEBUG_BLOCK.x & 0xf, DEBUG_BLOCK.y & 0xf, DEBUG_BLOCK.z & 0xf);
+                CommonUtil.broadcast("  Emission=" + emitted + " Opacity=" + opacity);
+                CommonUtil.broadcast("  OpaqueFaces=" + opaqueFaces);
+            }
             CommonUtil.broadcast("  Height=" + ((DEBUG_BLOCK_HEIGHT == Integer.MIN_VALUE)
                     ? "UNKNOWN" : Integer.toString(DEBUG_BLOCK_HEIGHT)) +
                     " Height-Min=" + owner.minY + " Height-Max=" + owner.maxY);
@@ -372,28 +503,31 @@ public class LightingCube {
                 }
             } else {
                 // We need to load the original light data, because we have a border that we do not update
+                this.currentBlockLight = readStoredBlockLight(owner, cy);
+                this.currentSkyLight = readStoredSkyLight(owner, cy);
+            }
+        }
 
-                // Block light data
-                byte[] blockLightData = WorldUtil.getSectionBlockLight(owner.world,
-                        owner.chunkX, cy, owner.chunkZ);
-                if (blockLightData != null) {
-                    this.currentBlockLight = NibbleArrayHandle.createNew(blockLightData);
-                } else {
-                    this.currentBlockLight = NibbleArrayHandle.createNew();
-                }
+        private static NibbleArrayHandle readStoredBlockLight(LightingChunk owner, int cy) {
+            byte[] blockLightData = WorldUtil.getSectionBlockLight(owner.world,
+                    owner.chunkX, cy, owner.chunkZ);
+            if (blockLightData != null) {
+                return NibbleArrayHandle.createNew(blockLightData);
+            } else {
+                return NibbleArrayHandle.createNew();
+            }
+        }
 
-                // Sky light data
-                if (owner.hasSkyLight) {
-                    byte[] skyLightData = WorldUtil.getSectionSkyLight(owner.world,
-                            owner.chunkX, cy, owner.chunkZ);
-                    if (skyLightData != null) {
-                        this.currentSkyLight = NibbleArrayHandle.createNew(skyLightData);
-                    } else {
-                        this.currentSkyLight = NibbleArrayHandle.createNew();
-                    }
-                } else {
-                    this.currentSkyLight = null;
-                }
+        private static NibbleArrayHandle readStoredSkyLight(LightingChunk owner, int cy) {
+            if (!owner.hasSkyLight) {
+                return null;
+            }
+            byte[] skyLightData = WorldUtil.getSectionSkyLight(owner.world,
+                    owner.chunkX, cy, owner.chunkZ);
+            if (skyLightData != null) {
+                return NibbleArrayHandle.createNew(skyLightData);
+            } else {
+                return NibbleArrayHandle.createNew();
             }
         }
 
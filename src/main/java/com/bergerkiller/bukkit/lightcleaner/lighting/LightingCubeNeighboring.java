@@ -38,6 +38,15 @@ public class LightingCubeNeighboring {
         return true;
     }
 
+    /**
+     * Forgets all neighbors
+     */
+    public void clear() {
+        for (int i = 0; i < 6; i++) {
+            values[i] = null;
+        }
+    }
+
     /**
      * Gets the neighbor representing the given relative cube
      *
@@ -0,0 +1,405 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
+import com.bergerkiller.bukkit.common.utils.ChunkUtil;
+import com.bergerkiller.bukkit.common.utils.CommonUtil;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.BlockData;
+import com.bergerkiller.bukkit.common.wrappers.ChunkSection;
+import com.bergerkiller.bukkit.common.wrappers.HeightMap;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+import com.bergerkiller.bukkit.lightcleaner.util.BlockFaceSetSection;
+import com.bergerkiller.bukkit.lightcleaner.util.LightAuditReport;
+import com.bergerkiller.bukkit.lightcleaner.util.NibbleSection;
+
+/**
+ * Quickly finds loaded chunks that likely have faulty light, without computing their light.
+ * The stored light of blocks is checked against the light of the blocks around them: a block
+ * should have the light it emits, full sky light above the height map, or the brightest light
+ * of a neighbour minus its own opacity. Blocks breaking these rules are counted per chunk in the
+ * scan report of the world, see {@link LightAuditReport#getScan(World)}, so that only those chunks
+ * have to be cleaned.<br>
+ * <br>
+ * Only a number of random blocks of every 16x16x16 section are checked, unless all blocks are
+ * requested. The stored light, and the opacity, emitted light and opaque faces of the blocks to
+ * check and the blocks next to them, are read on the main thread a number of chunks at a time.
+ * The blocks are then checked in parallel on other threads, using only this copied data.
+ */
+public class LightingFaultScanner {
+    public static final int DEFAULT_SAMPLES_PER_SECTION = 64;
+    private static final int CHUNKS_PER_TICK = 16;
+    // dx, dy, dz, face of the block facing the neighbour, face of the neighbour facing the block
+    private static final int[][] DIRECTIONS = {
+            { 1,  0,  0, BlockFaceSet.MASK_EAST,  BlockFaceSet.MASK_WEST  },
+            {-1,  0,  0, BlockFaceSet.MASK_WEST,  BlockFaceSet.MASK_EAST  },
+            { 0,  0,  1, BlockFaceSet.MASK_SOUTH, BlockFaceSet.MASK_NORTH },
+            { 0,  0, -1, BlockFaceSet.MASK_NORTH, BlockFaceSet.MASK_SOUTH },
+            { 0,  1,  0, BlockFaceSet.MASK_UP,    BlockFaceSet.MASK_DOWN  },
+            { 0, -1,  0, BlockFaceSet.MASK_DOWN,  BlockFaceSet.MASK_UP    }
+    };
+    private static final int DIRECTION_UP = 4;
+    private final World world;
+    private final int samplesPerSection;
+    private final boolean hasSkyLight;
+    private final LightAuditReport report;
+    private final AtomicLong numBlocksChecked = new AtomicLong();
+    private long[] chunkCoordinates = new long[0];
+    private int nextChunkIndex = 0;
+
+    private LightingFaultScanner(World world, int samplesPerSection) {
+        this.world = world;
+        this.samplesPerSection = samplesPerSection;
+        this.hasSkyLight = WorldUtil.getDimensionType(world).hasSkyLight();
+        this.report = LightAuditReport.startScan(world);
+    }
+
+    /**
+     * Scans all chunks of a world that are loaded for blocks with faulty light.
+     * The chunks found are stored in a new scan report of the world, which is saved
+     * once the scan completes. The light audit report of the world is kept.
+     *
+     * @param world World to scan
+     * @param samplesPerSection Number of random blocks to check of every 16x16x16 section,
+     *                          0 or less to check all blocks
+     * @return future completed with the report of the faulty chunks found
+     */
+    public static CompletableFuture<LightAuditReport> scan(World world, int samplesPerSection) {
+        final LightingFaultScanner scanner = new LightingFaultScanner(world, samplesPerSection);
+        final long timeStarted = System.currentTimeMillis();
+        return CompletableFuture.runAsync(scanner::collectChunks, CommonUtil.getPluginExecutor(LightCleaner.plugin))
+                .thenCompose(v -> scanner.scanNext())
+                .thenApply(v -> {
+                    scanner.report.save();
+                    LightCleaner.plugin.log(Level.INFO, "Scan: " + scanner.report.getSummary() + ", checked " +
+                            scanner.numBlocksChecked.get() + " blocks in " + (System.currentTimeMillis() - timeStarted) + "ms");
+                    return scanner.report;
+                });
+    }
+
+    /**
+     * Collects the coordinates of all loaded chunks. Must be called on the main thread.
+     */
+    private void collectChunks() {
+        Chunk[] chunks = this.world.getLoadedChunks();
+        this.chunkCoordinates = new long[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            this.chunkCoordinates[i] = MathUtil.longHashToLong(chunks[i].getX(), chunks[i].getZ());
+        }
+    }
+
+    /**
+     * Reads the next chunks on the main thread, and checks them on other threads,
+     * until all chunks are checked
+     */
+    private CompletableFuture<Void> scanNext() {
+        return CompletableFuture.supplyAsync(this::readNextChunks, CommonUtil.getPluginExecutor(LightCleaner.plugin))
+                .thenCompose(chunks -> {
+                    if (chunks == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return CompletableFuture.runAsync(() -> chunks.parallelStream().forEach(this::check))
+                            .thenCompose(v -> scanNext());
+                });
+    }
+
+    /**
+     * Reads the block data and stored light of the next chunks to check that are still loaded.
+     * Must be called on the main thread.
+     *
+     * @return chunks read, null if all chunks were checked
+     */
+    private List<ChunkData> readNextChunks() {
+        if (this.nextChunkIndex >= this.chunkCoordinates.length) {
+            return null;
+        }
+        int end = Math.min(this.chunkCoordinates.length, this.nextChunkIndex + CHUNKS_PER_TICK);
+        List<ChunkData> chunks = new ArrayList<ChunkData>(end - this.nextChunkIndex);
+        for (; this.nextChunkIndex < end; this.nextChunkIndex++) {
+            int cx = MathUtil.longHashMsw(this.chunkCoordinates[this.nextChunkIndex]);
+            int cz = MathUtil.longHashLsw(this.chunkCoordinates[this.nextChunkIndex]);
+            if (this.world.isChunkLoaded(cx, cz)) {
+                chunks.add(new ChunkData(this.world, this.world.getChunkAt(cx, cz), this.samplesPerSection));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Checks the blocks of a chunk, and records the number of blocks with faulty light
+     *
+     * @param chunk
+     */
+    private void check(ChunkData chunk) {
+        int numSkyLightFaults = 0;
+        int numBlockLightFaults = 0;
+        int numChecked = 0;
+        for (int cy = chunk.minCy; cy <= chunk.maxCy; cy++) {
+            int[] samples = chunk.samples[cy - chunk.minCy];
+            if (samples == null) {
+                continue;
+            }
+            for (int index : samples) {
+                int x = index & 0xF;
+                int y = (cy << 4) | (index >> 8);
+                int z = (index >> 4) & 0xF;
+                if (isFaulty(chunk, LightingCategory.BLOCK, x, y, z)) {
+                    numBlockLightFaults++;
+                }
+                if (this.hasSkyLight && isFaulty(chunk, LightingCategory.SKY, x, y, z)) {
+                    numSkyLightFaults++;
+                }
+                numChecked++;
+            }
+        }
+        this.numBlocksChecked.addAndGet(numChecked);
+        this.report.record(chunk.cx, chunk.cz, numSkyLightFaults, numBlockLightFaults);
+    }
+
+    /**
+     * Checks whether the stored light of a block differs from the light it should have,
+     * based on the stored light of the blocks around it. Light coming from neighbours in
+     * other chunks is not known, so then only light that is too dark is detected.
+     */
+    private boolean isFaulty(ChunkData chunk, LightingCategory category, int x, int y, int z) {
+        int level = chunk.getLight(category, x, y, z);
+        if (level < 0) {
+            return false;
+        }
+
+        // Light the block has of its own
+        int opacity = chunk.getOpacity(x, y, z);
+        int emission = chunk.getEmission(x, y, z);
+        BlockFaceSet opaqueFaces = chunk.getOpaqueFaces(x, y, z);
+        int expected;
+        if (category == LightingCategory.BLOCK) {
+            expected = emission;
+        } else {
+            expected = (y > chunk.heights[(z << 4) | x]) ? 15 : 0;
+        }
+
+        // Light spreading into the block from its neighbours
+        boolean allNeighboursKnown = true;
+        for (int d = 0; d < DIRECTIONS.length; d++) {
+            int[] dir = DIRECTIONS[d];
+            int nx = x + dir[0];
+            int ny = y + dir[1];
+            int nz = z + dir[2];
+            int nlevel = chunk.getLight(category, nx, ny, nz);
+            if (nlevel < 0) {
+                allNeighboursKnown = false;
+                continue;
+            }
+            if (nlevel <= 1 || opaqueFaces.get(dir[3])) {
+                continue;
+            }
+
+            // Blocks emitting light also emit it through their own opaque faces
+            boolean isEmitting = (category == LightingCategory.BLOCK && nlevel == chunk.getEmission(nx, ny, nz));
+            if (!isEmitting && chunk.getOpaqueFaces(nx, ny, nz).get(dir[4])) {
+                continue;
+            }
+
+            // Full sky light travels down without becoming darker
+            if (category == LightingCategory.SKY && d == DIRECTION_UP && nlevel == 15 && opacity == 0) {
+                expected = 15;
+            } else {
+                expected = Math.max(expected, nlevel - Math.max(1, opacity));
+            }
+        }
+
+        return (level < expected) || (allNeighboursKnown && level > expected);
+    }
+
+    /**
+     * The stored light and height map of a loaded chunk, and the blocks of its sections to check.
+     * The light of the sections right above and below the sections with block data is read too.
+     * The opacity, emitted light and opaque faces of the blocks to check and the blocks next to
+     * them are copied, so that checking the chunk does not access the world.
+     */
+    private static final class ChunkData {
+        public final int cx, cz;
+        public final int minCy, maxCy;
+        public final int[][] samples;
+        public final NibbleSection[] opacity;
+        public final NibbleSection[] emission;
+        public final BlockFaceSetSection[] opaqueFaces;
+        public final byte[][] skyLight;
+        public final byte[][] blockLight;
+        public final int[] heights = new int[256];
+
+        public ChunkData(World world, Chunk chunk, int samplesPerSection) {
+            this.cx = chunk.getX();
+            this.cz = chunk.getZ();
+
+            int minCy = Integer.MAX_VALUE;
+            int maxCy = Integer.MIN_VALUE;
+            for (Integer cy : WorldUtil.getLoadedSectionCoordinates(chunk)) {
+                minCy = Math.min(minCy, cy.intValue());
+                maxCy = Math.max(maxCy, cy.intValue());
+            }
+            if (minCy > maxCy) {
+                minCy = maxCy = 0;
+            }
+            this.minCy = minCy - 1;
+            this.maxCy = maxCy + 1;
+
+            int count = this.maxCy - this.minCy + 1;
+            ChunkSection[] sections = new ChunkSection[count];
+            this.samples = new int[count][];
+            this.opacity = new NibbleSection[count];
+            this.emission = new NibbleSection[count];
+            this.opaqueFaces = new BlockFaceSetSection[count];
+            this.skyLight = new byte[count][];
+            this.blockLight = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                int cy = this.minCy + i;
+                sections[i] = WorldUtil.getSection(chunk, cy);
+                this.skyLight[i] = WorldUtil.getSectionSkyLight(world, this.cx, cy, this.cz);
+                this.blockLight[i] = WorldUtil.getSectionBlockLight(world, this.cx, cy, this.cz);
+                if (sections[i] != null) {
+                    this.opacity[i] = new NibbleSection();
+                    this.emission[i] = new NibbleSection();
+                    this.opaqueFaces[i] = new BlockFaceSetSection();
+                }
+            }
+
+            // Pick the blocks to check, and copy the data of them and the blocks next to them
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long[][] copied = new long[count][];
+            for (int i = 0; i < count; i++) {
+                if (sections[i] == null) {
+                    continue;
+                }
+                int[] samples = new int[(samplesPerSection <= 0) ? 4096 : samplesPerSection];
+                for (int n = 0; n < samples.length; n++) {
+                    samples[n] = (samplesPerSection <= 0) ? n : random.nextInt(4096);
+                }
+                this.samples[i] = samples;
+
+                int baseY = (this.minCy + i) << 4;
+                for (int index : samples) {
+                    int x = index & 0xF;
+                    int y = baseY | (index >> 8);
+                    int z = (index >> 4) & 0xF;
+                    this.copy(world, sections, copied, x, y, z);
+                    for (int[] dir : DIRECTIONS) {
+                        this.copy(world, sections, copied, x + dir[0], y + dir[1], z + dir[2]);
+                    }
+                }
+            }
+
+            HeightMap heightmap = ChunkUtil.getLightHeightMap(chunk, true);
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    this.heights[(z << 4) | x] = heightmap.getHeight(x, z);
+                }
+            }
+        }
+
+        /**
+         * Gets the stored light of a block of this chunk
+         *
+         * @return light level, -1 if not known
+         */
+        public int getLight(LightingCategory category, int x, int y, int z) {
+            if ((x & ~0xF) != 0 || (z & ~0xF) != 0) {
+                return -1;
+            }
+            int cy = y >> 4;
+            if (cy < this.minCy || cy > this.maxCy) {
+                return -1;
+            }
+            byte[] data = ((category == LightingCategory.SKY) ? this.skyLight : this.blockLight)[cy - this.minCy];
+            if (data == null) {
+                return -1;
+            }
+            int index = ((y & 0xF) << 8) | (z << 4) | x;
+            return (data[index >> 1] >> ((index & 1) << 2)) & 0xF;
+        }
+
+        /**
+         * Gets the opacity of a block of this chunk, that was copied
+         *
+         * @return opacity, 0 if air or not known
+         */
+        public int getOpacity(int x, int y, int z) {
+            int i = this.getSectionIndex(x, y, z);
+            return (i == -1 || this.opacity[i] == null) ? 0 : this.opacity[i].get(x, y & 0xF, z);
+        }
+
+        /**
+         * Gets the light emitted by a block of this chunk, that was copied
+         *
+         * @return emitted light, 0 if air or not known
+         */
+        public int getEmission(int x, int y, int z) {
+            int i = this.getSectionIndex(x, y, z);
+            return (i == -1 || this.emission[i] == null) ? 0 : this.emission[i].get(x, y & 0xF, z);
+        }
+
+        /**
+         * Gets the opaque faces of a block of this chunk, that was copied
+         *
+         * @return opaque faces, none if air or not known
+         */
+        public BlockFaceSet getOpaqueFaces(int x, int y, int z) {
+            int i = this.getSectionIndex(x, y, z);
+            return (i == -1 || this.opaqueFaces[i] == null) ? BlockFaceSet.NONE : this.opaqueFaces[i].get(x, y & 0xF, z);
+        }
+
+        private int getSectionIndex(int x, int y, int z) {
+            int cy = y >> 4;
+            if ((x & ~0xF) != 0 || (z & ~0xF) != 0 || cy < this.minCy || cy > this.maxCy) {
+                return -1;
+            }
+            return cy - this.minCy;
+        }
+
+        /**
+         * Copies the opacity, emitted light and opaque faces of a block, unless it was copied
+         * before. Blocks outside of this chunk or outside of sections with block data are ignored.
+         */
+        private void copy(World world, ChunkSection[] sections, long[][] copied, int x, int y, int z) {
+            int i = this.getSectionIndex(x, y, z);
+            if (i == -1 || sections[i] == null) {
+                return;
+            }
+            int index = ((y & 0xF) << 8) | (z << 4) | x;
+            if (copied[i] == null) {
+                copied[i] = new long[4096 >> 6];
+            }
+            long mask = (1L << index);
+            if ((copied[i][index >> 6] & mask) != 0L) {
+                return;
+            }
+            copied[i][index >> 6] |= mask;
+
+            BlockData data = sections[i].getBlockData(x, y & 0xF, z);
+            int worldX = (this.cx << 4) | x;
+            int worldZ = (this.cz << 4) | z;
+            int opacity = data.getOpacity(world, worldX, y, worldZ);
+            BlockFaceSet faces;
+            if (opacity >= 0xf) {
+                opacity = 0xf;
+                faces = BlockFaceSet.ALL;
+            } else {
+                opacity = Math.max(0, opacity);
+                faces = data.getOpaqueFaces(world, worldX, y, worldZ);
+            }
+            this.opacity[i].set(x, y & 0xF, z, opacity);
+            this.emission[i].set(x, y & 0xF, z, LightingCube.getEmission(data, world, worldX, y, worldZ));
+            this.opaqueFaces[i].set(x, y & 0xF, z, faces);
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.bases.IntVector2;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
+import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
+import com.bergerkiller.bukkit.common.utils.ChunkUtil;
+import com.bergerkiller.bukkit.common.utils.CommonUtil;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet.LongIterator;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+import com.bergerkiller.generated.net.minecraft.world.level.chunk.ChunkHandle;
+import com.bergerkiller.generated.net.minecraft.world.level.chunk.NibbleArrayHandle;
+
+/**
+ * Relights the blocks around a small number of changed blocks, without cleaning entire chunks.
+ * Only the cubes of loaded chunks within light range of the changed blocks are read. Light is first
+ * removed starting at the changed blocks, after which it is spread again from the light that remains
+ * and from light sources. Only the cubes whose light changed are applied to the world.<br>
+ * <br>
+ * This is much faster than cleaning the chunks around the blocks, but it can only fix light
+ * that depends on the changed blocks.<br>
+ * <br>
+ * The same is used to repair the light at the borders of chunks a batch has loaded, see
+ * {@link #relightSeams(World, LightingChunk[])}. Then the blocks at the chunk borders whose
+ * light does not match the light around them are relit. Chunks at the edge of the batch,
+ * whose neighbours were not all loaded, are only read. Their light is not changed.
+ */
+public class LightingMicroRelight {
+    // dx, dy, dz, face of the block light leaves through, face of the block light enters through
+    private static final int[][] DIRECTIONS = {
+            { 1,  0,  0, BlockFaceSet.MASK_EAST,  BlockFaceSet.MASK_WEST  },
+            {-1,  0,  0, BlockFaceSet.MASK_WEST,  BlockFaceSet.MASK_EAST  },
+            { 0,  0,  1, BlockFaceSet.MASK_SOUTH, BlockFaceSet.MASK_NORTH },
+            { 0,  0, -1, BlockFaceSet.MASK_NORTH, BlockFaceSet.MASK_SOUTH },
+            { 0,  1,  0, BlockFaceSet.MASK_UP,    BlockFaceSet.MASK_DOWN  },
+            { 0, -1,  0, BlockFaceSet.MASK_DOWN,  BlockFaceSet.MASK_UP    }
+    };
+    private static final int DIRECTION_DOWN = 5;
+    private final World world;
+    private final List<IntVector3> blocks;
+    private final LongHashMap<LightingChunk> chunks = new LongHashMap<LightingChunk>();
+    private final LongHashMap<int[]> skyColumnBottoms = new LongHashMap<int[]>();
+    private final Set<LightingCube> changedCubes = new HashSet<LightingCube>();
+    private final LongHashSet readOnlyChunks = new LongHashSet();
+    private LightingChunk lastChunk = null;
+    private boolean hasSkyLight = true;
+
+    private LightingMicroRelight(World world, List<IntVector3> blocks) {
+        this.world = world;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Relights the blocks around blocks that changed. Blocks in chunks that are
+     * not loaded are ignored. Reading the block data is done on the main thread,
+     * the light is computed on another thread.
+     *
+     * @param world World the blocks are in
+     * @param blocks Coordinates of the blocks that changed
+     * @return future completed with the number of 16x16x16 sections whose light changed
+     */
+    public static CompletableFuture<Integer> relight(World world, Collection<IntVector3> blocks) {
+        final LightingMicroRelight relight = new LightingMicroRelight(world, new ArrayList<IntVector3>(blocks));
+        return CompletableFuture.runAsync(relight::fill, CommonUtil.getPluginExecutor(LightCleaner.plugin))
+                .thenRunAsync(relight::spread)
+                .thenCompose(v -> relight.apply());
+    }
+
+    /**
+     * Relights the blocks at the borders of chunks whose stored light does not match the
+     * light of the blocks around them, like the dark stripes left behind by chunk generation.
+     * The light of the chunks must be the light stored in the world, see
+     * {@link LightingCube#loadStoredLight()}. Light is only removed and spread again starting
+     * at these blocks, the rest of the light of the chunks is kept.
+     * Fixed boundary chunks are not relit, nor used. Chunks whose neighbours are not all
+     * loaded are used, but their light is not changed.
+     *
+     * @param world World the chunks are in
+     * @param chunks Chunks filled with block data and stored light
+     * @return cubes whose light changed
+     */
+    static Set<LightingCube> relightSeams(World world, LightingChunk[] chunks) {
+        LightingMicroRelight relight = new LightingMicroRelight(world, new ArrayList<IntVector3>());
+        for (LightingChunk lc : chunks) {
+            if (!lc.isFixedBoundary) {
+                relight.chunks.put(lc.chunkX, lc.chunkZ, lc);
+                relight.hasSkyLight = lc.hasSkyLight;
+                if (!lc.neighbors.hasAll()) {
+                    relight.readOnlyChunks.add(lc.chunkX, lc.chunkZ);
+                }
+            }
+        }
+        relight.spread(LightingCategory.BLOCK, relight.findSeamBlocks(LightingCategory.BLOCK));
+        if (relight.hasSkyLight) {
+            relight.spread(LightingCategory.SKY, relight.findSeamBlocks(LightingCategory.SKY));
+        }
+        return relight.changedCubes;
+    }
+
+    /**
+     * Finds the blocks at the borders of all chunks whose light does not match the light around them
+     *
+     * @param category Category of light to check
+     * @return blocks with mismatched light
+     */
+    private List<IntVector3> findSeamBlocks(LightingCategory category) {
+        List<IntVector3> result = new ArrayList<IntVector3>();
+        for (LightingChunk lc : this.chunks.getValues()) {
+            if (this.readOnlyChunks.contains(lc.chunkX, lc.chunkZ)) {
+                continue;
+            }
+            int baseX = lc.chunkX << 4;
+            int baseZ = lc.chunkZ << 4;
+            for (LightingCube cube : lc.getSections()) {
+                int baseY = cube.cy << 4;
+                for (int y = baseY; y < (baseY + 16); y++) {
+                    for (int i = 0; i < 16; i++) {
+                        addIfMismatched(result, category, baseX, y, baseZ + i);
+                        addIfMismatched(result, category, baseX + 15, y, baseZ + i);
+                        if (i > 0 && i < 15) {
+                            addIfMismatched(result, category, baseX + i, y, baseZ);
+                            addIfMismatched(result, category, baseX + i, y, baseZ + 15);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addIfMismatched(List<IntVector3> result, LightingCategory category, int x, int y, int z) {
+        if (isMismatched(category, x, y, z)) {
+            result.add(new IntVector3(x, y, z));
+        }
+    }
+
+    /**
+     * Checks whether the light of a block differs from the light it has of its own, or the
+     * brightest light spread into it by the blocks around it. Where blocks around it are not
+     * known, only light that is too dark is detected.
+     */
+    private boolean isMismatched(LightingCategory category, int x, int y, int z) {
+        LightingCube cube = getCube(x, y, z);
+        if (cube == null) {
+            return false;
+        }
+        int level = category.get(cube, x & 0xF, y & 0xF, z & 0xF);
+        int expected = getSource(category, cube, x, y, z);
+        int opacity = Math.max(1, cube.opacity.get(x & 0xF, y & 0xF, z & 0xF));
+        BlockFaceSet opaqueFaces = cube.getOpaqueFaces(x & 0xF, y & 0xF, z & 0xF);
+        boolean allNeighboursKnown = true;
+        for (int[] dir : DIRECTIONS) {
+            int nx = x + dir[0];
+            int ny = y + dir[1];
+            int nz = z + dir[2];
+            LightingCube ncube = getCube(nx, ny, nz);
+            if (ncube == null) {
+                allNeighboursKnown = false;
+                continue;
+            }
+            if (opaqueFaces.get(dir[3])) {
+                continue;
+            }
+
+            // Blocks emitting light also emit it through their own opaque faces
+            int nlevel = category.get(ncube, nx & 0xF, ny & 0xF, nz & 0xF);
+            boolean isEmitting = (category == LightingCategory.BLOCK && nlevel == ncube.emittedLight.get(nx & 0xF, ny & 0xF, nz & 0xF));
+            if (!isEmitting && ncube.getOpaqueFaces(nx & 0xF, ny & 0xF, nz & 0xF).get(dir[4])) {
+                continue;
+            }
+            expected = Math.max(expected, nlevel - opacity);
+        }
+        return (level < expected) || (allNeighboursKnown && level > expected);
+    }
+
+    /**
+     * Reads the block data and stored light of all cubes within light range of
+     * the changed blocks. Must be called on the main thread.
+     */
+    private void fill() {
+        if (this.blocks.isEmpty()) {
+            return;
+        }
+
+        // Light can spread up to 15 blocks away from the changed blocks
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        LongHashSet chunkCoordinates = new LongHashSet();
+        for (IntVector3 block : this.blocks) {
+            minY = Math.min(minY, block.y - 15);
+            maxY = Math.max(maxY, block.y + 15);
+            for (int cx = (block.x - 15) >> 4; cx <= ((block.x + 15) >> 4); cx++) {
+                for (int cz = (block.z - 15) >> 4; cz <= ((block.z + 15) >> 4); cz++) {
+                    chunkCoordinates.add(cx, cz);
+                }
+            }
+        }
+
+        // Full sky light can change far below the changed blocks, down to where it stops
+        // now (height map) or where it stopped before (stored sky light)
+        this.hasSkyLight = WorldUtil.getDimensionType(this.world).hasSkyLight();
+        if (this.hasSkyLight) {
+            for (IntVector3 block : this.blocks) {
+                if (this.world.isChunkLoaded(block.x >> 4, block.z >> 4)) {
+                    Chunk chunk = this.world.getChunkAt(block.x >> 4, block.z >> 4);
+                    int height = ChunkUtil.getLightHeightMap(chunk, true).getHeight(block.x & 0xF, block.z & 0xF);
+                    minY = Math.min(minY, Math.min(height, getStoredSkyColumnBottom(block)) - 15);
+                }
+            }
+        }
+
+        // Fill the cubes of all loaded chunks in range
+        // Every block of the chunks is read, as chunk borders are handled by this class
+        int minCy = minY >> 4;
+        int maxCy = maxY >> 4;
+        int[] regionYCoordinates = IntStream.rangeClosed(WorldUtil.chunkToRegionIndex(minCy),
+                                                         WorldUtil.chunkToRegionIndex(maxCy)).toArray();
+        LongIterator iter = chunkCoordinates.longIterator();
+        while (iter.hasNext()) {
+            long key = iter.next();
+            int cx = MathUtil.longHashMsw(key);
+            int cz = MathUtil.longHashLsw(key);
+            if (!this.world.isChunkLoaded(cx, cz)) {
+                continue;
+            }
+
+            LightingChunk lc = new LightingChunk(this.world, cx, cz);
+            lc.start = new IntVector2(0, 0);
+            lc.end = new IntVector2(15, 15);
+            lc.fill(this.world.getChunkAt(cx, cz), regionYCoordinates, minCy, maxCy);
+            for (LightingCube cube : lc.getSections()) {
+                cube.loadStoredLight();
+            }
+            this.chunks.put(cx, cz, lc);
+        }
+    }
+
+    /**
+     * Finds the lowest block below a block, down to which full sky light is stored
+     *
+     * @param block
+     * @return lowest y-coordinate of full sky light, rounded down to the cube
+     */
+    private int getStoredSkyColumnBottom(IntVector3 block) {
+        int cy = block.y >> 4;
+        while (true) {
+            byte[] data = WorldUtil.getSectionSkyLight(this.world, block.x >> 4, cy, block.z >> 4);
+            if (data == null || NibbleArrayHandle.createNew(data).get(block.x & 0xF, 0, block.z & 0xF) != 15) {
+                return cy << 4;
+            }
+            cy--;
+        }
+    }
+
+    /**
+     * Removes and spreads the light around the changed blocks again
+     */
+    private void spread() {
+        spread(LightingCategory.BLOCK, this.blocks);
+        if (this.hasSkyLight) {
+            spread(LightingCategory.SKY, this.blocks);
+        }
+    }
+
+    private void spread(LightingCategory category, List<IntVector3> blocks) {
+        PositionQueue decrease = new PositionQueue();
+        PositionQueue increase = new PositionQueue();
+        int x, y, z, level, nx, ny, nz, nlevel, source;
+        LightingCube cube, ncube;
+
+        // Remove the light of the changed blocks and let their neighbours spread light into them again
+        for (IntVector3 block : blocks) {
+            if ((cube = getCube(block.x, block.y, block.z)) == null) {
+                continue;
+            }
+            level = category.get(cube, block.x & 0xF, block.y & 0xF, block.z & 0xF);
+            source = getSource(category, cube, block.x, block.y, block.z);
+            setLight(category, cube, block.x, block.y, block.z, source);
+            decrease.add(block.x, block.y, block.z, level);
+            if (source > 0) {
+                increase.add(block.x, block.y, block.z, source);
+            }
+        }
+
+        // Full sky light in the columns of the changed blocks can reach far below them
+        if (category == LightingCategory.SKY) {
+            LongHashSet columns = new LongHashSet();
+            for (IntVector3 block : blocks) {
+                LightingChunk lc = this.chunks.get(block.x >> 4, block.z >> 4);
+                if (lc == null || !columns.add(block.x, block.z)) {
+                    continue;
+                }
+                cube = null;
+                for (y = lc.maxY; y >= lc.minY; y--) {
+                    if ((cube = lc.nextCube(cube, y)) == null) {
+                        y &= ~0xf;
+                        continue;
+                    }
+                    source = getSource(category, cube, block.x, y, block.z);
+                    if (source > category.get(cube, block.x & 0xF, y & 0xF, block.z & 0xF)) {
+                        setLight(category, cube, block.x, y, block.z, source);
+                        increase.add(block.x, y, block.z, source);
+                    }
+                }
+            }
+        }
+
+        // Remove all light that could have come from the changed blocks
+        // Neighbours that are lit by something else spread their light again afterwards
+        while (decrease.next()) {
+            for (int d = 0; d < DIRECTIONS.length; d++) {
+                int[] dir = DIRECTIONS[d];
+                nx = decrease.x + dir[0];
+                ny = decrease.y + dir[1];
+                nz = decrease.z + dir[2];
+                if ((ncube = getCube(nx, ny, nz)) == null) {
+                    continue;
+                }
+                nlevel = category.get(ncube, nx & 0xF, ny & 0xF, nz & 0xF);
+                if (nlevel == 0) {
+                    continue;
+                }
+                if (isReadOnly(ncube)) {
+                    increase.add(nx, ny, nz, nlevel); // Keeps its light, which spreads back
+                    continue;
+                }
+                if (nlevel < decrease.level ||
+                    (d == DIRECTION_DOWN && category == LightingCategory.SKY && decrease.level == 15 && nlevel == 15)
+                ) {
+                    source = getSource(category, ncube, nx, ny, nz);
+                    setLight(category, ncube, nx, ny, nz, source);
+                    decrease.add(nx, ny, nz, nlevel);
+                    if (source > 0) {
+                        increase.add(nx, ny, nz, source);
+                    }
+                } else {
+                    increase.add(nx, ny, nz, nlevel);
+                }
+            }
+        }
+
+        // Spread the light that remains to the blocks around it
+        while (increase.next()) {
+            x = increase.x;
+            y = increase.y;
+            z = increase.z;
+            if ((cube = getCube(x, y, z)) == null) {
+                continue;
+            }
+            level = category.get(cube, x & 0xF, y & 0xF, z & 0xF);
+            if (level <= 1) {
+                continue;
+            }
+
+            // Blocks emitting light also emit it through their own opaque faces
+            BlockFaceSet opaqueFaces = cube.getOpaqueFaces(x & 0xF, y & 0xF, z & 0xF);
+            boolean isEmitting = (category == LightingCategory.BLOCK && level == cube.emittedLight.get(x & 0xF, y & 0xF, z & 0xF));
+            for (int[] dir : DIRECTIONS) {
+                if (!isEmitting && opaqueFaces.get(dir[3])) {
+                    continue;
+                }
+                nx = x + dir[0];
+                ny = y + dir[1];
+                nz = z + dir[2];
+                if ((ncube = getCube(nx, ny, nz)) == null || isReadOnly(ncube) ||
+                    ncube.getOpaqueFaces(nx & 0xF, ny & 0xF, nz & 0xF).get(dir[4])
+                ) {
+                    continue;
+                }
+                nlevel = level - Math.max(1, ncube.opacity.get(nx & 0xF, ny & 0xF, nz & 0xF));
+                if (nlevel > category.get(ncube, nx & 0xF, ny & 0xF, nz & 0xF)) {
+                    setLight(category, ncube, nx, ny, nz, nlevel);
+                    increase.add(nx, ny, nz, nlevel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the light a block has of its own: the light it emits, or
+     * full sky light for blocks the sky shines on directly.
+     */
+    private int getSource(LightingCategory category, LightingCube cube, int x, int y, int z) {
+        if (category == LightingCategory.BLOCK) {
+            return cube.emittedLight.get(x & 0xF, y & 0xF, z & 0xF);
+        } else {
+            return (y >= getSkyColumnBottom(cube.owner, x, z)) ? 15 : 0;
+        }
+    }
+
+    /**
+     * Gets the lowest block of a column that receives full sky light, using the
+     * same rules as {@link LightingCategory#SKY} uses to initialize sky light.
+     */
+    private int getSkyColumnBottom(LightingChunk lc, int x, int z) {
+        int[] bottoms = this.skyColumnBottoms.get(lc.chunkX, lc.chunkZ);
+        if (bottoms == null) {
+            bottoms = new int[256];
+            Arrays.fill(bottoms, Integer.MAX_VALUE);
+            this.skyColumnBottoms.put(lc.chunkX, lc.chunkZ, bottoms);
+        }
+        int index = ((z & 0xF) << 4) | (x & 0xF);
+        if (bottoms[index] == Integer.MAX_VALUE) {
+            int y = lc.getHeight(x & 0xF, z & 0xF) + 1;
+            LightingCube cube = null;
+            while ((cube = lc.nextCube(cube, y)) != null) {
+                BlockFaceSet opaqueFaces = cube.getOpaqueFaces(x & 0xF, y & 0xF, z & 0xF);
+                if (opaqueFaces.up() || cube.opacity.get(x & 0xF, y & 0xF, z & 0xF) != 0) {
+                    break;
+                }
+                if (opaqueFaces.down()) {
+                    y--;
+                    break;
+                }
+                y--;
+            }
+            bottoms[index] = y + 1;
+        }
+        return bottoms[index];
+    }
+
+    private void setLight(LightingCategory category, LightingCube cube, int x, int y, int z, int level) {
+        category.set(cube, x & 0xF, y & 0xF, z & 0xF, level);
+        this.changedCubes.add(cube);
+    }
+
+    /**
+     * Gets whether the light of a cube must not be changed
+     */
+    private boolean isReadOnly(LightingCube cube) {
+        return !this.readOnlyChunks.isEmpty() && this.readOnlyChunks.contains(cube.owner.chunkX, cube.owner.chunkZ);
+    }
+
+    private LightingCube getCube(int x, int y, int z) {
+        LightingChunk lc = this.lastChunk;
+        if (lc == null || lc.chunkX != (x >> 4) || lc.chunkZ != (z >> 4)) {
+            if ((lc = this.chunks.get(x >> 4, z >> 4)) == null) {
+                return null;
+            }
+            this.lastChunk = lc;
+        }
+        return lc.getCube(y >> 4);
+    }
+
+    /**
+     * Applies the light of all cubes whose light was changed to the world
+     *
+     * @return future completed with the number of sections whose light changed
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Integer> apply() {
+        final List<LightingCube> cubes = new ArrayList<LightingCube>(this.changedCubes);
+        final CompletableFuture<Boolean>[] futures = cubes.stream()
+                .map(c -> c.saveToChunk(false))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(futures).thenApplyAsync(v -> {
+            int numChanged = 0;
+            LongHashSet changedChunks = new LongHashSet();
+            for (int i = 0; i < futures.length; i++) {
+                if (futures[i].join().booleanValue()) {
+                    LightingChunk lc = cubes.get(i).owner;
+                    numChanged++;
+                    if (changedChunks.add(lc.chunkX, lc.chunkZ) && this.world.isChunkLoaded(lc.chunkX, lc.chunkZ)) {
+                        ChunkHandle.fromBukkit(this.world.getChunkAt(lc.chunkX, lc.chunkZ)).markDirty();
+                        WorldUtil.queueChunkSendLight(this.world, lc.chunkX, lc.chunkZ);
+                    }
+                }
+            }
+            return numChanged;
+        }, CommonUtil.getPluginExecutor(LightCleaner.plugin));
+    }
+
+    /**
+     * Queue of block positions with a light level, that grows as needed
+     */
+    private static final class PositionQueue {
+        private int[] data = new int[256];
+        private int head = 0;
+        private int tail = 0;
+        public int x, y, z, level;
+
+        public void add(int x, int y, int z, int level) {
+            if ((this.tail + 4) > this.data.length) {
+                if (this.head > 0) {
+                    System.arraycopy(this.data, this.head, this.data, 0, this.tail - this.head);
+                    this.tail -= this.head;
+                    this.head = 0;
+                }
+                if ((this.tail + 4) > this.data.length) {
+                    this.data = Arrays.copyOf(this.data, this.data.length * 2);
+                }
+            }
+            this.data[this.tail++] = x;
+            this.data[this.tail++] = y;
+            this.data[this.tail++] = z;
+            this.data[this.tail++] = level;
+        }
+
+        public boolean next() {
+            if (this.head == this.tail) {
+                this.head = this.tail = 0;
+                return false;
+            }
+            this.x = this.data[this.head++];
+            this.y = this.data[this.head++];
+            this.z = this.data[this.head++];
+            this.level = this.data[this.head++];
+            return true;
+        }
+    }
+}
@@ -16,6 +16,13 @@ import com.bergerkiller.bukkit.common.wrappers.LongHashSet.LongIterator;
 import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
 import com.bergerkiller.bukkit.lightcleaner.Localization;
 import com.bergerkiller.bukkit.lightcleaner.Permission;
+import com.bergerkiller.bukkit.lightcleaner.util.ChunkArea;
+import com.bergerkiller.bukkit.lightcleaner.util.ChunkRowBitmap;
+import com.bergerkiller.bukkit.lightcleaner.util.CleanStateLedger;
+import com.bergerkiller.bukkit.lightcleaner.util.CubeBufferPool;
+import com.bergerkiller.bukkit.lightcleaner.util.LightAuditReport;
+import com.bergerkiller.bukkit.lightcleaner.util.DelayClosedForcedChunk;
+import com.bergerkiller.bukkit.lightcleaner.util.FlatChunkSet;
 import com.bergerkiller.bukkit.lightcleaner.util.FlatRegionInfo;
 import com.bergerkiller.bukkit.lightcleaner.util.FlatRegionInfoMap;
 import com.bergerkiller.bukkit.lightcleaner.util.LightingUtil;
@@ -30,6 +37,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.logging.Level;
 
@@ -37,13 +46,24 @@ public class LightingService extends AsyncTask {
     private static final Set<RecipientWhenDone> recipientsForDone = new HashSet<RecipientWhenDone>();
     private static final LinkedList<LightingTask> tasks = new LinkedList<LightingTask>();
     private static final int PENDING_WRITE_INTERVAL = 10;
+    private static final int GC_LOG_INTERVAL = 50; // batches
     private static AsyncTask fixThread = null;
-    private static int taskChunkCount = 0;
+    private static volatile long taskChunkCount = 0;
     private static int taskCounter = 0;
     private static boolean pendingFileInUse = false;
     private static LightingTask currentTask;
     private static boolean paused = false;
     private static boolean lowOnMemory = false;
+    private static long chunksProcessed = 0;
+    private static long chunksSkippedUnchanged = 0;
+    private static long chunksHandedOver = 0;
+    private static long chunksReloaded = 0;
+    private static long gcTimeWhileProcessing = 0;
+    private static long gcTimeOfBatches = 0;
+    private static long chunksOfBatches = 0;
+    private static int gcLogBatchCount = 0;
+    private static CubeBufferPool cubeBufferPool = null;
+    private static LightingBorderSpill borderSpill = null;
 
     /**
      * Gets whether this service is currently processing something
@@ -73,6 +93,59 @@ public class LightingService extends AsyncTask {
         }
     }
 
+    /**
+     * Gets the pool of buffers used to store the block data of cubes while cleaning.
+     * The buffers are reused by the batches that follow one another, and the pool is
+     * cleared once all tasks are done.
+     *
+     * @return cube buffer pool
+     */
+    public static synchronized CubeBufferPool getCubeBufferPool() {
+        if (cubeBufferPool == null || cubeBufferPool.isOffHeap() != LightCleaner.offHeapCubeStorage) {
+            if (cubeBufferPool != null) {
+                cubeBufferPool.clear();
+            }
+            cubeBufferPool = new CubeBufferPool(LightCleaner.offHeapCubeStorage);
+        }
+        return cubeBufferPool;
+    }
+
+    /**
+     * Forgets all buffers of the cube buffer pool, freeing the memory they use
+     */
+    private static synchronized void clearCubeBufferPool() {
+        if (cubeBufferPool != null) {
+            cubeBufferPool.clear();
+            cubeBufferPool = null;
+        }
+    }
+
+    /**
+     * Gets the border spill storing the light at the borders of the batches of a world.
+     * It is shared by the batches that follow one another, and is closed once all tasks are done.
+     * When batches of another world are processed, the border spill is started over.
+     *
+     * @param world
+     * @return border spill, null if it could not be created
+     */
+    public static synchronized LightingBorderSpill getBorderSpill(World world) {
+        if (borderSpill == null || borderSpill.getWorld() != world) {
+            clearBorderSpill();
+            borderSpill = LightingBorderSpill.create(world);
+        }
+        return borderSpill;
+    }
+
+    /**
+     * Closes the border spill, deleting its scratch file
+     */
+    private static synchronized void clearBorderSpill() {
+        if (borderSpill != null) {
+            borderSpill.close();
+            borderSpill = null;
+        }
+    }
+
     /**
      * Gets whether execution is paused, and pending tasks are not being processed
      * 
@@ -178,6 +251,12 @@ public class LightingService extends AsyncTask {
             throw new IllegalArgumentException("Schedule arguments 'world' is null");
         }
 
+        // Auditing an entire world starts a new report of the faulty chunks of the world
+        // Auditing an area adds to the existing report, unless asked to reset it
+        if (args.getAudit() && (args.isEntireWorld() || args.getAuditReset())) {
+            LightAuditReport.start(args.getWorld());
+        }
+
         // If no chunks specified, entire world
         if (args.isEntireWorld()) {
             LightingTaskWorld task = new LightingTaskWorld(args.getWorld());
@@ -189,8 +268,9 @@ public class LightingService extends AsyncTask {
         // If less than 34x34 chunks are requested, schedule as one task
         // In that case, be sure to only schedule chunks that actually exist
         // This prevents generating new chunks as part of this command
-        LongHashSet chunks = args.getChunks();
-        if (chunks.size() <= (34*34)) {
+        ChunkArea area = args.getArea();
+        if (area.getChunkCount() <= (34*34)) {
+            LongHashSet chunks = area.toLongHashSet();
 
             LongHashSet chunks_filtered = new LongHashSet(chunks.size());
             Set<IntVector2> region_coords_filtered = new HashSet<IntVector2>();
@@ -223,22 +303,34 @@ public class LightingService extends AsyncTask {
                 if (LightCleaner.skipWorldEdge) {
                     // Remove coordinates of chunks that don't actually exist (avoid generating new chunks)
                     // isChunkAvailable isn't very fast, but fast enough below this threshold of chunks
-                    // To check for border chunks, we check that all 9 chunks are are available
-                    Map<IntVector2, Boolean> tmp = new HashMap<>();
+                    // To check for border chunks, we check that all chunks around it are available
+                    // The availability of every chunk is only checked once, and stored as rows of bits
+                    ChunkRowBitmap checked = new ChunkRowBitmap();
+                    ChunkRowBitmap available = new ChunkRowBitmap();
                     while (iter.hasNext()) {
                         long chunk = iter.next();
                         int cx = MathUtil.longHashMsw(chunk);
                         int cz = MathUtil.longHashLsw(chunk);
-
-                        boolean fully_loaded = true;
-                        for (int dx = -LightCleaner.WORLD_EDGE; dx <= LightCleaner.WORLD_EDGE && fully_loaded; dx++) {
-                            for (int dz = -LightCleaner.WORLD_EDGE; dz <= LightCleaner.WORLD_EDGE && fully_loaded; dz++) {
-                                IntVector2 pos = new IntVector2(cx + dx, cz + dz);
-                                fully_loaded &= tmp.computeIfAbsent(pos, p -> WorldUtil.isChunkAvailable(args.getWorld(), p.x, p.z)).booleanValue();
+                        for (int dx = -LightCleaner.WORLD_EDGE; dx <= LightCleaner.WORLD_EDGE; dx++) {
+                            for (int dz = -LightCleaner.WORLD_EDGE; dz <= LightCleaner.WORLD_EDGE; dz++) {
+                                int mx = cx + dx;
+                                int mz = cz + dz;
+                                if (!checked.get(mx, mz)) {
+                                    checked.set(mx, mz);
+                                    if (WorldUtil.isChunkAvailable(args.getWorld(), mx, mz)) {
+                                        available.set(mx, mz);
+                                    }
+                                }
                             }
                         }
+                    }
 
-                        if (fully_loaded) {
+                    iter = chunks.longIterator();
+                    while (iter.hasNext()) {
+                        long chunk = iter.next();
+                        int cx = MathUtil.longHashMsw(chunk);
+                        int cz = MathUtil.longHashLsw(chunk);
+                        if (available.containsArea(cx, cz, LightCleaner.WORLD_EDGE)) {
                             chunks_filtered.add(chunk);
                             region_coords_filtered.add(new IntVector2(
                                     WorldUtil.chunkToRegionIndex(cx),
@@ -287,57 +379,66 @@ public class LightingService extends AsyncTask {
             regions = FlatRegionInfoMap.create(args.getWorld());
         }
 
-        LongIterator iter = chunks.longIterator();
-        LongHashSet scheduledRegions = new LongHashSet();
-        while (iter.hasNext()) {
-            long first_chunk = iter.next();
-            int first_chunk_x = MathUtil.longHashMsw(first_chunk);
-            int first_chunk_z = MathUtil.longHashLsw(first_chunk);
-            FlatRegionInfo region = regions.getRegionAtChunk(first_chunk_x, first_chunk_z);
-            if (region == null || scheduledRegions.contains(region.rx, region.rz)) {
-                continue; // Does not exist or already scheduled
-            }
-            if (!region.containsChunk(first_chunk_x, first_chunk_z)) {
-                continue; // Chunk does not exist in world (not generated yet) or isn't loaded (loaded chunks only option)
+        // Go by all the regions that intersect with the area. This only depends on the
+        // number of regions, not on the number of chunks in the area.
+        if (area.getChunkCount() == 0) {
+            return;
+        }
+        int minRx = WorldUtil.chunkToRegionIndex(area.getMinChunkX());
+        int minRz = WorldUtil.chunkToRegionIndex(area.getMinChunkZ());
+        int maxRx = WorldUtil.chunkToRegionIndex(area.getMaxChunkX());
+        int maxRz = WorldUtil.chunkToRegionIndex(area.getMaxChunkZ());
+        long[] regionKeys = new long[regions.getRegionCount()];
+        int regionCount = 0;
+        for (FlatRegionInfo region : regions.getRegions()) {
+            if (region.rx >= minRx && region.rz >= minRz && region.rx <= maxRx && region.rz <= maxRz &&
+                area.intersects(region.cx, region.cz, region.cx + 31, region.cz + 31))
+            {
+                regionKeys[regionCount++] = MathUtil.longHashToLong(region.rx, region.rz);
             }
+        }
 
-            // Collect all the region Y coordinates used for this region and the neighbouring regions
-            // This makes sure we find all chunk slices we might need on an infinite height world
-            int[] region_y_coordinates = regions.getRegionYCoordinatesSelfAndNeighbours(region);
+        // Regions are visited in a serpentine order, so that batches processed one after another
+        // are next to each other. Chunks they share are then handed over, instead of loaded again.
+        regionKeys = Arrays.copyOf(regionKeys, regionCount);
+        FlatRegionInfoMap.sortSerpentine(regionKeys);
+        LightingTaskBatch previousTask = null;
+        for (long regionKey : regionKeys) {
+            FlatRegionInfo region = regions.getRegion(MathUtil.longHashMsw(regionKey), MathUtil.longHashLsw(regionKey));
 
             // Collect all chunks to process for this region.
             // This is an union of the 34x34 area of chunks and the region file data set
-            LongHashSet buffer = new LongHashSet();
-            int rdx, rdz;
-            for (rdx = -1; rdx < 33; rdx++) {
-                for (rdz = -1; rdz < 33; rdz++) {
-                    int cx = region.cx + rdx;
-                    int cz = region.cz + rdz;
-                    long chunk_key = MathUtil.longHashToLong(cx, cz);
-                    if (!chunks.contains(chunk_key)) {
-                        continue;
+            // With skipWorldEdge, only chunks whose neighbours all exist are included
+            // When the area covers the full 34x34 window, no per-chunk check is needed
+            boolean containsAll = area.containsAll(region.cx - 1, region.cz - 1, region.cx + 32, region.cz + 32);
+            FlatChunkSet.Builder buffer = FlatChunkSet.builder(region.cx - 1, region.cz - 1, 34, 34);
+            long[] rows = regions.getChunkRows(region.cx - 1, region.cz - 1, 34, 34, LightCleaner.skipWorldEdge);
+            for (int rdz = 0; rdz < rows.length; rdz++) {
+                long row = rows[rdz];
+                while (row != 0L) {
+                    int rdx = Long.numberOfTrailingZeros(row);
+                    row &= row - 1L;
+                    int cx = region.cx - 1 + rdx;
+                    int cz = region.cz - 1 + rdz;
+                    if (containsAll || area.contains(cx, cz)) {
+                        buffer.add(cx, cz);
                     }
-
-                    if (LightCleaner.skipWorldEdge) {
-                        // Check the chunk and the surrounding chunks are all present
-                        if (!regions.containsChunkAndNeighbours(cx, cz)) {
-                            continue;
-                        }
-                    } else {
-                        // Only check chunk
-                        if (!regions.containsChunk(cx, cz)) {
-                            continue;
-                        }
-                    }
-                    buffer.add(chunk_key);
                 }
             }
 
             // Schedule the region
-            if (!buffer.isEmpty()) {
-                scheduledRegions.add(region.rx, region.rz);
-                LightingTaskBatch task = new LightingTaskBatch(args.getWorld(), region_y_coordinates, buffer);
+            if (buffer.size() > 0) {
+                // Collect all the region Y coordinates used for this region and the neighbouring regions
+                // This makes sure we find all chunk slices we might need on an infinite height world
+                int[] region_y_coordinates = regions.getRegionYCoordinatesSelfAndNeighbours(region);
+
+                LightingTaskBatch task = new LightingTaskBatch(args.getWorld(), region_y_coordinates, buffer.build());
                 task.applyOptions(args);
+                task.setBorderSpillEnabled(LightCleaner.borderSpill);
+                if (previousTask != null) {
+                    previousTask.setNextBatch(task);
+                }
+                previousTask = task;
                 schedule(task);
             }
         }
@@ -365,17 +466,13 @@ public class LightingService extends AsyncTask {
         if (!new CompressedDataReader(saveFile) {
             @Override
             public void read(DataInputStream stream) throws IOException {
-                int version = 1;
-                if (stream.readInt() >= 0) {
-                    // Before version byte was added
+                int version = PendingLightFile.readVersion(stream);
+                if (version == -1) {
                     LightCleaner.plugin.log(Level.WARNING, "PendingLight.dat stores an older data format that is not supported");
                     return;
-                } else {
-                    version = stream.readByte() & 0xFF;
-                    if (version != 2) {
-                        LightCleaner.plugin.log(Level.WARNING, "PendingLight.dat stores an older or newer data format that is not supported");
-                        return;
-                    }
+                } else if (!PendingLightFile.isSupported(version)) {
+                    LightCleaner.plugin.log(Level.WARNING, "PendingLight.dat stores an older or newer data format that is not supported");
+                    return;
                 }
 
                 // Empty file? Strange, but ignore it then
@@ -385,44 +482,41 @@ public class LightingService extends AsyncTask {
                 }
                 LightCleaner.plugin.log(Level.INFO, "Continuing previously saved lighting operations (" + count + ")...");
                 for (int c = 0; c < count; c++) {
-                    String worldName = stream.readUTF();
-                    World world = Bukkit.getWorld(worldName);
-                    if (world == null && !WorldUtil.isLoadableWorld(worldName)) {
-                        // Not loadable. Ignore the data, skip it entirely.
+                    PendingLightFile.Entry entry = PendingLightFile.readEntry(stream, version,
+                            name -> Bukkit.getWorld(name) != null || WorldUtil.isLoadableWorld(name));
+                    if (entry == null) {
+                        LightCleaner.plugin.log(Level.WARNING, "PendingLight.dat stores an unsupported type of task");
+                        return;
+                    }
+                    final String worldName = entry.worldName;
+                    if (!entry.isLoaded) {
+                        // Not loadable. Data was skipped.
                         missingWorlds.add(worldName);
-
-                        final int regionYCoordinateCount = stream.readInt();
-                        stream.skip(regionYCoordinateCount * (Integer.SIZE / Byte.SIZE));
-                        final int chunkCount = stream.readInt();
-                        stream.skip(chunkCount * (Long.SIZE / Byte.SIZE));
                         continue;
                     }
 
-                    // Load all the region coordinates
-                    final int regionYCoordinateCount = stream.readInt();
-                    final int[] regions = new int[regionYCoordinateCount];
-                    for (int i = 0; i < regionYCoordinateCount; i++) {
-                        regions[i] = stream.readInt();
-                    }
-
-                    // Load all the coordinates
-                    final int chunkCount = stream.readInt();
-                    final long[] coords = new long[chunkCount];
-                    for (int i = 0; i < chunkCount; i++) {
-                        coords[i] = stream.readLong();
+                    final PendingTaskFactory factory;
+                    if (entry.type == PendingLightFile.TYPE_WORLD) {
+                        final long[] regionCursor = entry.regionCursor;
+                        factory = w -> new LightingTaskWorld(w, regionCursor);
+                    } else {
+                        final int[] regions = entry.regionYCoordinates;
+                        final FlatChunkSet coords = entry.chunks;
+                        factory = w -> new LightingTaskBatch(w, regions, coords);
                     }
 
                     // If loaded, schedule right away
                     // Otherwise, wait until next tick and try it then
+                    World world = Bukkit.getWorld(worldName);
                     if (world != null) {
-                        schedule(new LightingTaskBatch(world, regions, coords));
+                        schedule(factory.create(world));
                     } else {
                         new Task(LightCleaner.plugin) {
                             @Override
                             public void run() {
                                 World world = Bukkit.getWorld(worldName);
                                 if (world != null) {
-                                    schedule(new LightingTaskBatch(world, regions, coords));
+                                    schedule(factory.create(world));
                                 } else {
                                     LightCleaner.plugin.log(Level.WARNING, "Removed pending lighting operations for world " + worldName);
                                 }
@@ -457,16 +551,28 @@ public class LightingService extends AsyncTask {
             }
             // Write the data to a temporary save file
             final File tmpFile = new File(saveFile.toString() + ".tmp");
-            final List<LightingTaskBatch> batches = new ArrayList<LightingTaskBatch>(tasks.size());
+            final List<LightingTask> tasksToSave = new ArrayList<LightingTask>(tasks.size());
             synchronized (tasks) {
                 if (tmpFile.exists() && !tmpFile.delete()) {
                     LightCleaner.plugin.log(Level.WARNING, "Failed to delete temporary pending light file. No states saved.");
                     return;
                 }
-                // Obtain all the batches to save
+                // Obtain all the batches and world tasks to save
+                // Include the task currently being processed, which is no longer in the queue
+                // For a world task this stores the regions it has yet to process
+                final LightingTask current = currentTask;
+                if (current != null && !tasks.contains(current)) {
+                    if ((current instanceof LightingTaskBatch || current instanceof LightingTaskWorld) &&
+                        current.canSave() && LightCleaner.isWorldSaveEnabled(current.getWorld()))
+                    {
+                        tasksToSave.add(current);
+                    }
+                }
                 for (LightingTask task : tasks) {
-                    if (task instanceof LightingTaskBatch && task.canSave() && LightCleaner.isWorldSaveEnabled(task.getWorld())) {
-                        batches.add((LightingTaskBatch) task);
+                    if ((task instanceof LightingTaskBatch || task instanceof LightingTaskWorld) &&
+                        task.canSave() && LightCleaner.isWorldSaveEnabled(task.getWorld()))
+                    {
+                        tasksToSave.add(task);
                     }
                 }
             }
@@ -474,23 +580,17 @@ public class LightingService extends AsyncTask {
             if (new CompressedDataWriter(tmpFile) {
                 @Override
                 public void write(DataOutputStream stream) throws IOException {
-                    stream.writeInt(-1); // Legacy version
-                    stream.writeByte(2); // Version ID
-                    stream.writeInt(batches.size());
-                    for (LightingTaskBatch batch : batches) {
-                        // Write world name
-                        stream.writeUTF(batch.getWorld().getName());
-                        // Write the range of Y-region coordinates to check
-                        int[] region_y_coordinates = batch.getRegionYCoordinates();
-                        stream.writeInt(region_y_coordinates.length);
-                        for (int region : region_y_coordinates) {
-                            stream.writeInt(region);
-                        }
-                        // Write all chunks
-                        long[] chunks = batch.getChunks();
-                        stream.writeInt(chunks.length);
-                        for (long chunk : chunks) {
-                            stream.writeLong(chunk);
+                    PendingLightFile.writeHeader(stream, tasksToSave.size());
+                    for (LightingTask task : tasksToSave) {
+                        if (task instanceof LightingTaskWorld) {
+                            // Write the cursor of regions still to process
+                            PendingLightFile.writeWorld(stream, task.getWorld().getName(),
+                                    ((LightingTaskWorld) task).getRemainingRegions());
+                        } else {
+                            // Write all chunks as an origin plus chunk bitmap
+                            LightingTaskBatch batch = (LightingTaskBatch) task;
+                            PendingLightFile.writeBatch(stream, batch.getWorld().getName(),
+                                    batch.getRegionYCoordinates(), batch.getChunkSet());
                         }
                     }
                 }
@@ -516,25 +616,24 @@ public class LightingService extends AsyncTask {
      * @param world
      */
     public static void clearTasksForWorld(World world) {
-        synchronized (tasks) {
-            Iterator<LightingTask> iter = tasks.iterator();
-            while (iter.hasNext()) {
-                if (iter.next().getWorld() == world) {
-                    iter.remove();
-                }
-            }
-        }
+        removeTasksForWorld(world);
 
         final LightingTask current = currentTask;
         if (current != null && current.getWorld() == world) {
             current.abort();
         }
 
+        removeTasksForWorld(world);
+    }
+
+    private static void removeTasksForWorld(World world) {
         synchronized (tasks) {
             Iterator<LightingTask> iter = tasks.iterator();
             while (iter.hasNext()) {
-                if (iter.next().getWorld() == world) {
+                LightingTask task = iter.next();
+                if (task.getWorld() == world) {
                     iter.remove();
+                    taskChunkCount = Math.max(0L, taskChunkCount - task.getChunkCount());
                 }
             }
         }
@@ -546,6 +645,7 @@ public class LightingService extends AsyncTask {
     public static void clearTasks() {
         synchronized (tasks) {
             tasks.clear();
+            taskChunkCount = 0;
         }
         final LightingTask current = currentTask;
         if (current != null) {
@@ -553,9 +653,9 @@ public class LightingService extends AsyncTask {
         }
         synchronized (tasks) {
             tasks.clear();
+            taskChunkCount = 0;
         }
         currentTask = null;
-        taskChunkCount = 0;
     }
 
     /**
@@ -572,7 +672,7 @@ public class LightingService extends AsyncTask {
         }
         // Clear lighting tasks
         synchronized (tasks) {
-            if (current != null) {
+            if (current != null && !tasks.contains(current)) {
                 tasks.addFirst(current);
             }
             if (!tasks.isEmpty()) {
@@ -582,6 +682,8 @@ public class LightingService extends AsyncTask {
             savePendingBatches();
             clearTasks();
         }
+        clearCubeBufferPool();
+        clearBorderSpill();
     }
 
     /**
@@ -590,8 +692,23 @@ public class LightingService extends AsyncTask {
      * @return faulty chunk count
      */
     public static int getChunkFaults() {
+        // The chunk count of queued tasks is kept up to date as they are queued and removed.
+        // Tasks do not change their count while queued: world tasks only update their
+        // estimate while processed, and batches only once they start processing.
         final LightingTask current = currentTask;
-        return taskChunkCount + (current == null ? 0 : current.getChunkCount());
+        long count = taskChunkCount + (current == null ? 0 : current.getChunkCount());
+        return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    /**
+     * Gets the amount of chunks queued to be cleaned, not counting the task being processed.
+     * Unlike {@link #getChunkFaults()}, this does not ask the current task for its progress,
+     * so it is cheap to check often.
+     *
+     * @return queued chunk count
+     */
+    public static long getQueuedChunkCount() {
+        return taskChunkCount;
     }
 
     @Override
@@ -613,10 +730,32 @@ public class LightingService extends AsyncTask {
 
         synchronized (tasks) {
             currentTask = tasks.poll();
+            if (currentTask == null) {
+                taskChunkCount = 0;
+            } else {
+                taskChunkCount = Math.max(0L, taskChunkCount - currentTask.getChunkCount());
+            }
         }
         if (currentTask == null) {
             // No more tasks, end this thread
             // Messages
+            if (chunksSkippedUnchanged > 0) {
+                LightCleaner.plugin.log(Level.INFO, "Cleaned " + chunksProcessed + " chunks, skipped " +
+                        chunksSkippedUnchanged + " chunks unchanged since they were last cleaned");
+            }
+            if (chunksHandedOver > 0 || chunksReloaded > 0) {
+                LightCleaner.plugin.log(Level.INFO, "Handed over " + chunksHandedOver + " loaded chunks between batches, " +
+                        chunksReloaded + " chunks had to be loaded again");
+            }
+            if (chunksProcessed > 0) {
+                CubeBufferPool pool = getCubeBufferPool();
+                LightCleaner.plugin.log(Level.INFO, "Garbage collection took " + gcTimeWhileProcessing + "ms while cleaning " +
+                        chunksProcessed + " chunks using " + pool.getName() + " cube storage. Cube buffers allocated: " +
+                        (pool.getAllocatedBytes() >> 20) + "MB, reused: " + (pool.getReusedBytes() >> 20) + "MB");
+            }
+            clearCubeBufferPool();
+            clearBorderSpill();
+            DelayClosedForcedChunk.setLowMemory(false);
             synchronized (recipientsForDone) {
                 for (RecipientWhenDone recipient : recipientsForDone) {
                     CommandSender recip = recipient.player_name == null ?
@@ -624,14 +763,28 @@ public class LightingService extends AsyncTask {
                     if (recip != null) {
                         String timeStr = LightingUtil.formatDuration(System.currentTimeMillis() - recipient.timeStarted);
                         Localization.COMPLETED.message(recip, timeStr);
+                        if (chunksSkippedUnchanged > 0) {
+                            Localization.COMPLETED_SKIPPED.message(recip,
+                                    Long.toString(chunksProcessed), Long.toString(chunksSkippedUnchanged));
+                        }
                     }
                 }
                 recipientsForDone.clear();
             }
+            chunksProcessed = 0;
+            chunksSkippedUnchanged = 0;
+            chunksHandedOver = 0;
+            chunksReloaded = 0;
+            gcTimeWhileProcessing = 0;
+            gcTimeOfBatches = 0;
+            chunksOfBatches = 0;
+            gcLogBatchCount = 0;
             // Stop task and abort
             taskCounter = 0;
             setProcessing(false);
             savePendingBatches();
+            CleanStateLedger.saveAll();
+            LightAuditReport.saveAll();
             return;
         } else {
             // Write to file?
@@ -641,22 +794,33 @@ public class LightingService extends AsyncTask {
                 new AsyncTask() {
                     public void run() {
                         savePendingBatches();
+                        CleanStateLedger.saveAll();
                     }
                 }.start();
 
                 // Save the world of the current task being processed
-                if (LightCleaner.isWorldSaveEnabled(currentTask.getWorld())) {
+                // Audits do not change the chunks, so there is nothing to save
+                if (!currentTask.isAudit() && LightCleaner.isWorldSaveEnabled(currentTask.getWorld())) {
                     WorldUtil.saveToDisk(currentTask.getWorld());
                 }
             }
-            // Subtract task from the task count
-            taskChunkCount -= currentTask.getChunkCount();
             // Process the task
+            // Time spent garbage collecting meanwhile is measured, to compare cube storage backends
+            long gcTimeBefore = getTotalGCTime();
             try {
                 currentTask.process();
             } catch (Throwable t) {
                 LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to process task: " + currentTask.getStatus(), t);
             }
+            long gcTime = Math.max(0L, getTotalGCTime() - gcTimeBefore);
+            gcTimeWhileProcessing += gcTime;
+            if (currentTask instanceof LightingTaskBatch) {
+                chunksProcessed += ((LightingTaskBatch) currentTask).getProcessedChunkCount();
+                chunksSkippedUnchanged += ((LightingTaskBatch) currentTask).getSkippedChunkCount();
+                chunksHandedOver += ((LightingTaskBatch) currentTask).getHandedOverChunkCount();
+                chunksReloaded += ((LightingTaskBatch) currentTask).getReloadedChunkCount();
+                logBatchGCTime(gcTime, ((LightingTaskBatch) currentTask).getProcessedChunkCount());
+            }
 
             // Protection against 'out of memory' issues
             // Every time a lighting task is done, we leave behind a very large amount of data
@@ -666,7 +830,14 @@ public class LightingService extends AsyncTask {
             runtime.gc();
 
             // If we exceed the limit, proceed to take further measures
+            // Chunks closed while low on memory are released sooner, until enough memory is available again
             if (calcAvailableMemory(runtime) >= LightCleaner.minFreeMemory) {
+                DelayClosedForcedChunk.setLowMemory(false);
+                return;
+            }
+
+            // Release the chunks kept loaded after processing them first, which might be enough
+            if (releaseHeldChunks(runtime)) {
                 return;
             }
 
@@ -683,8 +854,10 @@ public class LightingService extends AsyncTask {
                     // Concurrent modification nonsense
                 }
             }
+            // Worlds being audited are left alone, the audit does not change their chunks
+            Set<World> auditedWorlds = getAuditedWorlds();
             for (World world : worlds) {
-                if (LightCleaner.isWorldSaveEnabled(world)) {
+                if (LightCleaner.isWorldSaveEnabled(world) && !auditedWorlds.contains(world)) {
                     WorldUtil.saveToDisk(world);
                 }
             }
@@ -715,6 +888,88 @@ public class LightingService extends AsyncTask {
         }
     }
 
+    /**
+     * Gets the worlds that have an audit task queued or being processed
+     *
+     * @return audited worlds
+     */
+    private static Set<World> getAuditedWorlds() {
+        Set<World> worlds = new HashSet<World>();
+        synchronized (tasks) {
+            LightingTask current = currentTask;
+            if (current != null && current.isAudit()) {
+                worlds.add(current.getWorld());
+            }
+            for (LightingTask task : tasks) {
+                if (task.isAudit()) {
+                    worlds.add(task.getWorld());
+                }
+            }
+        }
+        return worlds;
+    }
+
+    /**
+     * Releases the chunks kept loaded by the {@link DelayClosedForcedChunk} after processing them,
+     * and waits for them to be closed on the main thread. This might free enough memory to
+     * continue, without saving all worlds.
+     *
+     * @param runtime
+     * @return True if enough memory is available afterwards
+     */
+    private boolean releaseHeldChunks(Runtime runtime) {
+        int held = DelayClosedForcedChunk.getHeldCount();
+        int released = DelayClosedForcedChunk.setLowMemory(true);
+        if (released == 0) {
+            return false;
+        }
+
+        LightCleaner.plugin.log(Level.WARNING, "Releasing " + released + " of " + held + " chunks kept loaded to free some memory...");
+        for (int n = 0; n < 100 && DelayClosedForcedChunk.getExpiredCount() > 0 && !this.isStopRequested(); n++) {
+            sleep(100);
+        }
+        runtime.gc();
+        long free = calcAvailableMemory(runtime);
+        if (free >= LightCleaner.minFreeMemory) {
+            LightCleaner.plugin.log(Level.WARNING, "Chunks released. Free memory: " + (free >> 20) + "MB. Continueing...");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds up the time spent garbage collecting while processing a batch, and logs it
+     * every {@link #GC_LOG_INTERVAL} batches together with the cube storage used
+     *
+     * @param gcTime Garbage collection time while processing the batch, in milliseconds
+     * @param chunkCount Number of chunks the batch processed
+     */
+    private static void logBatchGCTime(long gcTime, int chunkCount) {
+        gcTimeOfBatches += gcTime;
+        chunksOfBatches += chunkCount;
+        if (++gcLogBatchCount >= GC_LOG_INTERVAL) {
+            LightCleaner.plugin.log(Level.INFO, "Garbage collection took " + gcTimeOfBatches + "ms over the last " +
+                    gcLogBatchCount + " batches (" + chunksOfBatches + " chunks) using " +
+                    getCubeBufferPool().getName() + " cube storage");
+            gcTimeOfBatches = 0;
+            chunksOfBatches = 0;
+            gcLogBatchCount = 0;
+        }
+    }
+
+    /**
+     * Gets the total time spent garbage collecting since the JVM started
+     *
+     * @return garbage collection time in milliseconds
+     */
+    private static long getTotalGCTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0L, bean.getCollectionTime());
+        }
+        return total;
+    }
+
     private static long calcAvailableMemory(Runtime runtime) {
         long max = runtime.maxMemory();
         if (max == Long.MAX_VALUE) {
@@ -728,13 +983,18 @@ public class LightingService extends AsyncTask {
     public static class ScheduleArguments {
         private World world;
         private String worldName;
-        private LongHashSet chunks;
+        private ChunkArea area;
         private boolean debugMakeCorrupted = false;
         private boolean loadedChunksOnly = false;
         private boolean forceSaving = false;
+        private boolean audit = false;
+        private boolean auditReset = false;
+        private boolean seams = false;
         private boolean silent = false;
         private int radius = Bukkit.getServer().getViewDistance();
         private boolean radiusSpecified = false;
+        private int minBlockY = Integer.MIN_VALUE;
+        private int maxBlockY = Integer.MAX_VALUE;
 
         public boolean getDebugMakeCorrupted() {
             return this.debugMakeCorrupted;
@@ -748,12 +1008,63 @@ public class LightingService extends AsyncTask {
             return this.forceSaving;
         }
 
+        /**
+         * Gets whether the chunks are only audited. The light is computed, but instead of
+         * applying it, the chunks with light different from it are recorded in the
+         * {@link LightAuditReport} of the world.
+         *
+         * @return True if auditing
+         */
+        public boolean getAudit() {
+            return this.audit;
+        }
+
+        /**
+         * Gets whether auditing starts a new {@link LightAuditReport}, discarding the chunks
+         * found to be faulty before. Auditing an entire world always does.
+         *
+         * @return True if the audit report is reset
+         */
+        public boolean getAuditReset() {
+            return this.auditReset;
+        }
+
+        /**
+         * Gets whether only the light at the borders of chunks is repaired. The light stored
+         * in the chunks is kept, and only blocks at chunk borders whose light does not match
+         * the light around them are relit.
+         *
+         * @return True if only repairing seams
+         */
+        public boolean getSeams() {
+            return this.seams;
+        }
+
         public int getRadius() {
             return this.radius;
         }
 
         public boolean isEntireWorld() {
-            return this.chunks == null;
+            return this.area == null;
+        }
+
+        /**
+         * Gets whether only blocks within a range of y-coordinates changed.
+         * Then only the light within 15 blocks of this range is cleaned, and below
+         * it when sky light reaching below the range changed.
+         *
+         * @return True if a block y-coordinate range is set
+         */
+        public boolean hasBlockYRange() {
+            return this.minBlockY != Integer.MIN_VALUE || this.maxBlockY != Integer.MAX_VALUE;
+        }
+
+        public int getMinBlockY() {
+            return this.minBlockY;
+        }
+
+        public int getMaxBlockY() {
+            return this.maxBlockY;
         }
 
         /**
@@ -774,8 +1085,24 @@ public class LightingService extends AsyncTask {
             return this.worldName;
         }
 
+        /**
+         * Gets the area of chunks to clean
+         *
+         * @return chunk area, null if the entire world is cleaned
+         */
+        public ChunkArea getArea() {
+            return this.area;
+        }
+
+        /**
+         * Gets all the chunks to clean. For rectangle and circle areas,
+         * this creates a set with every chunk of the area, so prefer
+         * using {@link #getArea()} instead.
+         *
+         * @return chunks, null if the entire world is cleaned
+         */
         public LongHashSet getChunks() {
-            return this.chunks;
+            return (this.area == null) ? null : this.area.toLongHashSet();
         }
 
         /**
@@ -804,7 +1131,7 @@ public class LightingService extends AsyncTask {
         }
 
         public ScheduleArguments setEntireWorld() {
-            this.chunks = null;
+            this.area = null;
             return this;
         }
 
@@ -823,11 +1150,50 @@ public class LightingService extends AsyncTask {
             return this;
         }
 
+        public ScheduleArguments setAudit(boolean audit) {
+            this.audit = audit;
+            return this;
+        }
+
+        public ScheduleArguments setAuditReset(boolean auditReset) {
+            this.auditReset = auditReset;
+            return this;
+        }
+
+        public ScheduleArguments setSeams(boolean seams) {
+            this.seams = seams;
+            return this;
+        }
+
         public ScheduleArguments setSilent(boolean silent) {
             this.silent = silent;
             return this;
         }
 
+        /**
+         * Sets the range of block y-coordinates in which blocks changed
+         *
+         * @param minBlockY Minimum block y-coordinate (inclusive)
+         * @param maxBlockY Maximum block y-coordinate (inclusive)
+         * @return this
+         */
+        public ScheduleArguments setBlockYRange(int minBlockY, int maxBlockY) {
+            this.minBlockY = Math.min(minBlockY, maxBlockY);
+            this.maxBlockY = Math.max(minBlockY, maxBlockY);
+            return this;
+        }
+
+        /**
+         * Clears the range of block y-coordinates, so the full height is cleaned
+         *
+         * @return this
+         */
+        public ScheduleArguments setFullHeight() {
+            this.minBlockY = Integer.MIN_VALUE;
+            this.maxBlockY = Integer.MAX_VALUE;
+            return this;
+        }
+
         public ScheduleArguments setRadius(int radius) {
             this.radius = radius;
             this.radiusSpecified = true;
@@ -841,16 +1207,25 @@ public class LightingService extends AsyncTask {
 
         public ScheduleArguments setChunksAround(int middleX, int middleZ, int radius) {
             this.setRadius(radius);
+            return this.setArea(ChunkArea.rectangle(middleX - radius, middleZ - radius, middleX + radius, middleZ + radius));
+        }
 
-            LongHashSet chunks_hashset = new LongHashSet((2*radius)*(2*radius));
-            for (int a = -radius; a <= radius; a++) {
-                for (int b = -radius; b <= radius; b++) {
-                    int cx = middleX + a;
-                    int cz = middleZ + b;
-                    chunks_hashset.add(cx, cz);
-                }
-            }
-            return this.setChunks(chunks_hashset);
+        public ScheduleArguments setChunksInCircle(Location location, int radius) {
+            this.setWorld(location.getWorld());
+            return this.setChunksInCircle(location.getBlockX()>>4, location.getBlockZ()>>4, radius);
+        }
+
+        /**
+         * Sets the chunks to a circle area of chunks around a middle chunk
+         *
+         * @param middleX Chunk x-coordinate of the middle chunk
+         * @param middleZ Chunk z-coordinate of the middle chunk
+         * @param radius Radius of the circle in chunks
+         * @return this
+         */
+        public ScheduleArguments setChunksInCircle(int middleX, int middleZ, int radius) {
+            this.setRadius(radius);
+            return this.setArea(ChunkArea.circle(middleX, middleZ, radius));
         }
 
         /**
@@ -865,19 +1240,10 @@ public class LightingService extends AsyncTask {
          * @return this
          */
         public ScheduleArguments setChunkFromTo(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
-            int num_dx = (maxChunkX - minChunkX) + 1;
-            int num_dz = (maxChunkZ - minChunkZ) + 1;
-            if (num_dx <= 0 || num_dz <= 0) {
+            if (minChunkX > maxChunkX || minChunkZ > maxChunkZ) {
                 return this.setChunks(new LongHashSet()); // nothing
             }
-
-            LongHashSet chunks_hashset = new LongHashSet(num_dx * num_dz);
-            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
-                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
-                    chunks_hashset.add(chunkX, chunkZ);
-                }
-            }
-            return this.setChunks(chunks_hashset);
+            return this.setArea(ChunkArea.rectangle(minChunkX, minChunkZ, maxChunkX, maxChunkZ));
         }
 
         public ScheduleArguments setChunks(Collection<IntVector2> chunks) {
@@ -889,7 +1255,18 @@ public class LightingService extends AsyncTask {
         }
 
         public ScheduleArguments setChunks(LongHashSet chunks) {
-            this.chunks = chunks;
+            this.area = ChunkArea.of(chunks);
+            return this;
+        }
+
+        /**
+         * Sets the area of chunks to clean
+         *
+         * @param area Chunk area
+         * @return this
+         */
+        public ScheduleArguments setArea(ChunkArea area) {
+            this.area = area;
             return this;
         }
 
@@ -929,6 +1306,7 @@ public class LightingService extends AsyncTask {
             {
                 // Parsing
                 boolean entireWorld = false;
+                boolean circle = false;
                 for (int i = 0; i < args.length; i++) {
                     String arg = args[i];
                     if (arg.equalsIgnoreCase("silent")) {
@@ -939,6 +1317,25 @@ public class LightingService extends AsyncTask {
                         setLoadedChunksOnly(true);
                     } else if (arg.equalsIgnoreCase("force")) {
                         setForceSaving(true);
+                    } else if (arg.equalsIgnoreCase("audit")) {
+                        setAudit(true);
+                    } else if (arg.equalsIgnoreCase("reset")) {
+                        setAuditReset(true);
+                    } else if (arg.equalsIgnoreCase("seams")) {
+                        setSeams(true);
+                    } else if (arg.equalsIgnoreCase("circle")) {
+                        circle = true;
+                    } else if (arg.length() > 2 && arg.substring(0, 2).equalsIgnoreCase("y=")) {
+                        // y=<y> or y=<min>..<max>
+                        String range = arg.substring(2);
+                        int sep = range.indexOf("..");
+                        String minStr = (sep == -1) ? range : range.substring(0, sep);
+                        String maxStr = (sep == -1) ? range : range.substring(sep + 2);
+                        if (!ParseUtil.isNumeric(minStr) || !ParseUtil.isNumeric(maxStr)) {
+                            sender.sendMessage(ChatColor.RED + "Invalid y-range '" + range + "', use y=<min>..<max>");
+                            return false;
+                        }
+                        this.setBlockYRange(ParseUtil.parseInt(minStr, 0), ParseUtil.parseInt(maxStr, 0));
                     } else if (i == 0 && arg.equalsIgnoreCase("world")) {
                         entireWorld = true;
                     } else if (entireWorld) {
@@ -1004,6 +1401,8 @@ public class LightingService extends AsyncTask {
                     }
 
                     this.setEntireWorld();
+                } else if (circle) {
+                    this.setChunksInCircle(getLocationOfSender(sender), this.getRadius());
                 } else {
                     this.setChunksAround(getLocationOfSender(sender), this.getRadius());
                 }
@@ -1024,6 +1423,10 @@ public class LightingService extends AsyncTask {
                 message += "the world " + this.getWorldName() + " ";
                 if (this.getDebugMakeCorrupted()) {
                     message += "is now being corrupted, this may take very long!";
+                } else if (this.getAudit()) {
+                    message += "is now being audited, this may take very long!";
+                } else if (this.getSeams()) {
+                    message += "is now having the light at chunk borders fixed, this may take long!";
                 } else {
                     message += "is now being fixed, this may take very long!";
                 }
@@ -1036,6 +1439,12 @@ public class LightingService extends AsyncTask {
                 // Radius logic
                 int n = (getRadius() * 2 + 1);
                 String part = n + " X " + n;
+                if (this.area instanceof ChunkArea.Circle) {
+                    part += " [circle]";
+                }
+                if (this.hasBlockYRange()) {
+                    part += " [y=" + this.getMinBlockY() + ".." + this.getMaxBlockY() + "]";
+                }
                 if (this.getLoadedChunksOnly()) {
                     part += " [loaded]";
                 }
@@ -1045,6 +1454,10 @@ public class LightingService extends AsyncTask {
 
                 if (this.getDebugMakeCorrupted()) {
                     Localization.AREA_CORRUPT.message(sender, part);
+                } else if (this.getAudit()) {
+                    Localization.AREA_AUDIT.message(sender, part);
+                } else if (this.getSeams()) {
+                    Localization.AREA_SEAMS.message(sender, part);
                 } else {
                     Localization.AREA_FIX.message(sender, part);
                 }
@@ -1073,6 +1486,11 @@ public class LightingService extends AsyncTask {
         }
     }
 
+    @FunctionalInterface
+    private static interface PendingTaskFactory {
+        LightingTask create(World world);
+    }
+
     private static class RecipientWhenDone {
         public final String player_name;
         public final long timeStarted;
@@ -54,6 +54,13 @@ public interface LightingTask {
      */
     boolean canSave();
 
+    /**
+     * Whether this task only audits the light, without changing the chunks
+     *
+     * @return True if this is an audit task
+     */
+    boolean isAudit();
+
     /**
      * Loads additional options
      */
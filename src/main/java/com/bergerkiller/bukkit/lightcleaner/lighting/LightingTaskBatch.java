@@ -1,23 +1,31 @@
 package com.bergerkiller.bukkit.lightcleaner.lighting;
 
-import com.bergerkiller.bukkit.common.bases.IntVector2;
 import com.bergerkiller.bukkit.common.chunk.ForcedChunk;
 import com.bergerkiller.bukkit.common.utils.CommonUtil;
 import com.bergerkiller.bukkit.common.utils.LogicUtil;
 import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
 import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
 import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
 import com.bergerkiller.bukkit.lightcleaner.lighting.LightingService.ScheduleArguments;
+import com.bergerkiller.bukkit.lightcleaner.util.CleanStateLedger;
+import com.bergerkiller.bukkit.lightcleaner.util.CubeStorage;
+import com.bergerkiller.bukkit.lightcleaner.util.DelayClosedForcedChunk;
+import com.bergerkiller.bukkit.lightcleaner.util.FlatChunkSet;
+import com.bergerkiller.bukkit.lightcleaner.util.LightAuditReport;
 import com.bergerkiller.mountiplex.reflection.SafeMethod;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
-import java.util.stream.Stream;
+import java.util.stream.Collectors;
 
 import org.bukkit.Chunk;
 import org.bukkit.World;
@@ -29,49 +37,47 @@ import org.bukkit.World;
  */
 public class LightingTaskBatch implements LightingTask {
     private static boolean DEBUG_LOG = false; // logs performance stats
+    private static final int[][] UNBOUNDED_SLAB = new int[][] {{Integer.MIN_VALUE, Integer.MAX_VALUE}};
     public final World world;
     private final Object chunks_lock = new Object();
     private final int[] region_y_coords;
     private volatile LightingChunk[] chunks = null;
-    private volatile long[] chunks_coords;
+    private volatile FlatChunkSet chunks_coords;
     private boolean done = false;
     private boolean aborted = false;
     private volatile long timeStarted = 0;
     private int numBeingLoaded = 0;
+    private volatile int numProcessed = 0;
+    private volatile int numSkippedUnchanged = 0;
     private volatile Stage stage = Stage.LOADING;
+    private int[][] slabs = UNBOUNDED_SLAB;
+    private volatile int slabIndex = 0;
+    private int rangeMinCy = Integer.MIN_VALUE;
+    private int rangeMaxCy = Integer.MAX_VALUE;
+    private boolean closeChunksOnApply = true;
+    private final List<CompletableFuture<?>> earlyApplyFutures = new ArrayList<CompletableFuture<?>>();
+    private Set<LightingCube> seamChangedCubes = null; // Cubes relit when only repairing seams
+    private CubeStorage storage = CubeStorage.HEAP;
+    private boolean borderSpillEnabled = false;
+    private LightingBorderSpill borderSpill = null;
+    private volatile LightingTaskBatch nextBatch = null;
+    private final LongHashSet handoverChunks = new LongHashSet();
+    private volatile int numHandedOver = 0;
+    private volatile int numReloaded = 0;
     private LightingService.ScheduleArguments options = new LightingService.ScheduleArguments();
 
     public LightingTaskBatch(World world, int[] regionYCoordinates, long[] chunkCoordinates) {
-        this.world = world;
-        this.region_y_coords = regionYCoordinates;
-        this.chunks_coords = chunkCoordinates;
+        this(world, regionYCoordinates, FlatChunkSet.create(chunkCoordinates));
     }
 
     public LightingTaskBatch(World world, int[] regionYCoordinates, LongHashSet chunkCoordinates) {
+        this(world, regionYCoordinates, FlatChunkSet.create(chunkCoordinates));
+    }
+
+    public LightingTaskBatch(World world, int[] regionYCoordinates, FlatChunkSet chunkCoordinates) {
         this.world = world;
         this.region_y_coords = regionYCoordinates;
-
-        // Turn contents of the long hash set into an easily sortable IntVector2[] array
-        IntVector2[] coordinates = new IntVector2[chunkCoordinates.size()];
-        {
-            LongHashSet.LongIterator iter = chunkCoordinates.longIterator();
-            for (int i = 0; iter.hasNext(); i++) {
-                long coord = iter.next();
-                coordinates[i] = new IntVector2(MathUtil.longHashMsw(coord), MathUtil.longHashLsw(coord));
-            }
-        }
-
-        // Sort the array along the axis. This makes chunk loading more efficient.
-        Arrays.sort(coordinates, (a, b) -> {
-            int comp = Integer.compare(a.x, b.x);
-            if (comp == 0) {
-                comp = Integer.compare(a.z, b.z);
-            }
-            return comp;
-        });
-
-        // Turn back into a long[] array for memory efficiency
-        this.chunks_coords = Stream.of(coordinates).mapToLong(c -> MathUtil.longHashToLong(c.x, c.z)).toArray();
+        this.chunks_coords = chunkCoordinates;
     }
 
     @Override
@@ -79,6 +85,17 @@ public class LightingTaskBatch implements LightingTask {
         return world;
     }
 
+    /**
+     * Sets whether the light at the borders of this batch is stored in the {@link LightingBorderSpill}
+     * of the service, and whether chunks around this batch are read from it instead of being loaded.
+     * Used for the batches a large area is cleaned in, one region at a time.
+     *
+     * @param enabled
+     */
+    public void setBorderSpillEnabled(boolean enabled) {
+        this.borderSpillEnabled = enabled;
+    }
+
     /**
      * Gets the X and Z-coordinates of all the chunk columns to process.
      * The coordinates are combined into a single Long, which can be decoded
@@ -97,13 +114,29 @@ public class LightingTaskBatch implements LightingTask {
                 }
                 return coords;
             } else if (this.chunks_coords != null) {
-                return this.chunks_coords;
+                return this.chunks_coords.toLongArray();
             } else {
                 return new long[0];
             }
         }
     }
 
+    /**
+     * Gets the X and Z-coordinates of all the chunk columns that still have to be processed.
+     * Once processing has started, the set of chunks is no longer stored, and the chunks of
+     * the lighting chunks being processed are returned instead.
+     *
+     * @return chunk coordinates
+     */
+    public FlatChunkSet getChunkSet() {
+        synchronized (this.chunks_lock) {
+            if (this.chunks == null && this.chunks_coords != null) {
+                return this.chunks_coords;
+            }
+        }
+        return FlatChunkSet.create(this.getChunks());
+    }
+
     /**
      * Gets the Y-coordinates of all the regions to look for chunk data. A region stores 32 chunk
      * slices vertically, and goes up/down 512 blocks every coordinate increase/decrease.
@@ -118,7 +151,7 @@ public class LightingTaskBatch implements LightingTask {
     public int getChunkCount() {
         synchronized (this.chunks_lock) {
             if (this.chunks == null) {
-                return this.done ? 0 : this.chunks_coords.length;
+                return this.done ? 0 : this.chunks_coords.size();
             } else {
                 int faults = 0;
                 for (LightingChunk chunk : this.chunks) {
@@ -131,6 +164,74 @@ public class LightingTaskBatch implements LightingTask {
         }
     }
 
+    /**
+     * Gets the number of chunks whose light was cleaned by this batch
+     *
+     * @return processed chunk count
+     */
+    public int getProcessedChunkCount() {
+        return this.numProcessed;
+    }
+
+    /**
+     * Gets the number of chunks that were skipped, because they and their neighbours
+     * did not change since they were last cleaned
+     *
+     * @return skipped chunk count
+     */
+    public int getSkippedChunkCount() {
+        return this.numSkippedUnchanged;
+    }
+
+    /**
+     * Gets the number of chunks kept loaded by the batch before this one, that this
+     * batch took over instead of loading them again
+     *
+     * @return handed over chunk count
+     */
+    public int getHandedOverChunkCount() {
+        return this.numHandedOver;
+    }
+
+    /**
+     * Gets the number of chunks the batch before this one tried to hand over, but that
+     * were unloaded before this batch started, and had to be loaded again
+     *
+     * @return reloaded chunk count
+     */
+    public int getReloadedChunkCount() {
+        return this.numReloaded;
+    }
+
+    /**
+     * Sets the batch that is processed after this one. Chunks of this batch that the next
+     * batch processes as well are kept loaded for longer, so that the next batch can take
+     * them over instead of loading them again.
+     *
+     * @param next Next batch, null if unknown
+     */
+    public void setNextBatch(LightingTaskBatch next) {
+        this.nextBatch = next;
+    }
+
+    /**
+     * Called by the batch before this one when it closes a chunk this batch processes
+     * as well. The chunk is kept loaded to be taken over once this batch starts.
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if this batch will take over the chunk, False if it is not part of this batch
+     */
+    private boolean offerHandover(int cx, int cz) {
+        synchronized (this.chunks_lock) {
+            if (this.chunks_coords == null || this.chunks != null || !this.chunks_coords.contains(cx, cz)) {
+                return false; // Already started or not a chunk of this batch
+            }
+            this.handoverChunks.add(cx, cz);
+            return true;
+        }
+    }
+
     @Override
     public long getTimeStarted() {
         return this.timeStarted;
@@ -160,11 +261,14 @@ public class LightingTaskBatch implements LightingTask {
                     cz += chunk.chunkZ;
                 }
             } else if (this.chunks_coords != null) {
-                count = this.chunks_coords.length;
-                for (long chunk : this.chunks_coords) {
-                    cx += MathUtil.longHashMsw(chunk);
-                    cz += MathUtil.longHashLsw(chunk);
-                }
+                final long[] sum = new long[2];
+                count = this.chunks_coords.size();
+                this.chunks_coords.forEach((x, z) -> {
+                    sum[0] += x;
+                    sum[1] += z;
+                });
+                cx = sum[0];
+                cz = sum[1];
             } else {
                 return null;
             }
@@ -182,6 +286,9 @@ public class LightingTaskBatch implements LightingTask {
         if (chunk != null) {
             String postfix = " chunks near " +
                     "x=" + (chunk.cx*16) + " z=" + (chunk.cz*16);
+            if (this.slabs.length > 1) {
+                postfix += " (slab " + (this.slabIndex + 1) + "/" + this.slabs.length + ")";
+            }
             if (this.stage == Stage.LOADING) {
                 synchronized (this.chunks_lock) {
                     if (this.chunks != null) {
@@ -277,7 +384,9 @@ public class LightingTaskBatch implements LightingTask {
             // Outside of the lock, start loading the next chunk
             final CompletableFuture<Void> f_nextChunkFuture = nextChunkFuture;
             final LightingChunk f_nextChunk = nextChunk;
-            nextChunk.forcedChunk.move(FORCE_LOADED_FUNC.forceLoaded(world, nextChunk.chunkX, nextChunk.chunkZ));
+            if (nextChunk.forcedChunk.isNone()) {
+                nextChunk.forcedChunk.move(FORCE_LOADED_FUNC.forceLoaded(world, nextChunk.chunkX, nextChunk.chunkZ));
+            }
 
             // Process this chunk, or if not yet loaded, process it in the future when it is
             CompletableFuture<Chunk> future = nextChunk.forcedChunk.getChunkAsync();
@@ -328,7 +437,7 @@ public class LightingTaskBatch implements LightingTask {
         // Do this using LC's own plugin task, so BKCommonLibs task doesn't show up in timings
         CommonUtil.getPluginExecutor(LightCleaner.plugin).execute(() -> {
             try {
-                lightingChunk.fill(chunk, region_y_coords);
+                lightingChunk.fill(chunk, region_y_coords, slabs[0][0], slabs[0][1]);
                 doneFuture.complete(null);
             } catch (Throwable t) {
                 doneFuture.completeExceptionally(t);
@@ -348,6 +457,24 @@ public class LightingTaskBatch implements LightingTask {
             chunkFutures[i] = new CompletableFuture<Void>();
         }
 
+        // Chunks around this batch whose light was stored by a batch before it are not loaded
+        // The light stored at their sides is used as a fixed boundary instead
+        if (this.borderSpill != null) {
+            synchronized (this.chunks_lock) {
+                for (int i = 0; i < chunkFutures.length; i++) {
+                    LightingChunk lc = this.chunks[i];
+                    if (!lc.neighbors.hasAll() && this.borderSpill.read(lc)) {
+                        lc.loadingStarted = true;
+                        chunkFutures[i].complete(null);
+                    }
+                }
+            }
+        }
+
+        // Take over chunks still kept loaded by the batch before this one, before they are unloaded
+        // They are filled in the order of all other chunks, but are already loaded when that happens
+        this.takeOverClosedChunks();
+
         // Start loading up to [asyncLoadConcurrency] number of chunks right now
         // When a callback for a chunk load completes, we start loading additional chunks
         tryLoadMoreChunks(chunkFutures);
@@ -355,6 +482,32 @@ public class LightingTaskBatch implements LightingTask {
         return CompletableFuture.allOf(chunkFutures);
     }
 
+    private void takeOverClosedChunks() {
+        int handedOver = 0;
+        int reloaded = 0;
+        synchronized (this.chunks_lock) {
+            for (LightingChunk lc : this.chunks) {
+                if (lc.loadingStarted) {
+                    continue; // Not loaded, read from the border spill
+                }
+                ForcedChunk closed = DelayClosedForcedChunk.takeClosed(this.world, lc.chunkX, lc.chunkZ);
+                if (closed != null) {
+                    lc.forcedChunk.move(closed);
+                }
+                if (this.handoverChunks.contains(lc.chunkX, lc.chunkZ)) {
+                    if (closed != null) {
+                        handedOver++;
+                    } else {
+                        reloaded++;
+                    }
+                }
+            }
+            this.handoverChunks.clear();
+        }
+        this.numHandedOver = handedOver;
+        this.numReloaded = reloaded;
+    }
+
     private void notifyNeighborsAccessible() {
         for (LightingChunk lc : this.chunks) {
             lc.resetAccessible();
@@ -369,19 +522,36 @@ public class LightingTaskBatch implements LightingTask {
         // Begin
         this.stage = Stage.LOADING;
         this.timeStarted = System.currentTimeMillis();
+        if (this.options.hasBlockYRange()) {
+            // Light changes in the range can spread up to 15 blocks away from it
+            this.rangeMinCy = (this.options.getMinBlockY() - 15) >> 4;
+            this.rangeMaxCy = (this.options.getMaxBlockY() + 15) >> 4;
+        }
+        this.slabs = computeSlabs();
+        this.slabIndex = 0;
+        this.borderSpill = (this.borderSpillEnabled && this.slabs.length == 1 && !this.options.getSeams() &&
+                this.rangeMinCy == Integer.MIN_VALUE && this.rangeMaxCy == Integer.MAX_VALUE)
+                ? LightingService.getBorderSpill(this.world) : null;
+        this.storage = LightingService.getCubeBufferPool().createStorage();
 
         // Initialize lighting chunks
         synchronized (this.chunks_lock) {
-            LightingChunk[] chunks_new = new LightingChunk[this.chunks_coords.length];
+            final LightingChunk[] chunks_new = new LightingChunk[this.chunks_coords.size()];
             this.done = false;
-            int chunkIdx = 0;
-            for (long longCoord : this.chunks_coords) {
-                int x = MathUtil.longHashMsw(longCoord);
-                int z = MathUtil.longHashLsw(longCoord);
-                chunks_new[chunkIdx++] = new LightingChunk(this.world, x, z);
-                if (this.aborted) {
-                    return;
+            this.chunks_coords.forEach(new FlatChunkSet.ChunkConsumer() {
+                private int chunkIdx = 0;
+
+                @Override
+                public void accept(int cx, int cz) {
+                    LightingChunk lc = new LightingChunk(world, cx, cz);
+                    lc.rangeMinCy = rangeMinCy;
+                    lc.rangeMaxCy = rangeMaxCy;
+                    lc.storage = storage;
+                    chunks_new[chunkIdx++] = lc;
                 }
+            });
+            if (this.aborted) {
+                return;
             }
 
             // Update fields. We can remove the coordinates to free memory.
@@ -417,7 +587,7 @@ public class LightingTaskBatch implements LightingTask {
             LightingChunk[] new_chunks = this.chunks;
             for (int i = new_chunks.length-1; i >= 0; i--) {
                 LightingChunk lc = new_chunks[i];
-                if (lc.forcedChunk.getChunkAsync().isCompletedExceptionally()) {
+                if (!lc.isFixedBoundary && lc.forcedChunk.getChunkAsync().isCompletedExceptionally()) {
                     failed_chunk_avg_x += lc.chunkX;
                     failed_chunk_avg_z += lc.chunkZ;
                     failed_chunk_count++;
@@ -456,46 +626,86 @@ public class LightingTaskBatch implements LightingTask {
         }
         */
 
-        // Now that all chunks we can process are filled, let all the 16x16x16 cubes know of their neighbors
-        // This neighboring data is only used during the fix() (initialize + spread) phase
-        synchronized (this.chunks_lock) {
-            for (LightingChunk lc : chunks) {
-                lc.detectCubeNeighbors();
+        // When only a range of cubes is cleaned, and sky light reaching below it changed,
+        // all the cubes below the range must be cleaned as well
+        if (this.rangeMinCy != Integer.MIN_VALUE) {
+            boolean skyExposureChanged = false;
+            synchronized (this.chunks_lock) {
+                for (LightingChunk lc : chunks) {
+                    skyExposureChanged |= lc.isSkyExposureChanged;
+                }
+            }
+            if (skyExposureChanged) {
+                this.rangeMinCy = Integer.MIN_VALUE;
+                this.slabs = computeSlabs();
+                if (!fillAll(this.slabs[0])) {
+                    return;
+                }
             }
         }
 
-        // Fix
-        this.stage = Stage.FIXING;
-        fix();
-        if (this.aborted) {
-            return;
-        }
+        // Process the chunks one vertical slab at a time, top to bottom
+        // Usually there is only one slab, covering the full height of the chunks
+        for (int slabIndex = 0; slabIndex < this.slabs.length; slabIndex++) {
+            this.slabIndex = slabIndex;
 
-        // Apply and wait for it to be finished
-        // Wait in 200ms intervals to allow for aborting
-        // After 2 minutes of inactivity, stop waiting and consider applying failed
-        this.stage = Stage.APPLYING;
-        try {
-            CompletableFuture<Void> future = apply();
-            int max_num_of_waits = (5*120);
-            while (true) {
-                if (--max_num_of_waits == 0) {
-                    LightCleaner.plugin.getLogger().log(Level.WARNING, "Failed to apply lighting data for " + getShortStatus() + ": Timeout");
-                    break;
+            // The first slab was filled while loading. For the slabs that follow,
+            // fill all the loaded chunks with data on the main thread.
+            if (slabIndex > 0 && !fillAll(this.slabs[slabIndex])) {
+                return;
+            }
+
+            // Chunks that did not change since they were last cleaned keep their light
+            // The fingerprint covers the full height of the chunk, so this is not done for slabs
+            synchronized (this.chunks_lock) {
+                if (this.slabs.length == 1) {
+                    this.skipUnchangedChunks();
+                } else {
+                    this.numProcessed = this.chunks.length;
                 }
-                try {
-                    future.get(200, TimeUnit.MILLISECONDS);
-                    break;
-                } catch (TimeoutException e) {
-                    if (this.aborted) {
-                        return;
-                    }
+            }
+
+            // Now that all chunks we can process are filled, let all the 16x16x16 cubes know of their neighbors
+            // This neighboring data is only used during the fix() (initialize + spread) phase
+            synchronized (this.chunks_lock) {
+                for (LightingChunk lc : chunks) {
+                    lc.detectCubeNeighbors();
                 }
             }
-        } catch (InterruptedException e) {
-            // Ignore
-        } catch (ExecutionException e) {
-            LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to apply lighting data for " + getShortStatus(), e.getCause());
+
+            // Fix
+            // Chunks are kept loaded until the last slab is applied
+            this.stage = Stage.FIXING;
+            this.closeChunksOnApply = (slabIndex == (this.slabs.length - 1));
+            fix();
+            if (this.aborted) {
+                return;
+            }
+
+            // Store the light at the borders of this batch for the batches next to it
+            if (this.borderSpill != null && !this.options.getDebugMakeCorrupted()) {
+                this.spillBorders();
+            }
+
+            // Only the light computed for the cubes is needed to apply it, release all other data
+            // The buffers can then be reused for the next slab or batch while applying
+            // When aborted, they are left to the garbage collector, as chunks may still be filling
+            synchronized (this.chunks_lock) {
+                for (LightingChunk lc : chunks) {
+                    lc.releaseBuildData();
+                }
+            }
+            if (DEBUG_LOG) {
+                System.out.println("Used " + (this.storage.getUsedBytes() >> 20) + " MB of " +
+                        this.storage.getName() + " cube storage");
+            }
+            this.storage.release();
+
+            // Apply and wait for it to be finished
+            this.stage = Stage.APPLYING;
+            if (!applyAndWait(this.closeChunksOnApply)) {
+                return;
+            }
         }
 
         this.done = true;
@@ -504,6 +714,170 @@ public class LightingTaskBatch implements LightingTask {
         }
     }
 
+    /**
+     * Looks up all chunks in the {@link CleanStateLedger} of the world. Chunks whose
+     * fingerprint, and the fingerprints of all 8 neighbouring chunks, match the ones
+     * recorded when they were last cleaned, still store the correct light. These
+     * are marked unchanged, so that they are not initialized and spread again.
+     */
+    private void skipUnchangedChunks() {
+        int numSkipped = 0;
+        if (!this.options.getForceSaving() && !this.options.getDebugMakeCorrupted() && !this.options.getAudit() && !this.options.getSeams()) {
+            CleanStateLedger ledger = CleanStateLedger.get(this.world);
+            LongHashMap<LightingChunk> chunksByCoord = new LongHashMap<LightingChunk>(this.chunks.length);
+            for (LightingChunk lc : this.chunks) {
+                chunksByCoord.put(lc.chunkX, lc.chunkZ, lc);
+            }
+
+            for (LightingChunk lc : this.chunks) {
+                if (!isUnchanged(ledger, lc)) {
+                    continue;
+                }
+
+                boolean neighboursUnchanged = true;
+                for (int dx = -1; dx <= 1 && neighboursUnchanged; dx++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        if ((dx != 0 || dz != 0) && !isUnchanged(ledger, chunksByCoord.get(lc.chunkX + dx, lc.chunkZ + dz))) {
+                            neighboursUnchanged = false;
+                            break;
+                        }
+                    }
+                }
+                if (neighboursUnchanged) {
+                    lc.markUnchanged();
+                    numSkipped++;
+                }
+            }
+        }
+        this.numSkippedUnchanged = numSkipped;
+        this.numProcessed = this.chunks.length - numSkipped;
+    }
+
+    /**
+     * Stores the light at the sides of the chunks at the border of this batch in the
+     * {@link LightingBorderSpill}. These are the chunks cleaned by this batch with a
+     * neighbouring chunk that was not, which are loaded again by batches next to it.
+     */
+    private void spillBorders() {
+        synchronized (this.chunks_lock) {
+            for (LightingChunk lc : this.chunks) {
+                if (!lc.isFixedBoundary && lc.neighbors.hasAll() && isNextToBorder(lc)) {
+                    this.borderSpill.write(lc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets whether the light at the borders of a chunk is stored in the border spill,
+     * or will be once fixing is done, so that batches next to it read it from there.
+     * Chunks applied early are closed before the border spill is written.
+     */
+    private boolean isReadFromBorderSpill(LightingChunk lc) {
+        if (this.borderSpill == null || this.options.getDebugMakeCorrupted()) {
+            return false;
+        }
+        return this.borderSpill.contains(lc.chunkX, lc.chunkZ) ||
+               (!lc.isFixedBoundary && lc.neighbors.hasAll() && isNextToBorder(lc));
+    }
+
+    private static boolean isNextToBorder(LightingChunk lc) {
+        for (LightingChunk neigh : lc.neighbors.values) {
+            if (!neigh.neighbors.hasAll()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnchanged(CleanStateLedger ledger, LightingChunk lc) {
+        return lc != null && lc.fingerprint != 0L && lc.neighbors.hasAll() &&
+               ledger.getFingerprint(lc.chunkX, lc.chunkZ) == lc.fingerprint;
+    }
+
+    /**
+     * Fills all the loaded chunks with the block data of a slab again, on the main thread.
+     * The range of cubes to clean of the chunks is updated as well.
+     *
+     * @param slab Minimum and maximum cube y-coordinate of the slab
+     * @return False if this task was aborted while waiting
+     */
+    private boolean fillAll(final int[] slab) {
+        this.stage = Stage.LOADING;
+
+        // The block data of the cubes filled before is no longer used, as the cube kept as
+        // boundary above the new slab reads it again. The buffers can be reused for this fill.
+        this.storage.release();
+        final CubeStorage newStorage = LightingService.getCubeBufferPool().createStorage();
+        this.storage = newStorage;
+        CompletableFuture<Void> chunkFillFuture = CompletableFuture.runAsync(() -> {
+            synchronized (this.chunks_lock) {
+                if (!this.aborted) {
+                    for (LightingChunk lc : chunks) {
+                        if (lc.isFixedBoundary) {
+                            continue; // Not loaded, only happens when the border spill is used
+                        }
+                        lc.rangeMinCy = this.rangeMinCy;
+                        lc.rangeMaxCy = this.rangeMaxCy;
+                        lc.storage = newStorage;
+                        lc.fill(lc.forcedChunk.getChunk(), region_y_coords, slab[0], slab[1]);
+                    }
+                }
+            }
+        }, CommonUtil.getPluginExecutor(LightCleaner.plugin));
+
+        return waitForCheckAborted(chunkFillFuture);
+    }
+
+    /**
+     * Computes the vertical slabs of cubes to process, top to bottom. If the world, or the
+     * range of cubes to clean, is not taller than {@link LightCleaner#slabHeight}, a single
+     * slab without limits is returned. Otherwise, slabs overlap by one cube, so that the bottom
+     * cube of a slab, which can still receive block light from below, is computed again by the
+     * slab below it. A range of cubes taller than that is not used, and all cubes are cleaned.
+     *
+     * @return slabs, each an array of the minimum and maximum cube y-coordinate
+     */
+    private int[][] computeSlabs() {
+        int slabCubes = (LightCleaner.slabHeight >> 4);
+        if (slabCubes <= 0 || this.region_y_coords.length == 0) {
+            return UNBOUNDED_SLAB;
+        }
+
+        // Range of cubes of the regions, limited to the height of the world
+        int minCy = WorldUtil.regionToChunkIndex(this.region_y_coords[0]);
+        int maxCy = WorldUtil.regionToChunkIndex(this.region_y_coords[this.region_y_coords.length - 1]) +
+                WorldUtil.CHUNKS_PER_REGION_AXIS - 1;
+        try {
+            minCy = Math.max(minCy, this.world.getMinHeight() >> 4);
+            maxCy = Math.min(maxCy, (this.world.getMaxHeight() - 1) >> 4);
+        } catch (Throwable t) {
+            // Not supported on this server version
+        }
+        if ((Math.min(maxCy, this.rangeMaxCy) - Math.max(minCy, this.rangeMinCy) + 1) <= slabCubes) {
+            return UNBOUNDED_SLAB;
+        }
+        this.rangeMinCy = Integer.MIN_VALUE;
+        this.rangeMaxCy = Integer.MAX_VALUE;
+
+        // Top to bottom, with the bottom cube of every slab included in the next slab again
+        // The top and bottom slabs include any cubes above or below the world height
+        slabCubes = Math.max(4, slabCubes);
+        List<int[]> slabs = new ArrayList<int[]>();
+        int hi = maxCy;
+        while (true) {
+            int lo = hi - slabCubes + 1;
+            if (lo <= minCy) {
+                slabs.add(new int[] {Integer.MIN_VALUE, hi});
+                break;
+            }
+            slabs.add(new int[] {lo, hi});
+            hi = lo;
+        }
+        slabs.get(0)[1] = Integer.MAX_VALUE;
+        return slabs.toArray(new int[slabs.size()][]);
+    }
+
     @Override
     public void abort() {
         this.aborted = true;
@@ -520,41 +894,211 @@ public class LightingTaskBatch implements LightingTask {
         }
     }
 
+    /**
+     * Applies the new data to the world and waits for it to be finished.
+     * Waits in 200ms intervals to allow for aborting.
+     * After 2 minutes of inactivity, stop waiting and consider applying failed.
+     *
+     * @param closeChunks Whether to close the chunks kept loaded once applied
+     * @return False if this task was aborted while waiting
+     */
+    private boolean applyAndWait(boolean closeChunks) {
+        try {
+            CompletableFuture<Void> future = apply(closeChunks);
+            int max_num_of_waits = (5*120);
+            while (true) {
+                if (--max_num_of_waits == 0) {
+                    LightCleaner.plugin.getLogger().log(Level.WARNING, "Failed to apply lighting data for " + getShortStatus() + ": Timeout");
+                    break;
+                }
+                try {
+                    future.get(200, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (this.aborted) {
+                        return false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Ignore
+        } catch (ExecutionException e) {
+            LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to apply lighting data for " + getShortStatus(), e.getCause());
+        }
+        return true;
+    }
+
     /**
      * Starts applying the new data to the world.
      * This is done in several ticks on the main thread.
      * The completable future is resolved when applying is finished.
      */
     public CompletableFuture<Void> apply() {
-        // Apply data to chunks and unload if needed
+        return apply(true);
+    }
+
+    /**
+     * Starts applying the new data to the world.
+     * This is done in several ticks on the main thread.
+     * The completable future is resolved when applying is finished.
+     *
+     * @param closeChunks Whether to close the chunks kept loaded once applied
+     */
+    public CompletableFuture<Void> apply(final boolean closeChunks) {
+        // Chunks that were applied while fixing are waited for as well
+        final CleanStateLedger ledger = CleanStateLedger.get(this.world);
         LightingChunk[] chunks = LightingTaskBatch.this.chunks;
-        CompletableFuture<?>[] applyFutures = new CompletableFuture[chunks.length];
-        for (int i = 0; i < chunks.length; i++) {
-            LightingChunk lc = chunks[i];
-            Chunk bchunk = lc.forcedChunk.getChunk();
-
-            // Save to chunk
-            applyFutures[i] = lc.saveToChunk(bchunk, options.getForceSaving()).whenCompleteAsync((changed, t) -> {
-                if (t != null) {
-                    LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to apply lighting", t);
-                } else if (changed.booleanValue()) {
+        List<CompletableFuture<?>> applyFutures = new ArrayList<CompletableFuture<?>>(chunks.length);
+        applyFutures.addAll(this.earlyApplyFutures);
+        this.earlyApplyFutures.clear();
+        for (LightingChunk lc : chunks) {
+            if (!lc.isApplyStarted) {
+                applyFutures.add(applyChunk(lc, ledger, closeChunks));
+            }
+        }
+        return CompletableFuture.allOf(applyFutures.toArray(new CompletableFuture[applyFutures.size()]));
+    }
+
+    /**
+     * Starts applying the new data of a single chunk to the world
+     *
+     * @param lc Lighting chunk to apply
+     * @param ledger Clean state ledger of the world
+     * @param closeChunks Whether to close the chunk kept loaded once applied
+     * @return future completed once applied
+     */
+    private CompletableFuture<Void> applyChunk(final LightingChunk lc, final CleanStateLedger ledger, final boolean closeChunks) {
+        if (this.options.getAudit()) {
+            return auditChunk(lc, closeChunks);
+        }
+
+        // Apply data to chunks and unload if needed
+        // Record the chunks that were cleaned in the ledger, or forget the chunks that were corrupted
+        final boolean corrupted = this.options.getDebugMakeCorrupted();
+        lc.isApplyStarted = true;
+        Chunk bchunk = lc.forcedChunk.getChunk();
+
+        // Save to chunk
+        // When repairing seams, only the cubes whose light was changed are saved
+        // Chunks at the edge of the batch were only read, so nothing of them is saved
+        final CompletableFuture<Boolean> saveFuture;
+        if (this.seamChangedCubes != null) {
+            List<LightingCube> cubes = Collections.emptyList();
+            if (lc.neighbors.hasAll()) {
+                cubes = lc.getSections().stream()
+                        .filter(this.seamChangedCubes::contains)
+                        .collect(Collectors.toList());
+            }
+            saveFuture = lc.saveToChunk(bchunk, cubes, options.getForceSaving());
+        } else {
+            saveFuture = lc.saveToChunk(bchunk, options.getForceSaving());
+        }
+        return saveFuture.whenCompleteAsync((changed, t) -> {
+            if (t != null) {
+                LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to apply lighting", t);
+            } else {
+                if (changed.booleanValue()) {
                     WorldUtil.queueChunkSendLight(world, lc.chunkX, lc.chunkZ);
                 }
+                if (corrupted) {
+                    ledger.remove(lc.chunkX, lc.chunkZ);
+                } else if (this.seamChangedCubes == null && lc.fingerprint != 0L && lc.neighbors.hasAll() && (!lc.isUnchanged || changed.booleanValue())) {
+                    ledger.record(lc.chunkX, lc.chunkZ, lc.fingerprint);
+                }
+                // The light of the chunk is now correct, so it is no longer faulty
+                if (!corrupted && !this.options.getSeams() && lc.neighbors.hasAll()) {
+                    LightAuditReport.removeCleaned(this.world, lc.chunkX, lc.chunkZ);
+                }
+            }
 
-                // Closes our forced chunk, may cause the chunk to now unload
-                lc.forcedChunk.close();
-            }, CommonUtil.getPluginExecutor(LightCleaner.plugin));
+            // Closes our forced chunk, may cause the chunk to now unload
+            if (closeChunks) {
+                closeForcedChunk(lc);
+            }
+        }, CommonUtil.getPluginExecutor(LightCleaner.plugin)).thenApply(changed -> (Void) null);
+    }
+
+    /**
+     * Compares the light computed for a chunk with the light stored in it, and records the
+     * result in the {@link LightAuditReport} of the world. Nothing is written to the world.
+     * Chunks at the border of this batch are not recorded, as not all of their light is computed.
+     *
+     * @param lc Lighting chunk to audit
+     * @param closeChunks Whether to close the chunk kept loaded once audited
+     * @return future completed once audited
+     */
+    private CompletableFuture<Void> auditChunk(final LightingChunk lc, final boolean closeChunks) {
+        lc.isApplyStarted = true;
+        try {
+            if (!lc.isFixedBoundary && lc.neighbors.hasAll()) {
+                int skyLightDifferences = 0;
+                int blockLightDifferences = 0;
+                for (LightingCube cube : lc.getSections()) {
+                    skyLightDifferences += cube.countStoredLightDifferences(LightingCategory.SKY);
+                    blockLightDifferences += cube.countStoredLightDifferences(LightingCategory.BLOCK);
+                }
+                LightAuditReport.get(this.world).record(lc.chunkX, lc.chunkZ, skyLightDifferences, blockLightDifferences);
+            }
+        } catch (Throwable t) {
+            LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to audit lighting", t);
+        }
+        lc.isApplied = true;
+        if (closeChunks) {
+            closeForcedChunk(lc);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Closes the forced chunk of a lighting chunk. If the next batch processes the chunk
+     * as well, it is kept loaded until that batch takes it over. Chunks whose light is
+     * stored in the border spill are not, as the next batch reads them from there.
+     *
+     * @param lc Lighting chunk
+     */
+    private void closeForcedChunk(LightingChunk lc) {
+        LightingTaskBatch next = this.nextBatch;
+        if (next != null && !isReadFromBorderSpill(lc) && next.offerHandover(lc.chunkX, lc.chunkZ)) {
+            lc.forcedChunk.close(DelayClosedForcedChunk.HANDOVER_TICK_DELAY);
+        } else {
+            lc.forcedChunk.close();
+        }
+    }
+
+    /**
+     * Starts applying the chunks whose light can no longer change, while the light of
+     * other chunks is still being spread. Their forced chunks are closed once applied,
+     * unless more slabs follow.
+     */
+    private void applyConvergedChunks() {
+        CleanStateLedger ledger = null;
+        for (LightingChunk lc : this.chunks) {
+            if (!lc.isApplyStarted && lc.isConverged()) {
+                if (ledger == null) {
+                    ledger = CleanStateLedger.get(this.world);
+                }
+                this.earlyApplyFutures.add(applyChunk(lc, ledger, this.closeChunksOnApply));
+            }
         }
-        return CompletableFuture.allOf(applyFutures);
     }
 
     /**
      * Performs the (slow) fixing procedure (call from another thread)
      */
     public void fix() {
+        // Only repair the light at chunk borders, keeping the light stored in the chunks
+        if (this.options.getSeams()) {
+            fixSeams();
+            return;
+        }
+
         // Initialize light
+        // Chunks that did not change since they were last cleaned keep their stored light
         for (LightingCategory category : LightingCategory.values()) {
             for (LightingChunk chunk : chunks) {
+                if (chunk.isUnchanged || chunk.isFixedBoundary) {
+                    continue;
+                }
                 category.initialize(chunk);
                 if (this.aborted) {
                     return;
@@ -572,6 +1116,9 @@ public class LightingTaskBatch implements LightingTask {
         // This isn't done during initialization because it is important
         // for calculating the first opacity>0 block for sky light.
         for (LightingChunk chunk : chunks) {
+            if (chunk.isUnchanged || chunk.isFixedBoundary) {
+                continue; // Spreading uses a minimum opacity of 1 anyway
+            }
             for (LightingCube section : chunk.getSections()) {
                 //TODO: Maybe build something into BKCommonLib for this
                 int x, y, z;
@@ -598,6 +1145,12 @@ public class LightingTaskBatch implements LightingTask {
                 totalLoops += count;
                 hasFaults |= count > 0;
             }
+
+            // Chunks that will not change anymore are applied while the others are still spreading
+            // When no faults remain, all remaining chunks are applied at once after fixing
+            if (hasFaults && !this.aborted) {
+                applyConvergedChunks();
+            }
         } while (hasFaults && !this.aborted);
 
         long duration = System.currentTimeMillis() - startTime;
@@ -606,14 +1159,45 @@ public class LightingTaskBatch implements LightingTask {
         }
     }
 
+    /**
+     * Repairs the light at the borders of the chunks, starting from the light stored in them.
+     * Only the blocks at chunk borders whose light does not match the light around them are
+     * relit, see {@link LightingMicroRelight#relightSeams(World, LightingChunk[])}.
+     */
+    private void fixSeams() {
+        for (LightingChunk chunk : chunks) {
+            if (chunk.isFixedBoundary) {
+                continue;
+            }
+            for (LightingCube cube : chunk.getSections()) {
+                cube.loadStoredLight();
+            }
+            if (this.aborted) {
+                return;
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        this.seamChangedCubes = LightingMicroRelight.relightSeams(this.world, this.chunks);
+        if (DEBUG_LOG) {
+            System.out.println("Relit seams, " + this.seamChangedCubes.size() + " cubes changed in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
     @Override
     public void applyOptions(ScheduleArguments args) {
         this.options = args;
     }
 
+    @Override
+    public boolean isAudit() {
+        return this.options.getAudit();
+    }
+
     @Override
     public boolean canSave() {
-        return !this.options.getLoadedChunksOnly() && !this.options.getDebugMakeCorrupted();
+        return !this.options.getLoadedChunksOnly() && !this.options.getDebugMakeCorrupted() && !this.options.getAudit() && !this.options.getSeams();
     }
 
     private static enum Stage {
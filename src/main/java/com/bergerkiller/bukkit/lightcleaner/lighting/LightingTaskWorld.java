@@ -1,32 +1,73 @@
 package com.bergerkiller.bukkit.lightcleaner.lighting;
 
 import com.bergerkiller.bukkit.common.utils.CommonUtil;
-import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
 import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
 import com.bergerkiller.bukkit.lightcleaner.lighting.LightingService.ScheduleArguments;
+import com.bergerkiller.bukkit.lightcleaner.util.FlatChunkSet;
 import com.bergerkiller.bukkit.lightcleaner.util.FlatRegionInfo;
 import com.bergerkiller.bukkit.lightcleaner.util.FlatRegionInfoMap;
+import com.bergerkiller.bukkit.lightcleaner.util.RegionChunkIndex;
+import com.bergerkiller.bukkit.lightcleaner.util.RegionFileScanner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
+import java.util.logging.Level;
+
 import org.bukkit.World;
 
+/**
+ * Cleans all the chunks of a world. Rather than scheduling a batch for every region
+ * up-front, a cursor of regions still to process is kept. Every time this task is
+ * processed, batches are produced for the next few regions of the cursor, after which
+ * this task re-schedules itself behind them. This keeps only a small look-ahead window
+ * of batches in the queue, no matter how large the world is. The cursor is saved to
+ * PendingLight.dat, so that a restart continues where it left off.<br>
+ * <br>
+ * Which chunks are stored in the regions is read ahead of time in parallel by a
+ * {@link RegionFileScanner}, so that producing the batches does not have to wait on it.<br>
+ * <br>
+ * Regions are visited in a serpentine order, so that batches processed one after another
+ * are next to each other. The chunks they share are handed over between them.
+ */
 public class LightingTaskWorld implements LightingTask {
     private static final int ASSUMED_CHUNKS_PER_REGION = 34 * 34;
+    private static final int LOOK_AHEAD_BATCHES = 4;
     private final World world;
     private volatile FlatRegionInfoMap regions = null;
-    private volatile int regionCountLoaded;
-    private volatile int chunkCount;
+    private volatile long[] regionCursor;
+    private volatile int regionCursorIndex;
+    private volatile int regionsScheduled;
+    private volatile long chunksScheduled;
     private volatile long timeStarted;
     private volatile boolean aborted;
+    private volatile RegionFileScanner regionScanner = null;
+    private volatile LightingTaskBatch carriedBatch = null;
+    private boolean regionScanLogged = false;
     private LightingService.ScheduleArguments options = new LightingService.ScheduleArguments();
 
     public LightingTaskWorld(World world) {
+        this(world, null);
+    }
+
+    /**
+     * Creates a new world task that continues processing the regions specified
+     *
+     * @param world World to process
+     * @param regionCursor Region coordinates still to process, encoded using
+     *                     {@link MathUtil#longHashToLong(int, int)}. Null to process all regions.
+     */
+    public LightingTaskWorld(World world, long[] regionCursor) {
         this.world = world;
-        this.regionCountLoaded = 0;
+        this.regionCursor = regionCursor;
+        this.regionCursorIndex = 0;
+        this.regionsScheduled = 0;
+        this.chunksScheduled = 0;
         this.aborted = false;
-        this.chunkCount = 0;
         this.timeStarted = 0;
     }
 
@@ -35,9 +76,41 @@ public class LightingTaskWorld implements LightingTask {
         return this.world;
     }
 
+    /**
+     * Gets the region coordinates still to be processed by this task. Returns null if
+     * the regions of the world have not been read yet.
+     *
+     * @return remaining region coordinates, encoded using {@link MathUtil#longHashToLong(int, int)}
+     */
+    public long[] getRemainingRegions() {
+        long[] cursor = this.regionCursor;
+        if (cursor == null) {
+            return null;
+        }
+        int index = Math.min(this.regionCursorIndex, cursor.length);
+        return Arrays.copyOfRange(cursor, index, cursor.length);
+    }
+
+    /**
+     * Gets the estimated number of chunks still to be processed. This is computed using
+     * the average number of chunks of the regions scheduled so far, multiplied
+     * by the number of regions remaining in the cursor.
+     */
     @Override
     public int getChunkCount() {
-        return chunkCount;
+        long[] cursor = this.regionCursor;
+        if (cursor == null) {
+            return 0;
+        }
+
+        long remaining = Math.max(0, cursor.length - this.regionCursorIndex);
+        int numRegions = this.regionsScheduled;
+        if (numRegions == 0) {
+            remaining *= ASSUMED_CHUNKS_PER_REGION;
+        } else {
+            remaining = (remaining * this.chunksScheduled) / numRegions;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
     }
 
     @Override
@@ -47,122 +120,222 @@ public class LightingTaskWorld implements LightingTask {
 
     @Override
     public String getStatus() {
-        if (regions == null) {
+        long[] cursor = this.regionCursor;
+        if (regions == null || cursor == null) {
             return "Reading available regions from world " + getWorld().getName();
         } else {
-            return "Reading available chunks from world " + getWorld().getName() + " (region " + (regionCountLoaded+1) + "/" + regions.getRegionCount() + ")";
+            int index = Math.min(this.regionCursorIndex, cursor.length);
+            int percent = (cursor.length == 0) ? 100 : (int) ((100L * index) / cursor.length);
+            String status = "Cleaning world " + getWorld().getName() + " (region " + index + "/" + cursor.length + ", " + percent + "%)";
+            RegionFileScanner scanner = this.regionScanner;
+            if (scanner != null && !scanner.isDone()) {
+                status += " [scanned " + scanner.getScannedCount() + "/" + scanner.getTotalCount() +
+                        " regions, " + ((int) scanner.getRegionsPerSecond()) + " regions/s]";
+            }
+            return status;
         }
     }
 
     @Override
     public void process() {
+        if (this.timeStarted == 0) {
+            this.timeStarted = System.currentTimeMillis();
+        }
+
         // Load regions on the main thread
+        // This only lists the region files, the chunks inside are read lazily
         // TODO: Can use main thread executor instead
-        this.timeStarted = System.currentTimeMillis();
-        final CompletableFuture<Void> regionsLoadedFuture = new CompletableFuture<Void>();
-        CommonUtil.nextTick(() -> {
-            try {
-                if (this.options.getLoadedChunksOnly()) {
-                    this.regions = FlatRegionInfoMap.createLoaded(this.getWorld());
-                    this.regionCountLoaded = this.regions.getRegionCount();
-                    this.chunkCount = 0;
-                    for (FlatRegionInfo region : this.regions.getRegions()) {
-                        this.chunkCount += region.getChunkCount();
+        if (this.regions == null) {
+            final CompletableFuture<Void> regionsLoadedFuture = new CompletableFuture<Void>();
+            CommonUtil.nextTick(() -> {
+                try {
+                    if (this.options.getLoadedChunksOnly()) {
+                        this.regions = FlatRegionInfoMap.createLoaded(this.getWorld());
+                    } else {
+                        this.regions = FlatRegionInfoMap.create(this.getWorld());
                     }
-                } else {
-                    this.regions = FlatRegionInfoMap.create(this.getWorld());
-                    this.regionCountLoaded = 0;
-                    this.chunkCount = this.regions.getRegionCount() * ASSUMED_CHUNKS_PER_REGION;
+                    regionsLoadedFuture.complete(null);
+                } catch (Throwable ex) {
+                    regionsLoadedFuture.completeExceptionally(ex);
                 }
-                regionsLoadedFuture.complete(null);
-            } catch (Throwable ex) {
-                regionsLoadedFuture.completeExceptionally(ex);
-            }
-        });
+            });
 
-        // Wait until region list is loaded synchronously
-        try {
-            regionsLoadedFuture.get();
-        } catch (InterruptedException ex) {
-            // Ignore
-        } catch (ExecutionException ex) {
-            throw new RuntimeException("Failed to load regions", ex.getCause());
+            // Wait until region list is loaded synchronously
+            try {
+                regionsLoadedFuture.get();
+            } catch (InterruptedException ex) {
+                // Ignore
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Failed to load regions", ex.getCause());
+            }
         }
 
         // Check aborted
-        if (this.aborted) {
+        if (this.aborted || this.regions == null) {
             return;
         }
 
-        // Start loading all chunks contained in the regions
-        if (!this.options.getLoadedChunksOnly()) {
+        // If not continuing from a saved cursor, start with all the regions of the world
+        if (this.regionCursor == null) {
+            long[] cursor = new long[this.regions.getRegionCount()];
+            int index = 0;
             for (FlatRegionInfo region : this.regions.getRegions()) {
-                // Abort handling
-                if (this.aborted) {
-                    return;
-                }
-
-                // Load and update stats
-                region.load();
-                this.chunkCount -= ASSUMED_CHUNKS_PER_REGION - region.getChunkCount();
-                this.regionCountLoaded++;
+                cursor[index++] = MathUtil.longHashToLong(region.rx, region.rz);
             }
+            FlatRegionInfoMap.sortSerpentine(cursor);
+            this.regionCursorIndex = 0;
+            this.regionCursor = cursor;
         }
 
-        // We now know of all the regions to be processed, convert all of them into tasks
-        // Use a slightly larger area to avoid cross-region errors
-        for (FlatRegionInfo region : regions.getRegions()) {
+        // Start reading the chunks stored in the remaining regions in parallel
+        if (this.regionScanner == null && !this.options.getLoadedChunksOnly()) {
+            this.startRegionScanner();
+        }
+
+        // Convert the next few regions of the cursor into batch tasks
+        // The batches scheduled last time have all been processed by now, as they were
+        // queued in front of this task. So schedule a new look-ahead window of batches.
+        // The batch of the region after the window is created up-front, so that the last
+        // batch of the window can hand over its chunks to it. It is scheduled first
+        // the next time this task is processed.
+        final long[] cursor = this.regionCursor;
+        int numScheduled = 0;
+        LightingTaskBatch previousBatch = null;
+        if (this.carriedBatch != null) {
+            previousBatch = this.carriedBatch;
+            this.carriedBatch = null;
+            this.scheduleBatch(previousBatch);
+            numScheduled++;
+        }
+        while (this.regionCursorIndex < cursor.length && numScheduled <= LOOK_AHEAD_BATCHES) {
             // Abort handling
             if (this.aborted) {
                 return;
             }
 
-            // If empty, skip
+            // Find the region at the cursor. If it no longer exists, skip it.
+            long regionKey = cursor[this.regionCursorIndex];
+            FlatRegionInfo region = this.regions.getRegion(MathUtil.longHashMsw(regionKey), MathUtil.longHashLsw(regionKey));
+            if (region == null) {
+                this.regionCursorIndex++;
+                continue;
+            }
+
+            // Read the chunks stored in the region. If empty, skip.
+            region.load();
             if (region.getChunkCount() == 0) {
+                this.regionCursorIndex++;
                 continue;
             }
 
-            // Find region Y-coordinates for this 34x34 section of chunks
-            int[] region_y_coordinates = regions.getRegionYCoordinatesSelfAndNeighbours(region);
-
-            // Reduce count, schedule and clear the buffer
-            // Put the coordinates that are available
-            final LongHashSet buffer = new LongHashSet(34*34);
-            if (LightCleaner.skipWorldEdge) {
-                int dx, dz;
-                for (dx = -1; dx < 33; dx++) {
-                    for (dz = -1; dz < 33; dz++) {
-                        int cx = region.cx + dx;
-                        int cz = region.cz + dz;
-                        if (this.regions.containsChunkAndNeighbours(cx, cz)) {
-                            buffer.add(cx, cz);
-                        }
-                    }
-                }
-            } else {
-                int dx, dz;
-                for (dx = -1; dx < 33; dx++) {
-                    for (dz = -1; dz < 33; dz++) {
-                        int cx = region.cx + dx;
-                        int cz = region.cz + dz;
-                        if (this.regions.containsChunk(cx, cz)) {
-                            buffer.add(cx, cz);
-                        }
-                    }
-                }
+            // Abort handling, must not advance the cursor without scheduling
+            // If no chunks of the region need cleaning, skip it
+            LightingTaskBatch batch = this.createBatch(region);
+            if (this.aborted) {
+                return;
+            }
+            if (batch == null) {
+                this.regionsScheduled++;
+                this.regionCursorIndex++;
+                continue;
             }
 
-            // Schedule and return amount of chunks
-            this.chunkCount -= buffer.size();
-            LightingTaskBatch batch_task = new LightingTaskBatch(this.getWorld(), region_y_coordinates, buffer);
-            batch_task.applyOptions(this.options);
-            LightingService.schedule(batch_task);
+            if (previousBatch != null) {
+                previousBatch.setNextBatch(batch);
+            }
+            previousBatch = batch;
+            if (numScheduled == LOOK_AHEAD_BATCHES) {
+                // Carry over to the next window. The cursor is advanced once it is scheduled,
+                // so that it is not lost when saved to PendingLight.dat before then.
+                this.carriedBatch = batch;
+                break;
+            }
+            this.scheduleBatch(batch);
+            numScheduled++;
+        }
+
+        // Log scanning throughput once all regions have been read
+        RegionFileScanner scanner = this.regionScanner;
+        if (scanner != null && scanner.isDone() && scanner.getTotalCount() > 0 && !this.regionScanLogged) {
+            this.regionScanLogged = true;
+            LightCleaner.plugin.log(Level.INFO, "Read chunks of " + scanner.getTotalCount() + " regions of world " +
+                    this.getWorld().getName() + " in " + scanner.getDuration() + " ms (" +
+                    ((int) scanner.getRegionsPerSecond()) + " regions/s)");
+            RegionChunkIndex.get(this.getWorld()).save();
+        }
+
+        // If there are more regions to process, schedule this task again after the batches
+        if ((this.carriedBatch != null || this.regionCursorIndex < cursor.length) && !this.aborted) {
+            LightingService.schedule(this);
+        } else if (scanner != null) {
+            scanner.cancel();
         }
     }
 
+    /**
+     * Creates the batch cleaning the 34x34 area of chunks of a region
+     *
+     * @param region Region to clean
+     * @return batch, or null if no chunks need cleaning
+     */
+    private LightingTaskBatch createBatch(FlatRegionInfo region) {
+        // Find region Y-coordinates for this 34x34 section of chunks
+        int[] region_y_coordinates = regions.getRegionYCoordinatesSelfAndNeighbours(region);
+
+        // Put the coordinates that are available straight into the chunk bitmap of the batch
+        // With skipWorldEdge, only chunks whose neighbours all exist are included
+        // Use a slightly larger area to avoid cross-region errors
+        FlatChunkSet.Builder buffer = FlatChunkSet.builder(region.cx - 1, region.cz - 1, 34, 34);
+        long[] rows = this.regions.getChunkRows(region.cx - 1, region.cz - 1, 34, 34, LightCleaner.skipWorldEdge);
+        for (int dz = 0; dz < rows.length; dz++) {
+            long row = rows[dz];
+            while (row != 0L) {
+                int dx = Long.numberOfTrailingZeros(row);
+                buffer.add(region.cx - 1 + dx, region.cz - 1 + dz);
+                row &= row - 1L;
+            }
+        }
+        if (buffer.size() == 0) {
+            return null;
+        }
+
+        LightingTaskBatch batch_task = new LightingTaskBatch(this.getWorld(), region_y_coordinates, buffer.build());
+        batch_task.applyOptions(this.options);
+        batch_task.setBorderSpillEnabled(LightCleaner.borderSpill);
+        return batch_task;
+    }
+
+    /**
+     * Schedules a batch created for the region at the cursor, and advances the cursor
+     *
+     * @param batch Batch to schedule
+     */
+    private void scheduleBatch(LightingTaskBatch batch) {
+        this.chunksScheduled += batch.getChunkCount();
+        LightingService.schedule(batch);
+        this.regionsScheduled++;
+        this.regionCursorIndex++;
+    }
+
+    private void startRegionScanner() {
+        long[] cursor = this.regionCursor;
+        List<FlatRegionInfo> toScan = new ArrayList<FlatRegionInfo>(cursor.length - this.regionCursorIndex);
+        for (int i = this.regionCursorIndex; i < cursor.length; i++) {
+            FlatRegionInfo region = this.regions.getRegion(MathUtil.longHashMsw(cursor[i]), MathUtil.longHashLsw(cursor[i]));
+            if (region != null && !region.isLoaded()) {
+                toScan.add(region);
+            }
+        }
+        this.regionScanner = RegionFileScanner.start(toScan);
+    }
+
     @Override
     public void abort() {
         this.aborted = true;
+        RegionFileScanner scanner = this.regionScanner;
+        if (scanner != null) {
+            scanner.cancel();
+        }
     }
 
     @Override
@@ -170,8 +343,13 @@ public class LightingTaskWorld implements LightingTask {
         this.options = args;
     }
 
+    @Override
+    public boolean isAudit() {
+        return this.options.getAudit();
+    }
+
     @Override
     public boolean canSave() {
-        return false;
+        return !this.options.getLoadedChunksOnly() && !this.options.getDebugMakeCorrupted() && !this.options.getAudit() && !this.options.getSeams();
     }
 }
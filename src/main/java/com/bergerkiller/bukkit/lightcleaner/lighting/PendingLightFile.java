@@ -0,0 +1,209 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.lightcleaner.util.FlatChunkSet;
+
+/**
+ * Reads and writes the data format of the PendingLight.dat file, which stores the
+ * lighting tasks that were still queued. Creating and scheduling the tasks read
+ * is done by the {@link LightingService}.<br>
+ * <br>
+ * Version 2 stores every batch as a list of chunk coordinates. Version 3 prefixes every
+ * entry with the type of task, and stores the chunks of batches as a {@link FlatChunkSet}.
+ */
+final class PendingLightFile {
+    public static final int VERSION = 3;
+    public static final int TYPE_BATCH = 0;
+    public static final int TYPE_WORLD = 1;
+
+    private PendingLightFile() {
+    }
+
+    /**
+     * Writes the header of the file
+     *
+     * @param stream
+     * @param count Number of entries that follow
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutputStream stream, int count) throws IOException {
+        stream.writeInt(-1); // Legacy version
+        stream.writeByte(VERSION); // Version ID
+        stream.writeInt(count);
+    }
+
+    /**
+     * Reads the version of the data format stored, which is the start of the header
+     *
+     * @param stream
+     * @return version, or -1 if it is an old format without a version
+     * @throws IOException
+     */
+    public static int readVersion(DataInputStream stream) throws IOException {
+        if (stream.readInt() >= 0) {
+            return -1; // Before version byte was added
+        }
+        return stream.readByte() & 0xFF;
+    }
+
+    /**
+     * Gets whether a version of the data format can be read
+     *
+     * @param version
+     * @return True if supported
+     */
+    public static boolean isSupported(int version) {
+        return version == 2 || version == VERSION;
+    }
+
+    /**
+     * Writes an entry storing a batch of chunks
+     *
+     * @param stream
+     * @param worldName Name of the world of the batch
+     * @param regionYCoordinates Region y-coordinates to look for chunk sections
+     * @param chunks Chunks of the batch
+     * @throws IOException
+     */
+    public static void writeBatch(DataOutputStream stream, String worldName, int[] regionYCoordinates, FlatChunkSet chunks) throws IOException {
+        stream.writeByte(TYPE_BATCH);
+        stream.writeUTF(worldName);
+        stream.writeInt(regionYCoordinates.length);
+        for (int region : regionYCoordinates) {
+            stream.writeInt(region);
+        }
+        chunks.write(stream);
+    }
+
+    /**
+     * Writes an entry storing a task cleaning an entire world
+     *
+     * @param stream
+     * @param worldName Name of the world
+     * @param regionCursor Regions still to process, null if not yet known
+     * @throws IOException
+     */
+    public static void writeWorld(DataOutputStream stream, String worldName, long[] regionCursor) throws IOException {
+        stream.writeByte(TYPE_WORLD);
+        stream.writeUTF(worldName);
+        if (regionCursor == null) {
+            stream.writeInt(-1);
+        } else {
+            stream.writeInt(regionCursor.length);
+            for (long region : regionCursor) {
+                stream.writeInt(MathUtil.longHashMsw(region));
+                stream.writeInt(MathUtil.longHashLsw(region));
+            }
+        }
+    }
+
+    /**
+     * Reads the next entry. The data of entries of worlds that cannot be loaded is skipped.
+     *
+     * @param stream
+     * @param version Version of the data format, see {@link #readVersion(DataInputStream)}
+     * @param isWorldLoadable Gets whether a world by a name can be loaded
+     * @return entry read, or null if the type of task stored is not supported
+     * @throws IOException
+     */
+    public static Entry readEntry(DataInputStream stream, int version, Predicate<String> isWorldLoadable) throws IOException {
+        // Version 3 and later prefix every entry with the type of task stored
+        int type = TYPE_BATCH;
+        if (version >= 3) {
+            type = stream.readUnsignedByte();
+            if (type != TYPE_BATCH && type != TYPE_WORLD) {
+                return null;
+            }
+        }
+
+        String worldName = stream.readUTF();
+        if (!isWorldLoadable.test(worldName)) {
+            // Not loadable. Ignore the data, skip it entirely.
+            if (type == TYPE_WORLD) {
+                int regionCount = stream.readInt();
+                if (regionCount > 0) {
+                    stream.skipBytes(regionCount * 2 * (Integer.SIZE / Byte.SIZE));
+                }
+            } else {
+                int regionYCoordinateCount = stream.readInt();
+                stream.skipBytes(regionYCoordinateCount * (Integer.SIZE / Byte.SIZE));
+                if (version >= 3) {
+                    FlatChunkSet.skip(stream);
+                } else {
+                    int chunkCount = stream.readInt();
+                    stream.skipBytes(chunkCount * (Long.SIZE / Byte.SIZE));
+                }
+            }
+            return new Entry(type, worldName, false, null, null, null);
+        }
+
+        if (type == TYPE_WORLD) {
+            // Load the cursor of regions the world task has yet to process
+            // A negative count means the regions of the world were not read yet
+            int regionCount = stream.readInt();
+            long[] regionCursor = null;
+            if (regionCount >= 0) {
+                regionCursor = new long[regionCount];
+                for (int i = 0; i < regionCount; i++) {
+                    int rx = stream.readInt();
+                    int rz = stream.readInt();
+                    regionCursor[i] = MathUtil.longHashToLong(rx, rz);
+                }
+            }
+            return new Entry(type, worldName, true, null, null, regionCursor);
+        }
+
+        // Load all the region coordinates
+        int regionYCoordinateCount = stream.readInt();
+        int[] regionYCoordinates = new int[regionYCoordinateCount];
+        for (int i = 0; i < regionYCoordinateCount; i++) {
+            regionYCoordinates[i] = stream.readInt();
+        }
+
+        // Load all the chunk coordinates
+        FlatChunkSet chunks;
+        if (version >= 3) {
+            chunks = FlatChunkSet.read(stream);
+        } else {
+            int chunkCount = stream.readInt();
+            long[] coordinates = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                coordinates[i] = stream.readLong();
+            }
+            chunks = FlatChunkSet.create(coordinates);
+        }
+        return new Entry(type, worldName, true, regionYCoordinates, chunks, null);
+    }
+
+    /**
+     * A single task read from the file
+     */
+    public static final class Entry {
+        /** Type of task, {@link PendingLightFile#TYPE_BATCH} or {@link PendingLightFile#TYPE_WORLD} */
+        public final int type;
+        /** Name of the world of the task */
+        public final String worldName;
+        /** Whether the data was read. If false, the world could not be loaded and the data was skipped. */
+        public final boolean isLoaded;
+        /** Region y-coordinates of a batch */
+        public final int[] regionYCoordinates;
+        /** Chunks of a batch */
+        public final FlatChunkSet chunks;
+        /** Regions a world task has yet to process, null if not yet known */
+        public final long[] regionCursor;
+
+        private Entry(int type, String worldName, boolean isLoaded, int[] regionYCoordinates, FlatChunkSet chunks, long[] regionCursor) {
+            this.type = type;
+            this.worldName = worldName;
+            this.isLoaded = isLoaded;
+            this.regionYCoordinates = regionYCoordinates;
+            this.chunks = chunks;
+            this.regionCursor = regionCursor;
+        }
+    }
+}
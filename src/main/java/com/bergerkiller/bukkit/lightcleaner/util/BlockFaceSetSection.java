@@ -1,18 +1,44 @@
 package com.bergerkiller.bukkit.lightcleaner.util;
 
+import java.nio.ByteBuffer;
+
 import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
 
 /**
  * Maps {@link BlockFaceSet} values to a 16x16x16 area of blocks
  */
 public class BlockFaceSetSection {
-    private final byte[] _maskData = new byte[4096];
+    public static final int SIZE = 4096;
+    private final ByteBuffer _maskData;
+
+    public BlockFaceSetSection() {
+        this(ByteBuffer.wrap(new byte[SIZE]));
+    }
+
+    /**
+     * Creates a new block face set section storing its data in a buffer
+     *
+     * @param maskData Buffer of {@link #SIZE} bytes, all set to 0
+     */
+    public BlockFaceSetSection(ByteBuffer maskData) {
+        _maskData = maskData;
+    }
 
     public void set(int x, int y, int z, BlockFaceSet faces) {
-        _maskData[(y << 8) | (z << 4) | x] = (byte) faces.mask();
+        _maskData.put((y << 8) | (z << 4) | x, (byte) faces.mask());
     }
 
     public BlockFaceSet get(int x, int y, int z) {
-        return BlockFaceSet.byMask((int) _maskData[(y << 8) | (z << 4) | x]);
+        return BlockFaceSet.byMask((int) _maskData.get((y << 8) | (z << 4) | x));
+    }
+
+    /**
+     * Gets the raw face mask data of all 4096 blocks. Should not be modified.
+     * If the data is not stored on the heap, a copy is returned.
+     *
+     * @return mask data
+     */
+    public byte[] getData() {
+        return CubeStorage.getBytes(_maskData);
     }
 }
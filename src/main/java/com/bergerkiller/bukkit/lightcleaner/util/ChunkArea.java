@@ -0,0 +1,385 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet.LongIterator;
+
+/**
+ * Describes an area of chunks to clean. Rectangle and circle areas answer
+ * whether they contain chunks, or intersect with a rectangle of chunks,
+ * analytically. This means large areas do not require every chunk in them
+ * to be stored in memory.
+ */
+public interface ChunkArea {
+
+    /**
+     * Gets the number of chunks in this area
+     *
+     * @return chunk count
+     */
+    int getChunkCount();
+
+    /**
+     * Gets whether a chunk is inside this area
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if contained
+     */
+    boolean contains(int cx, int cz);
+
+    /**
+     * Gets whether some chunks of a rectangle of chunks are inside this area.
+     * May return true when they are not, but never false when they are.
+     *
+     * @param minCx Minimum chunk x-coordinate (inclusive)
+     * @param minCz Minimum chunk z-coordinate (inclusive)
+     * @param maxCx Maximum chunk x-coordinate (inclusive)
+     * @param maxCz Maximum chunk z-coordinate (inclusive)
+     * @return True if the rectangle intersects with this area
+     */
+    boolean intersects(int minCx, int minCz, int maxCx, int maxCz);
+
+    /**
+     * Gets whether all chunks of a rectangle of chunks are inside this area.
+     * May return false when they are, but never true when they are not.
+     *
+     * @param minCx Minimum chunk x-coordinate (inclusive)
+     * @param minCz Minimum chunk z-coordinate (inclusive)
+     * @param maxCx Maximum chunk x-coordinate (inclusive)
+     * @param maxCz Maximum chunk z-coordinate (inclusive)
+     * @return True if the rectangle is fully inside this area
+     */
+    boolean containsAll(int minCx, int minCz, int maxCx, int maxCz);
+
+    /**
+     * Gets the minimum chunk x-coordinate of the bounding box of this area
+     *
+     * @return minimum chunk x-coordinate
+     */
+    int getMinChunkX();
+
+    /**
+     * Gets the minimum chunk z-coordinate of the bounding box of this area
+     *
+     * @return minimum chunk z-coordinate
+     */
+    int getMinChunkZ();
+
+    /**
+     * Gets the maximum chunk x-coordinate of the bounding box of this area
+     *
+     * @return maximum chunk x-coordinate
+     */
+    int getMaxChunkX();
+
+    /**
+     * Gets the maximum chunk z-coordinate of the bounding box of this area
+     *
+     * @return maximum chunk z-coordinate
+     */
+    int getMaxChunkZ();
+
+    /**
+     * Iterates all the chunks inside this area
+     *
+     * @param consumer Consumer accepting the chunk coordinates
+     */
+    void forEach(FlatChunkSet.ChunkConsumer consumer);
+
+    /**
+     * Collects all chunks inside this area into a new set. Should only be
+     * used for small areas.
+     *
+     * @return set of chunk coordinates
+     */
+    default LongHashSet toLongHashSet() {
+        final LongHashSet chunks = new LongHashSet(this.getChunkCount());
+        this.forEach(chunks::add);
+        return chunks;
+    }
+
+    /**
+     * Creates a rectangle area of chunks.
+     * Make sure the minimum chunk coordinates are less or equal to
+     * the maximum chunk coordinates.
+     *
+     * @param minCx Minimum chunk x-coordinate (inclusive)
+     * @param minCz Minimum chunk z-coordinate (inclusive)
+     * @param maxCx Maximum chunk x-coordinate (inclusive)
+     * @param maxCz Maximum chunk z-coordinate (inclusive)
+     * @return rectangle chunk area
+     */
+    public static ChunkArea rectangle(int minCx, int minCz, int maxCx, int maxCz) {
+        return new Rectangle(minCx, minCz, maxCx, maxCz);
+    }
+
+    /**
+     * Creates a circle area of chunks. Chunks whose distance to the middle
+     * chunk is less or equal to the radius are contained.
+     *
+     * @param middleCx Chunk x-coordinate of the middle chunk
+     * @param middleCz Chunk z-coordinate of the middle chunk
+     * @param radius Radius in chunks
+     * @return circle chunk area
+     */
+    public static ChunkArea circle(int middleCx, int middleCz, int radius) {
+        return new Circle(middleCx, middleCz, radius);
+    }
+
+    /**
+     * Creates an area of chunks out of a set of chunk coordinates
+     *
+     * @param chunks Set of chunk coordinates, should not be modified afterwards
+     * @return chunk area
+     */
+    public static ChunkArea of(LongHashSet chunks) {
+        return new ChunkSet(chunks);
+    }
+
+    /**
+     * A rectangle of chunks
+     */
+    public static final class Rectangle implements ChunkArea {
+        private final int minCx, minCz, maxCx, maxCz;
+
+        private Rectangle(int minCx, int minCz, int maxCx, int maxCz) {
+            this.minCx = minCx;
+            this.minCz = minCz;
+            this.maxCx = maxCx;
+            this.maxCz = maxCz;
+        }
+
+        @Override
+        public int getChunkCount() {
+            long count = (long) (this.maxCx - this.minCx + 1) * (long) (this.maxCz - this.minCz + 1);
+            return (int) Math.max(0L, Math.min(Integer.MAX_VALUE, count));
+        }
+
+        @Override
+        public boolean contains(int cx, int cz) {
+            return cx >= this.minCx && cz >= this.minCz && cx <= this.maxCx && cz <= this.maxCz;
+        }
+
+        @Override
+        public boolean intersects(int minCx, int minCz, int maxCx, int maxCz) {
+            return maxCx >= this.minCx && maxCz >= this.minCz && minCx <= this.maxCx && minCz <= this.maxCz;
+        }
+
+        @Override
+        public boolean containsAll(int minCx, int minCz, int maxCx, int maxCz) {
+            return minCx >= this.minCx && minCz >= this.minCz && maxCx <= this.maxCx && maxCz <= this.maxCz;
+        }
+
+        @Override
+        public int getMinChunkX() {
+            return this.minCx;
+        }
+
+        @Override
+        public int getMinChunkZ() {
+            return this.minCz;
+        }
+
+        @Override
+        public int getMaxChunkX() {
+            return this.maxCx;
+        }
+
+        @Override
+        public int getMaxChunkZ() {
+            return this.maxCz;
+        }
+
+        @Override
+        public void forEach(FlatChunkSet.ChunkConsumer consumer) {
+            for (int cx = this.minCx; cx <= this.maxCx; cx++) {
+                for (int cz = this.minCz; cz <= this.maxCz; cz++) {
+                    consumer.accept(cx, cz);
+                }
+            }
+        }
+    }
+
+    /**
+     * A circle of chunks
+     */
+    public static final class Circle implements ChunkArea {
+        private final int middleCx, middleCz, radius;
+        private final long radiusSquared;
+
+        private Circle(int middleCx, int middleCz, int radius) {
+            this.middleCx = middleCx;
+            this.middleCz = middleCz;
+            this.radius = radius;
+            this.radiusSquared = (long) radius * (long) radius;
+        }
+
+        /**
+         * Gets the half-width of the row of chunks at a distance from the middle
+         *
+         * @param dx Distance from the middle along the x-axis
+         * @return half-width along the z-axis, -1 if no chunks are in this row
+         */
+        private int getHalfWidth(long dx) {
+            long remaining = this.radiusSquared - dx * dx;
+            if (remaining < 0) {
+                return -1;
+            }
+            int half = (int) Math.sqrt((double) remaining);
+            while ((long) (half + 1) * (half + 1) <= remaining) {
+                half++;
+            }
+            while ((long) half * half > remaining) {
+                half--;
+            }
+            return half;
+        }
+
+        @Override
+        public int getChunkCount() {
+            long count = 0;
+            for (int dx = -this.radius; dx <= this.radius; dx++) {
+                count += 2 * getHalfWidth(dx) + 1;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, count);
+        }
+
+        @Override
+        public boolean contains(int cx, int cz) {
+            long dx = cx - this.middleCx;
+            long dz = cz - this.middleCz;
+            return (dx * dx + dz * dz) <= this.radiusSquared;
+        }
+
+        @Override
+        public boolean intersects(int minCx, int minCz, int maxCx, int maxCz) {
+            // Find the chunk of the rectangle nearest to the middle
+            int nearestCx = MathUtil.clamp(this.middleCx, minCx, maxCx);
+            int nearestCz = MathUtil.clamp(this.middleCz, minCz, maxCz);
+            return this.contains(nearestCx, nearestCz);
+        }
+
+        @Override
+        public boolean containsAll(int minCx, int minCz, int maxCx, int maxCz) {
+            // Circle is convex, so only the corners have to be checked
+            return this.contains(minCx, minCz) && this.contains(maxCx, minCz) &&
+                   this.contains(minCx, maxCz) && this.contains(maxCx, maxCz);
+        }
+
+        @Override
+        public int getMinChunkX() {
+            return this.middleCx - this.radius;
+        }
+
+        @Override
+        public int getMinChunkZ() {
+            return this.middleCz - this.radius;
+        }
+
+        @Override
+        public int getMaxChunkX() {
+            return this.middleCx + this.radius;
+        }
+
+        @Override
+        public int getMaxChunkZ() {
+            return this.middleCz + this.radius;
+        }
+
+        @Override
+        public void forEach(FlatChunkSet.ChunkConsumer consumer) {
+            for (int dx = -this.radius; dx <= this.radius; dx++) {
+                int half = getHalfWidth(dx);
+                for (int dz = -half; dz <= half; dz++) {
+                    consumer.accept(this.middleCx + dx, this.middleCz + dz);
+                }
+            }
+        }
+    }
+
+    /**
+     * A set of individual chunks
+     */
+    public static final class ChunkSet implements ChunkArea {
+        private final LongHashSet chunks;
+        private final int minCx, minCz, maxCx, maxCz;
+
+        private ChunkSet(LongHashSet chunks) {
+            this.chunks = chunks;
+
+            int minCx = Integer.MAX_VALUE;
+            int minCz = Integer.MAX_VALUE;
+            int maxCx = Integer.MIN_VALUE;
+            int maxCz = Integer.MIN_VALUE;
+            LongIterator iter = chunks.longIterator();
+            while (iter.hasNext()) {
+                long key = iter.next();
+                int cx = MathUtil.longHashMsw(key);
+                int cz = MathUtil.longHashLsw(key);
+                minCx = Math.min(minCx, cx);
+                minCz = Math.min(minCz, cz);
+                maxCx = Math.max(maxCx, cx);
+                maxCz = Math.max(maxCz, cz);
+            }
+            this.minCx = minCx;
+            this.minCz = minCz;
+            this.maxCx = maxCx;
+            this.maxCz = maxCz;
+        }
+
+        @Override
+        public int getChunkCount() {
+            return this.chunks.size();
+        }
+
+        @Override
+        public boolean contains(int cx, int cz) {
+            return this.chunks.contains(cx, cz);
+        }
+
+        @Override
+        public boolean intersects(int minCx, int minCz, int maxCx, int maxCz) {
+            return maxCx >= this.minCx && maxCz >= this.minCz && minCx <= this.maxCx && minCz <= this.maxCz;
+        }
+
+        @Override
+        public boolean containsAll(int minCx, int minCz, int maxCx, int maxCz) {
+            return false;
+        }
+
+        @Override
+        public int getMinChunkX() {
+            return this.minCx;
+        }
+
+        @Override
+        public int getMinChunkZ() {
+            return this.minCz;
+        }
+
+        @Override
+        public int getMaxChunkX() {
+            return this.maxCx;
+        }
+
+        @Override
+        public int getMaxChunkZ() {
+            return this.maxCz;
+        }
+
+        @Override
+        public void forEach(FlatChunkSet.ChunkConsumer consumer) {
+            LongIterator iter = this.chunks.longIterator();
+            while (iter.hasNext()) {
+                long key = iter.next();
+                consumer.accept(MathUtil.longHashMsw(key), MathUtil.longHashLsw(key));
+            }
+        }
+
+        @Override
+        public LongHashSet toLongHashSet() {
+            return this.chunks;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Tracks which chunks of a world exist, stored as a bitmap per region of 32x32 chunks.
+ * The first time a region is accessed, the chunks stored in its region file are read
+ * using the {@link RegionChunkIndex} on another thread. The regions next to chunks at the
+ * edge of a region are read ahead too. Chunks are added when they load or are generated.
+ * Checking whether chunks exist is then a bit test, instead of a call to
+ * {@link WorldUtil#isChunkAvailable(World, int, int)}. Until the region file of a region
+ * is read, that method is used instead.<br>
+ * <br>
+ * This map may only be used on the main thread.
+ */
+public class ChunkAvailabilityMap {
+    private static final Map<World, ChunkAvailabilityMap> maps = new HashMap<World, ChunkAvailabilityMap>();
+    private static ExecutorService readExecutor = null;
+    private final World world;
+    private final LongHashMap<Region> regions = new LongHashMap<Region>();
+    private Region lastRegion = null;
+
+    private ChunkAvailabilityMap(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Marks a chunk as existing
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public void markAvailable(int cx, int cz) {
+        this.getRegion(cx >> 5, cz >> 5).rows[cz & 0x1F] |= (1 << (cx & 0x1F));
+
+        // Chunks at the edge of a region are checked against the chunks of the region next to it
+        // Start reading those regions now, so they are known by the time they are checked
+        if (((cx + 1) & 0x1F) <= 1 || ((cz + 1) & 0x1F) <= 1) {
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    this.getRegion((cx + dx) >> 5, (cz + dz) >> 5);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets whether a chunk exists, either loaded or stored in a region file
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if the chunk exists
+     */
+    public boolean isAvailable(int cx, int cz) {
+        Region region = this.getRegion(cx >> 5, cz >> 5);
+        if (!region.isMerged && region.isRead) {
+            region.merge();
+        }
+        if ((region.rows[cz & 0x1F] & (1 << (cx & 0x1F))) != 0) {
+            return true;
+        } else if ((!region.isMerged || region.isFallback) && WorldUtil.isChunkAvailable(this.world, cx, cz)) {
+            this.markAvailable(cx, cz);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Gets whether all chunks in a square area around a chunk exist
+     *
+     * @param cx Chunk x-coordinate of the middle chunk
+     * @param cz Chunk z-coordinate of the middle chunk
+     * @param radius Radius of the square area
+     * @return True if all chunks from [cx - radius, cz - radius] to [cx + radius, cz + radius] exist
+     */
+    public boolean containsArea(int cx, int cz, int radius) {
+        for (int z = cz - radius; z <= cz + radius; z++) {
+            for (int x = cx - radius; x <= cx + radius; x++) {
+                if (!this.isAvailable(x, z)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Region getRegion(int rx, int rz) {
+        Region region = this.lastRegion;
+        if (region == null || region.rx != rx || region.rz != rz) {
+            region = this.regions.get(rx, rz);
+            if (region == null) {
+                region = new Region(rx, rz);
+                this.regions.put(rx, rz, region);
+                this.startReadingRegionFile(region);
+            }
+            this.lastRegion = region;
+        }
+        return region;
+    }
+
+    private void startReadingRegionFile(final Region region) {
+        if (readExecutor == null) {
+            readExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "LightCleaner-ChunkAvailability");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        final World world = this.world;
+        readExecutor.execute(() -> {
+            try {
+                region.readChunks = RegionChunkIndex.get(world).getChunks(region.rx, region.rz,
+                        RegionFileScanner.getRegionFile(world, region.rx, region.rz));
+            } catch (Throwable t) {
+                LightCleaner.plugin.log(Level.WARNING, "Failed to read chunks of region [" + region.rx + ", " + region.rz +
+                        "] of world " + world.getName() + ": " + t.getMessage());
+                region.isFallback = true;
+            }
+            region.isRead = true;
+        });
+    }
+
+    /**
+     * Gets the chunk availability map of a world, creating it the first time.
+     * All chunks currently loaded are marked as existing.
+     *
+     * @param world
+     * @return chunk availability map
+     */
+    public static ChunkAvailabilityMap get(World world) {
+        ChunkAvailabilityMap map = maps.get(world);
+        if (map == null) {
+            map = new ChunkAvailabilityMap(world);
+            for (Chunk chunk : world.getLoadedChunks()) {
+                map.markAvailable(chunk.getX(), chunk.getZ());
+            }
+            maps.put(world, map);
+        }
+        return map;
+    }
+
+    /**
+     * Marks a chunk as existing, if the chunk availability map of the world was created
+     *
+     * @param world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public static void notifyAvailable(World world, int cx, int cz) {
+        ChunkAvailabilityMap map = maps.get(world);
+        if (map != null) {
+            map.markAvailable(cx, cz);
+        }
+    }
+
+    /**
+     * Forgets the chunk availability map of a world, for when the world unloads
+     *
+     * @param world
+     */
+    public static void remove(World world) {
+        maps.remove(world);
+    }
+
+    /**
+     * Forgets the chunk availability maps of all worlds, and stops reading region files
+     */
+    public static void clear() {
+        maps.clear();
+        if (readExecutor != null) {
+            readExecutor.shutdownNow();
+            readExecutor = null;
+        }
+    }
+
+    private static final class Region {
+        public final int rx, rz;
+        public final int[] rows = new int[32];
+        public volatile BitSet readChunks = null;
+        public volatile boolean isFallback = false;
+        public volatile boolean isRead = false;
+        public boolean isMerged = false;
+
+        public Region(int rx, int rz) {
+            this.rx = rx;
+            this.rz = rz;
+        }
+
+        /**
+         * Adds the chunks read from the region file on another thread to the rows.
+         * Must be called on the main thread once reading is done.
+         */
+        public void merge() {
+            BitSet chunks = this.readChunks;
+            if (chunks != null) {
+                for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                    this.rows[i >> 5] |= (1 << (i & 0x1F));
+                }
+                this.readChunks = null;
+            }
+            this.isMerged = true;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+
+/**
+ * Sparse set of chunk coordinates stored as 64-bit words, each storing 64 chunks
+ * in a row along the x-axis. Checking that all chunks in an area around a chunk
+ * are contained is done by checking a masked word for every row, rather than
+ * looking up every chunk separately.
+ */
+public class ChunkRowBitmap {
+    private final LongHashMap<long[]> words = new LongHashMap<long[]>();
+
+    /**
+     * Adds a chunk to this bitmap
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public void set(int cx, int cz) {
+        long[] word = this.words.get(cx >> 6, cz);
+        if (word == null) {
+            word = new long[1];
+            this.words.put(cx >> 6, cz, word);
+        }
+        word[0] |= (1L << (cx & 0x3F));
+    }
+
+    /**
+     * Gets whether a chunk was added to this bitmap
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if contained
+     */
+    public boolean get(int cx, int cz) {
+        return (this.getWord(cx >> 6, cz) & (1L << (cx & 0x3F))) != 0L;
+    }
+
+    /**
+     * Gets 64 chunks of a row along the x-axis. Bit i is set when chunk
+     * [x + i, z] is contained.
+     *
+     * @param cx Chunk x-coordinate of the first chunk of the row
+     * @param cz Chunk z-coordinate of the row
+     * @return row of 64 chunks
+     */
+    public long getRow(int cx, int cz) {
+        int shift = cx & 0x3F;
+        long row = (this.getWord(cx >> 6, cz) >>> shift);
+        if (shift != 0) {
+            row |= (this.getWord((cx >> 6) + 1, cz) << (64 - shift));
+        }
+        return row;
+    }
+
+    /**
+     * Gets whether all chunks in a square area around a chunk are contained
+     *
+     * @param cx Chunk x-coordinate of the middle chunk
+     * @param cz Chunk z-coordinate of the middle chunk
+     * @param radius Radius of the square area, less than 32
+     * @return True if all chunks from [cx - radius, cz - radius] to [cx + radius, cz + radius] are contained
+     */
+    public boolean containsArea(int cx, int cz, int radius) {
+        long mask = (1L << (2 * radius + 1)) - 1L;
+        for (int z = cz - radius; z <= cz + radius; z++) {
+            if ((this.getRow(cx - radius, z) & mask) != mask) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getWord(int wx, int cz) {
+        long[] word = this.words.get(wx, cz);
+        return (word == null) ? 0L : word[0];
+    }
+
+    /**
+     * Erodes a row of chunks along the x-axis. A bit is only kept set when
+     * the bits up to radius to the left and right of it are set too. Bits
+     * outside of the row are considered not set.
+     *
+     * @param row Row of chunks
+     * @param radius Erosion radius
+     * @return eroded row
+     */
+    public static long erodeRow(long row, int radius) {
+        long result = row;
+        for (int d = 1; d <= radius; d++) {
+            result &= (row >>> d) & (row << d);
+        }
+        return result;
+    }
+}
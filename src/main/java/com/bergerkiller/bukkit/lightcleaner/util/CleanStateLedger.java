@@ -0,0 +1,263 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.config.CompressedDataReader;
+import com.bergerkiller.bukkit.common.config.CompressedDataWriter;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Records, for every chunk of a world that was cleaned, a fingerprint of the
+ * light-relevant block data of the chunk and the time it was cleaned. When a
+ * chunk and all its neighbours still have the same fingerprint, the light stored
+ * in the chunk is still correct, and cleaning it again can be skipped.<br>
+ * <br>
+ * The ledger of a world is saved to CleanLedger/&lt;world&gt;.dat in the plugin folder.
+ */
+public class CleanStateLedger {
+    private static final int FILE_VERSION = 1;
+    private static final Map<String, CleanStateLedger> ledgers = new HashMap<String, CleanStateLedger>();
+    private final String worldName;
+    private final LongHashMap<Region> regions = new LongHashMap<Region>();
+    private boolean changed = false;
+
+    CleanStateLedger(String worldName) {
+        this.worldName = worldName;
+    }
+
+    /**
+     * Gets the fingerprint recorded for a chunk the last time it was cleaned
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return fingerprint, 0 if the chunk was never cleaned
+     */
+    public synchronized long getFingerprint(int cx, int cz) {
+        Region region = this.regions.get(cx >> 5, cz >> 5);
+        return (region == null) ? 0L : region.fingerprints[getIndex(cx, cz)];
+    }
+
+    /**
+     * Gets the time a chunk was last cleaned
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return time in milliseconds since the epoch, 0 if the chunk was never cleaned
+     */
+    public synchronized long getTimeCleaned(int cx, int cz) {
+        Region region = this.regions.get(cx >> 5, cz >> 5);
+        return (region == null) ? 0L : (1000L * region.times[getIndex(cx, cz)]);
+    }
+
+    /**
+     * Records that a chunk was cleaned right now
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @param fingerprint Fingerprint of the block data of the chunk, not 0
+     */
+    public synchronized void record(int cx, int cz, long fingerprint) {
+        Region region = this.regions.get(cx >> 5, cz >> 5);
+        if (region == null) {
+            region = new Region();
+            this.regions.put(cx >> 5, cz >> 5, region);
+        }
+        int index = getIndex(cx, cz);
+        region.fingerprints[index] = fingerprint;
+        region.times[index] = (int) (System.currentTimeMillis() / 1000L);
+        this.changed = true;
+    }
+
+    /**
+     * Forgets that a chunk was cleaned, so it is not skipped the next time
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public synchronized void remove(int cx, int cz) {
+        Region region = this.regions.get(cx >> 5, cz >> 5);
+        if (region != null) {
+            int index = getIndex(cx, cz);
+            if (region.fingerprints[index] != 0L) {
+                region.fingerprints[index] = 0L;
+                region.times[index] = 0;
+                this.changed = true;
+            }
+        }
+    }
+
+    /**
+     * Saves this ledger to disk, if it was changed since it was loaded or last saved
+     */
+    public void save() {
+        synchronized (this) {
+            if (!this.changed) {
+                return;
+            }
+            this.changed = false;
+        }
+
+        File file = getFile(this.worldName);
+        file.getParentFile().mkdirs();
+        if (!new CompressedDataWriter(file) {
+            @Override
+            public void write(DataOutputStream stream) throws IOException {
+                CleanStateLedger.this.write(stream);
+            }
+        }.write()) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to save clean state ledger of world " + this.worldName);
+        }
+    }
+
+    private void load() {
+        File file = getFile(this.worldName);
+        if (!file.exists()) {
+            return;
+        }
+        if (!new CompressedDataReader(file) {
+            @Override
+            public void read(DataInputStream stream) throws IOException {
+                CleanStateLedger.this.read(stream);
+            }
+        }.read()) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to read clean state ledger of world " + this.worldName + ", all chunks will be cleaned");
+            synchronized (this) {
+                this.regions.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the fingerprints and times of all chunks of this ledger.
+     * The regions are copied first, so chunks can be recorded meanwhile.
+     *
+     * @param stream
+     * @throws IOException
+     */
+    void write(DataOutputStream stream) throws IOException {
+        final List<Long> keys;
+        final List<Region> values;
+        synchronized (this) {
+            keys = new ArrayList<Long>(this.regions.size());
+            values = new ArrayList<Region>(this.regions.size());
+            for (long key : this.regions.getKeys()) {
+                keys.add(key);
+                values.add(this.regions.get(key).clone());
+            }
+        }
+
+        stream.writeByte(FILE_VERSION);
+        stream.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i).longValue();
+            Region region = values.get(i);
+            stream.writeInt(MathUtil.longHashMsw(key));
+            stream.writeInt(MathUtil.longHashLsw(key));
+            for (int n = 0; n < 1024; n++) {
+                stream.writeLong(region.fingerprints[n]);
+                stream.writeInt(region.times[n]);
+            }
+        }
+    }
+
+    /**
+     * Reads the fingerprints and times of chunks written by {@link #write(DataOutputStream)}.
+     * If the data is of another version, nothing is read, and all chunks are cleaned again.
+     *
+     * @param stream
+     * @throws IOException
+     */
+    void read(DataInputStream stream) throws IOException {
+        int version = stream.readUnsignedByte();
+        if (version != FILE_VERSION) {
+            return; // Outdated, everything is cleaned again
+        }
+        int count = stream.readInt();
+        for (int i = 0; i < count; i++) {
+            int rx = stream.readInt();
+            int rz = stream.readInt();
+            Region region = new Region();
+            for (int n = 0; n < 1024; n++) {
+                region.fingerprints[n] = stream.readLong();
+                region.times[n] = stream.readInt();
+            }
+            synchronized (this) {
+                this.regions.put(rx, rz, region);
+            }
+        }
+    }
+
+    private static int getIndex(int cx, int cz) {
+        return ((cz & 0x1F) << 5) | (cx & 0x1F);
+    }
+
+    /**
+     * Gets the clean state ledger of a world, loading it from disk the first time
+     *
+     * @param world
+     * @return clean state ledger
+     */
+    public static CleanStateLedger get(World world) {
+        synchronized (ledgers) {
+            CleanStateLedger ledger = ledgers.get(world.getName());
+            if (ledger == null) {
+                ledger = new CleanStateLedger(world.getName());
+                ledger.load();
+                ledgers.put(world.getName(), ledger);
+            }
+            return ledger;
+        }
+    }
+
+    /**
+     * Saves the clean state ledgers of all worlds that were changed
+     */
+    public static void saveAll() {
+        List<CleanStateLedger> toSave;
+        synchronized (ledgers) {
+            toSave = new ArrayList<CleanStateLedger>(ledgers.values());
+        }
+        for (CleanStateLedger ledger : toSave) {
+            ledger.save();
+        }
+    }
+
+    /**
+     * Saves and then unloads the clean state ledgers of all worlds
+     */
+    public static void unloadAll() {
+        saveAll();
+        synchronized (ledgers) {
+            ledgers.clear();
+        }
+    }
+
+    private static File getFile(String worldName) {
+        return LightCleaner.plugin.getDataFile("CleanLedger", worldName + ".dat");
+    }
+
+    private static final class Region implements Cloneable {
+        public long[] fingerprints = new long[1024];
+        public int[] times = new int[1024];
+
+        @Override
+        public Region clone() {
+            Region copy = new Region();
+            copy.fingerprints = this.fingerprints.clone();
+            copy.times = this.times.clone();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Pool of the buffers storing the block data of cubes. Buffers are taken out of the
+ * pool by a {@link CubeStorage} while a batch is cleaned, and handed back when the batch
+ * completes. The next batch then clears and reuses them, instead of allocating new ones.
+ * The pool grows to the number of buffers the largest batch needs at once.<br>
+ * <br>
+ * Buffers of a storage that is never released, like when a batch is aborted, are left
+ * for the garbage collector. Those buffers may still be written to by chunks being filled.<br>
+ * <br>
+ * Buffers are on the heap, or sliced out of large direct buffers when off-heap.
+ */
+public class CubeBufferPool {
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static boolean outOfDirectMemoryLogged = false;
+    private final boolean offHeap;
+    private final ArrayDeque<ByteBuffer> nibbleBuffers = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> faceBuffers = new ArrayDeque<ByteBuffer>();
+    private List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+    private ByteBuffer block = null;
+    private int outstanding = 0;
+    private long allocatedBytes = 0;
+    private long reusedBytes = 0;
+
+    public CubeBufferPool(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Gets whether the buffers of this pool are stored outside of the Java heap
+     *
+     * @return True if off-heap
+     */
+    public boolean isOffHeap() {
+        return this.offHeap;
+    }
+
+    /**
+     * Gets the name of the storage of this pool, for in log messages
+     *
+     * @return name
+     */
+    public String getName() {
+        return this.offHeap ? "off-heap" : "heap";
+    }
+
+    /**
+     * Gets the total number of bytes of buffers newly allocated by this pool
+     *
+     * @return allocated bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * Gets the total number of bytes of buffers that were reused, rather than allocated
+     *
+     * @return reused bytes
+     */
+    public synchronized long getReusedBytes() {
+        return this.reusedBytes;
+    }
+
+    /**
+     * Creates a new storage for the cubes of a batch, taking buffers out of this pool
+     *
+     * @return new cube storage
+     */
+    public CubeStorage createStorage() {
+        return new CubeStorage(this);
+    }
+
+    /**
+     * Takes a buffer out of this pool, allocating a new one if none are available.
+     * The buffer is all zeroes.
+     *
+     * @param size Size of the buffer, {@link NibbleSection#SIZE} or {@link BlockFaceSetSection#SIZE}
+     * @return buffer
+     */
+    synchronized ByteBuffer take(int size) {
+        this.outstanding++;
+        ByteBuffer buffer = this.getFreeBuffers(size).poll();
+        if (buffer != null) {
+            this.reusedBytes += size;
+            clearBuffer(buffer);
+            return buffer;
+        }
+
+        this.allocatedBytes += size;
+        if (!this.offHeap) {
+            return ByteBuffer.wrap(new byte[size]);
+        }
+        if (this.block == null || this.block.remaining() < size) {
+            try {
+                this.block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+                this.blocks.add(this.block);
+            } catch (OutOfMemoryError err) {
+                this.block = null;
+                logOutOfDirectMemory();
+                return ByteBuffer.wrap(new byte[size]);
+            }
+        }
+
+        // Direct buffers are zero-filled on allocation
+        ByteBuffer section = this.block.slice();
+        section.limit(size);
+        this.block.position(this.block.position() + size);
+        return section.slice();
+    }
+
+    /**
+     * Hands buffers taken out of this pool back, so they can be reused.
+     * The buffers may no longer be used by the caller afterwards.
+     *
+     * @param buffers Buffers to hand back
+     */
+    synchronized void give(List<ByteBuffer> buffers) {
+        this.outstanding = Math.max(0, this.outstanding - buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            this.getFreeBuffers(buffer.capacity()).add(buffer);
+        }
+    }
+
+    /**
+     * Forgets all buffers in this pool. If no buffers are taken out of the pool anymore,
+     * direct memory is freed right away. Otherwise, that is left to the garbage collector.
+     */
+    public void clear() {
+        List<ByteBuffer> toFree;
+        synchronized (this) {
+            this.nibbleBuffers.clear();
+            this.faceBuffers.clear();
+            toFree = (this.outstanding == 0) ? this.blocks : null;
+            this.blocks = new ArrayList<ByteBuffer>();
+            this.block = null;
+            this.outstanding = 0;
+        }
+        if (toFree != null) {
+            for (ByteBuffer buffer : toFree) {
+                LightingUtil.freeDirectBuffer(buffer);
+            }
+        }
+    }
+
+    private ArrayDeque<ByteBuffer> getFreeBuffers(int size) {
+        return (size == NibbleSection.SIZE) ? this.nibbleBuffers : this.faceBuffers;
+    }
+
+    private static void clearBuffer(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.capacity(), (byte) 0);
+        } else {
+            int i = 0;
+            int size = buffer.capacity();
+            for (; i <= (size - 8); i += 8) {
+                buffer.putLong(i, 0L);
+            }
+            for (; i < size; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static synchronized void logOutOfDirectMemory() {
+        if (!outOfDirectMemoryLogged) {
+            outOfDirectMemoryLogged = true;
+            LightCleaner.plugin.log(Level.WARNING, "Out of direct memory for off-heap cube storage, using the heap instead. " +
+                    "Increase -XX:MaxDirectMemorySize or lower the slabHeight to avoid this.");
+        }
+    }
+}
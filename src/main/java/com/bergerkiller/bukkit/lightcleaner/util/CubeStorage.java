@@ -0,0 +1,120 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates the block data of the cubes of a batch of chunks being cleaned.
+ * The buffers are taken out of a {@link CubeBufferPool}, and are handed back
+ * to it using {@link #release()} when the batch is done with them. The next
+ * batch can then reuse them, instead of allocating new ones.<br>
+ * <br>
+ * Sections can be allocated by multiple threads at the same time.
+ */
+public class CubeStorage {
+    /**
+     * Heap storage that is used when no other storage was set. It allocates a new
+     * byte array for every section, which is garbage collected. Releasing it does nothing.
+     */
+    public static final CubeStorage HEAP = new CubeStorage(null);
+    private final CubeBufferPool pool;
+    private List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+    CubeStorage(CubeBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Gets the name of this storage, for in log messages
+     *
+     * @return name
+     */
+    public String getName() {
+        return (this.pool == null) ? "heap" : this.pool.getName();
+    }
+
+    /**
+     * Gets the total number of bytes of buffers used by this storage
+     *
+     * @return used bytes, always 0 for the {@link #HEAP} storage
+     */
+    public synchronized long getUsedBytes() {
+        long total = 0;
+        if (this.buffers != null) {
+            for (ByteBuffer buffer : this.buffers) {
+                total += buffer.capacity();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Creates a new nibble section, with all values set to 0
+     *
+     * @return nibble section
+     */
+    public NibbleSection createNibbleSection() {
+        return new NibbleSection(this.allocate(NibbleSection.SIZE));
+    }
+
+    /**
+     * Creates a new block face set section, with all faces set to none
+     *
+     * @return block face set section
+     */
+    public BlockFaceSetSection createFaceSection() {
+        return new BlockFaceSetSection(this.allocate(BlockFaceSetSection.SIZE));
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (this.pool != null) {
+            synchronized (this) {
+                if (this.buffers != null) {
+                    ByteBuffer buffer = this.pool.take(size);
+                    this.buffers.add(buffer);
+                    return buffer;
+                }
+            }
+        }
+
+        // Heap storage, or released storage that is not used anymore, but be safe
+        return ByteBuffer.wrap(new byte[size]);
+    }
+
+    /**
+     * Hands all buffers of this storage back to the pool, so they can be reused.
+     * Sections created by this storage may no longer be used afterwards: only call this
+     * once nothing can access them anymore. Storage that is not released, because it may
+     * still be in use, is freed by the garbage collector instead.
+     */
+    public void release() {
+        List<ByteBuffer> toRelease;
+        synchronized (this) {
+            if (this.pool == null || this.buffers == null) {
+                return;
+            }
+            toRelease = this.buffers;
+            this.buffers = null;
+        }
+        this.pool.give(toRelease);
+    }
+
+    /**
+     * Gets the contents of a buffer as a byte array. If the buffer is backed by
+     * an array of the same size, that array is returned. Otherwise a copy is made.
+     *
+     * @param buffer
+     * @return byte array of the buffer contents
+     */
+    static byte[] getBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.capacity()) {
+            return buffer.array();
+        }
+        byte[] data = new byte[buffer.capacity()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buffer.get(i);
+        }
+        return data;
+    }
+}
@@ -1,9 +1,9 @@
 package com.bergerkiller.bukkit.lightcleaner.util;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -11,6 +11,7 @@ import org.bukkit.World;
 
 import com.bergerkiller.bukkit.common.chunk.ForcedChunk;
 import com.bergerkiller.bukkit.common.utils.CommonUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
 
 /**
  * Wraps a {@link ForcedChunk} but delays releasing the chunk
@@ -19,6 +20,9 @@ import com.bergerkiller.bukkit.common.utils.CommonUtil;
  */
 public class DelayClosedForcedChunk extends ForcedChunk {
     public static final int UNLOAD_TICK_DELAY = 100; // 5 seconds
+    public static final int HANDOVER_TICK_DELAY = 6000; // 5 minutes
+    public static final int LOW_MEMORY_TICK_DELAY = 20; // 1 second
+    private static final Cache<ForcedChunk> cache = new Cache<ForcedChunk>();
 
     private DelayClosedForcedChunk() {
         super(null);
@@ -37,25 +41,90 @@ public class DelayClosedForcedChunk extends ForcedChunk {
 
     @Override
     public void close() {
+        close(UNLOAD_TICK_DELAY);
+    }
+
+    /**
+     * Closes this forced chunk, keeping the chunk loaded for the number of ticks specified.
+     * If the chunk is needed again before then, it can be taken over using {@link #takeClosed(World, int, int)}.
+     *
+     * @param tickDelay Number of ticks to keep the chunk loaded
+     */
+    public void close(int tickDelay) {
         ForcedChunk closed = ForcedChunk.none();
         closed.move(this);
         if (!closed.isNone()) {
-            Cache.store(closed);
+            ForcedChunk previous = cache.store(closed.getWorld(), closed.getX(), closed.getZ(), closed,
+                    tickDelay, CommonUtil.getServerTicks());
+            if (previous != null) {
+                previous.close();
+            }
         }
     }
 
+    /**
+     * Takes over a forced chunk that was closed, but is still kept loaded. This way the chunk
+     * does not have to be loaded again. The forced chunk is no longer closed once its delay expires.
+     *
+     * @param world World of the chunk
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return forced chunk keeping the chunk loaded, or null if it is not kept loaded
+     */
+    public static ForcedChunk takeClosed(World world, int cx, int cz) {
+        return cache.take(world, cx, cz);
+    }
+
     /**
      * Performs a routine cleanup, unloading chunks that haven't been used in a while
      */
     public static void cleanup() {
-        Cache.cleanup();
+        // Close the chunks outside of the synchronized block
+        // They unload, which might cause contention due to events
+        for (ForcedChunk chunk : cache.cleanup(CommonUtil.getServerTicks())) {
+            chunk.close();
+        }
+    }
+
+    /**
+     * Gets the number of chunks that are closed, but are still kept loaded
+     *
+     * @return number of chunks held
+     */
+    public static int getHeldCount() {
+        return cache.getHeldCount();
+    }
+
+    /**
+     * Gets the number of chunks that expired, but have not been closed yet.
+     * These are closed a limited number per tick by {@link #cleanup()}.
+     *
+     * @return number of chunks waiting to be closed
+     */
+    public static int getExpiredCount() {
+        return cache.getExpiredCount();
+    }
+
+    /**
+     * Sets whether the server is low on memory. While low on memory, chunks are closed
+     * after {@link #LOW_MEMORY_TICK_DELAY} ticks instead of the delay they were closed with,
+     * and more chunks are closed per tick. Chunks held for that long already expire
+     * right away, including chunks kept loaded to be handed over.
+     *
+     * @param lowMemory Whether the server is low on memory
+     * @return number of chunks that expired early
+     */
+    public static int setLowMemory(boolean lowMemory) {
+        return cache.setLowMemory(lowMemory, CommonUtil.getServerTicks());
     }
 
     /**
      * Instantly closes all forced chunks that were delayed
      */
     public static void clear() {
-        Cache.clear();
+        for (ForcedChunk chunk : cache.clear()) {
+            chunk.close();
+        }
     }
 
     /**
@@ -68,95 +137,189 @@ public class DelayClosedForcedChunk extends ForcedChunk {
     }
 
     /**
-     * Stores previously closed forced chunks, which will be routinely closed by
-     * a background task
+     * Stores previously closed forced chunks until they expire. The chunks are stored per world,
+     * mapped by chunk coordinates. When they expire is tracked using a timing wheel of one bucket
+     * per tick, so that a cleanup only visits the chunks that are due. Chunks stored for longer
+     * than one turn of the wheel are visited once every turn. Expired chunks are handed out a
+     * limited number per tick, so that chunk unloads are spread out.<br>
+     * <br>
+     * The current tick is passed in, so the wheel can be tested without a server.
+     *
+     * @param <T> Type of value stored, closed once it is returned
      */
-    private static class Cache {
-        private static final Map<Key, DelayClosedChunk> _cache = new HashMap<Key, DelayClosedChunk>();
+    static final class Cache<T> {
+        static final int WHEEL_SIZE = 256; // Power of two
+        static final int CLOSE_BUDGET_PER_TICK = 32;
+        private final Map<Object, LongHashMap<DelayClosedChunk<T>>> _chunks = new HashMap<Object, LongHashMap<DelayClosedChunk<T>>>();
+        private final List<List<DelayClosedChunk<T>>> _wheel = new ArrayList<List<DelayClosedChunk<T>>>(WHEEL_SIZE);
+        private final ArrayDeque<DelayClosedChunk<T>> _expired = new ArrayDeque<DelayClosedChunk<T>>();
+        private int _lastCleanupTick = Integer.MIN_VALUE;
+        private int _heldCount = 0;
+        private boolean _lowMemory = false;
 
-        public static void store(ForcedChunk chunk) {
-            DelayClosedChunk previous;
-            synchronized (_cache) {
-                previous = _cache.put(new Key(chunk), new DelayClosedChunk(chunk));
-            }
-            if (previous != null) {
-                previous.chunk.close();
+        public Cache() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                _wheel.add(new ArrayList<DelayClosedChunk<T>>());
             }
         }
 
-        public static void clear() {
-            List<DelayClosedChunk> chunks;
-            synchronized (_cache) {
-                chunks = new ArrayList<DelayClosedChunk>(_cache.values());
-                _cache.clear();
-            }
-            for (DelayClosedChunk chunk : chunks) {
-                chunk.chunk.close();
-            }
+        public synchronized int getHeldCount() {
+            return _heldCount;
         }
 
-        public static void cleanup() {
-            int currentTime = CommonUtil.getServerTicks();
-            List<ForcedChunk> chunksToClose = Collections.emptyList();
-
-            // Collect expired chunks while synchronized
-            synchronized (_cache) {
-                Iterator<DelayClosedChunk> iter = _cache.values().iterator();
-                while (iter.hasNext()) {
-                    DelayClosedChunk chunk = iter.next();
-                    if (currentTime >= chunk.expire) {
-                        iter.remove();
-                        if (chunksToClose.isEmpty()) {
-                            chunksToClose = new ArrayList<ForcedChunk>();
-                        }
-                        chunksToClose.add(chunk.chunk);
+        public synchronized int getExpiredCount() {
+            return _expired.size();
+        }
+
+        public synchronized int setLowMemory(boolean lowMemory, int currentTime) {
+            _lowMemory = lowMemory;
+            if (!lowMemory) {
+                return 0;
+            }
+
+            // Expire all chunks held for long enough that they can safely unload
+            int count = 0;
+            for (LongHashMap<DelayClosedChunk<T>> chunks : _chunks.values()) {
+                for (DelayClosedChunk<T> chunk : chunks.getValues()) {
+                    if (!chunk.expired && (currentTime - chunk.stored) >= LOW_MEMORY_TICK_DELAY) {
+                        chunk.expired = true;
+                        _expired.add(chunk);
+                        count++;
                     }
                 }
             }
+            return count;
+        }
 
-            // Close the chunks outside of the synchronized block
-            // They unload, which might cause contention due to events
-            for (ForcedChunk chunk : chunksToClose) {
-                chunk.close();
+        /**
+         * Stores a value until it expires
+         *
+         * @return previous value stored at the same chunk, which must be closed, or null
+         */
+        public synchronized T store(Object world, int x, int z, T value, int tickDelay, int currentTime) {
+            DelayClosedChunk<T> entry = new DelayClosedChunk<T>(value, world, x, z, currentTime,
+                    _lowMemory ? Math.min(tickDelay, LOW_MEMORY_TICK_DELAY) : tickDelay);
+            LongHashMap<DelayClosedChunk<T>> chunks = _chunks.get(world);
+            if (chunks == null) {
+                chunks = new LongHashMap<DelayClosedChunk<T>>();
+                _chunks.put(world, chunks);
+            }
+            DelayClosedChunk<T> previous = chunks.put(x, z, entry);
+            if (previous != null) {
+                previous.removed = true;
+            } else {
+                _heldCount++;
             }
+            _wheel.get(entry.expire & (WHEEL_SIZE - 1)).add(entry);
+            return (previous == null) ? null : previous.value;
         }
 
-        private static final class Key {
-            public final World world;
-            public final int x;
-            public final int z;
+        public synchronized T take(Object world, int x, int z) {
+            LongHashMap<DelayClosedChunk<T>> chunks = _chunks.get(world);
+            DelayClosedChunk<T> entry = (chunks == null) ? null : chunks.remove(x, z);
+            if (entry == null) {
+                return null;
+            }
+            entry.removed = true;
+            _heldCount--;
+            return entry.value;
+        }
 
-            public Key(ForcedChunk chunk) {
-                this.world = chunk.getWorld();
-                this.x = chunk.getX();
-                this.z = chunk.getZ();
+        /**
+         * Removes all values
+         *
+         * @return values that were stored, which must be closed
+         */
+        public synchronized List<T> clear() {
+            List<T> values = new ArrayList<T>();
+            for (LongHashMap<DelayClosedChunk<T>> worldChunks : _chunks.values()) {
+                for (DelayClosedChunk<T> chunk : worldChunks.getValues()) {
+                    values.add(chunk.value);
+                }
+            }
+            _chunks.clear();
+            _heldCount = 0;
+            for (List<DelayClosedChunk<T>> bucket : _wheel) {
+                bucket.clear();
             }
+            _expired.clear();
+            return values;
+        }
+
+        /**
+         * Removes a limited number of values that expired
+         *
+         * @param currentTime Current server tick
+         * @return values that expired, which must be closed
+         */
+        public synchronized List<T> cleanup(int currentTime) {
+            List<T> valuesToClose = Collections.emptyList();
 
-            @Override
-            public int hashCode() {
-                return this.x * 31 + this.z;
+            // Move the chunks of all buckets passed since the last cleanup to the expired queue
+            // Chunks that expire in a later turn of the wheel are kept in the bucket
+            int ticks = (_lastCleanupTick == Integer.MIN_VALUE) ? WHEEL_SIZE : (currentTime - _lastCleanupTick);
+            int firstTick = currentTime - Math.max(0, Math.min(WHEEL_SIZE - 1, ticks - 1));
+            for (int tick = firstTick; tick <= currentTime; tick++) {
+                List<DelayClosedChunk<T>> bucket = _wheel.get(tick & (WHEEL_SIZE - 1));
+                int kept = 0;
+                for (int i = 0; i < bucket.size(); i++) {
+                    DelayClosedChunk<T> chunk = bucket.get(i);
+                    if (chunk.removed || chunk.expired) {
+                        continue;
+                    } else if (currentTime >= chunk.expire) {
+                        chunk.expired = true;
+                        _expired.add(chunk);
+                    } else {
+                        bucket.set(kept++, chunk);
+                    }
+                }
+                bucket.subList(kept, bucket.size()).clear();
             }
 
-            @Override
-            public boolean equals(Object o) {
-                if (o instanceof Key) {
-                    Key other = (Key) o;
-                    return other.x == this.x &&
-                           other.z == this.z &&
-                           other.world == this.world;
-                } else {
-                    return false;
+            // Hand out a limited number of expired chunks, the rest is closed next time
+            int budget = CLOSE_BUDGET_PER_TICK * Math.max(1, Math.min(WHEEL_SIZE, ticks));
+            if (_lowMemory) {
+                budget *= 4;
+            }
+            while (budget > 0 && !_expired.isEmpty()) {
+                DelayClosedChunk<T> chunk = _expired.poll();
+                if (chunk.removed) {
+                    continue; // Taken over meanwhile
+                }
+                chunk.removed = true;
+                _heldCount--;
+                LongHashMap<DelayClosedChunk<T>> worldChunks = _chunks.get(chunk.world);
+                worldChunks.remove(chunk.x, chunk.z);
+                if (worldChunks.size() == 0) {
+                    _chunks.remove(chunk.world);
                 }
+                if (valuesToClose.isEmpty()) {
+                    valuesToClose = new ArrayList<T>();
+                }
+                valuesToClose.add(chunk.value);
+                budget--;
             }
+            _lastCleanupTick = currentTime;
+            return valuesToClose;
         }
 
-        private static final class DelayClosedChunk {
-            public final ForcedChunk chunk;
+        private static final class DelayClosedChunk<T> {
+            public final T value;
+            public final Object world;
+            public final int x;
+            public final int z;
+            public final int stored;
             public final int expire;
+            public boolean removed = false;
+            public boolean expired = false;
 
-            public DelayClosedChunk(ForcedChunk chunk) {
-                this.chunk = chunk;
-                this.expire = CommonUtil.getServerTicks() + UNLOAD_TICK_DELAY;
+            public DelayClosedChunk(T value, Object world, int x, int z, int stored, int tickDelay) {
+                this.value = value;
+                this.world = world;
+                this.x = x;
+                this.z = z;
+                this.stored = stored;
+                this.expire = stored + tickDelay;
             }
         }
     }
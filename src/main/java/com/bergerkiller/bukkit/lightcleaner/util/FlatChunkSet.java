@@ -0,0 +1,399 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+
+/**
+ * An immutable set of chunk x/z coordinates, stored as an origin chunk plus a bitmap
+ * of the chunks relative to that origin. Batches span at most a 34x34 area of chunks,
+ * so this takes about a single bit per chunk, instead of 8 bytes per coordinate.<br>
+ * <br>
+ * Sparse sets that span a very large area fall back to storing the coordinates
+ * as a sorted long[] array instead, as then the bitmap would be larger.<br>
+ * <br>
+ * Chunks are always iterated sorted by x-coordinate, then z-coordinate.
+ */
+public final class FlatChunkSet {
+    private static final FlatChunkSet EMPTY = new FlatChunkSet(0, 0, 0, 0, null, new long[0], 0);
+    private static final int MODE_COORDINATES = 0;
+    private static final int MODE_BITMAP = 1;
+    private final int originX, originZ;
+    private final int sizeX, sizeZ;
+    private final long[] bitmap;
+    private final long[] coordinates;
+    private final int count;
+
+    private FlatChunkSet(int originX, int originZ, int sizeX, int sizeZ, long[] bitmap, long[] coordinates, int count) {
+        this.originX = originX;
+        this.originZ = originZ;
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.bitmap = bitmap;
+        this.coordinates = coordinates;
+        this.count = count;
+    }
+
+    /**
+     * Gets the number of chunks stored in this set
+     *
+     * @return chunk count
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Gets whether this set contains no chunks at all
+     *
+     * @return True if empty
+     */
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Gets whether the chunks are stored as a bitmap relative to an origin,
+     * rather than as a list of coordinates
+     *
+     * @return True if stored as a bitmap
+     */
+    public boolean isBitmap() {
+        return this.bitmap != null;
+    }
+
+    /**
+     * Gets whether a chunk is contained in this set
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if contained
+     */
+    public boolean contains(int cx, int cz) {
+        if (this.bitmap != null) {
+            int dx = cx - this.originX;
+            int dz = cz - this.originZ;
+            if (dx < 0 || dz < 0 || dx >= this.sizeX || dz >= this.sizeZ) {
+                return false;
+            }
+            int index = dx * this.sizeZ + dz;
+            return (this.bitmap[index >> 6] & (1L << index)) != 0;
+        } else {
+            return Arrays.binarySearch(this.coordinates, toSortKey(cx, cz)) >= 0;
+        }
+    }
+
+    /**
+     * Calls the consumer for every chunk in this set, sorted by x-coordinate, then z-coordinate
+     *
+     * @param consumer
+     */
+    public void forEach(ChunkConsumer consumer) {
+        if (this.bitmap != null) {
+            for (int w = 0; w < this.bitmap.length; w++) {
+                long word = this.bitmap[w];
+                while (word != 0) {
+                    int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    consumer.accept(this.originX + (index / this.sizeZ), this.originZ + (index % this.sizeZ));
+                }
+            }
+        } else {
+            for (long key : this.coordinates) {
+                consumer.accept(fromSortKeyX(key), fromSortKeyZ(key));
+            }
+        }
+    }
+
+    /**
+     * Gets all the chunks in this set as an array of longs, encoded using
+     * {@link MathUtil#longHashToLong(int, int)}. The chunks are sorted by
+     * x-coordinate, then z-coordinate.
+     *
+     * @return chunk coordinates
+     */
+    public long[] toLongArray() {
+        final long[] result = new long[this.count];
+        this.forEach(new ChunkConsumer() {
+            private int index = 0;
+
+            @Override
+            public void accept(int cx, int cz) {
+                result[index++] = MathUtil.longHashToLong(cx, cz);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Writes this chunk set to a stream. Can be read again using {@link #read(DataInputStream)}
+     *
+     * @param stream
+     * @throws IOException
+     */
+    public void write(DataOutputStream stream) throws IOException {
+        if (this.bitmap != null) {
+            stream.writeByte(MODE_BITMAP);
+            stream.writeInt(this.originX);
+            stream.writeInt(this.originZ);
+            stream.writeInt(this.sizeX);
+            stream.writeInt(this.sizeZ);
+            for (long word : this.bitmap) {
+                stream.writeLong(word);
+            }
+        } else {
+            stream.writeByte(MODE_COORDINATES);
+            stream.writeInt(this.coordinates.length);
+            for (long key : this.coordinates) {
+                stream.writeInt(fromSortKeyX(key));
+                stream.writeInt(fromSortKeyZ(key));
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk set previously written using {@link #write(DataOutputStream)}
+     *
+     * @param stream
+     * @return chunk set read
+     * @throws IOException
+     */
+    public static FlatChunkSet read(DataInputStream stream) throws IOException {
+        int mode = stream.readUnsignedByte();
+        if (mode == MODE_BITMAP) {
+            int originX = stream.readInt();
+            int originZ = stream.readInt();
+            int sizeX = stream.readInt();
+            int sizeZ = stream.readInt();
+            long[] bitmap = new long[getBitmapLength(sizeX, sizeZ)];
+            int count = 0;
+            for (int i = 0; i < bitmap.length; i++) {
+                bitmap[i] = stream.readLong();
+                count += Long.bitCount(bitmap[i]);
+            }
+            return new FlatChunkSet(originX, originZ, sizeX, sizeZ, bitmap, null, count);
+        } else if (mode == MODE_COORDINATES) {
+            long[] coordinates = new long[stream.readInt()];
+            for (int i = 0; i < coordinates.length; i++) {
+                int cx = stream.readInt();
+                int cz = stream.readInt();
+                coordinates[i] = toSortKey(cx, cz);
+            }
+            Arrays.sort(coordinates);
+            return new FlatChunkSet(0, 0, 0, 0, null, coordinates, coordinates.length);
+        } else {
+            throw new IOException("Unsupported chunk set storage mode: " + mode);
+        }
+    }
+
+    /**
+     * Skips over a chunk set previously written using {@link #write(DataOutputStream)}
+     *
+     * @param stream
+     * @throws IOException
+     */
+    public static void skip(DataInputStream stream) throws IOException {
+        int mode = stream.readUnsignedByte();
+        if (mode == MODE_BITMAP) {
+            stream.readInt(); // origin x
+            stream.readInt(); // origin z
+            int sizeX = stream.readInt();
+            int sizeZ = stream.readInt();
+            stream.skipBytes(getBitmapLength(sizeX, sizeZ) * (Long.SIZE / Byte.SIZE));
+        } else if (mode == MODE_COORDINATES) {
+            int count = stream.readInt();
+            stream.skipBytes(count * 2 * (Integer.SIZE / Byte.SIZE));
+        } else {
+            throw new IOException("Unsupported chunk set storage mode: " + mode);
+        }
+    }
+
+    /**
+     * Gets an empty chunk set
+     *
+     * @return empty chunk set
+     */
+    public static FlatChunkSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a chunk set from the chunk coordinates contained in a long hash set
+     *
+     * @param chunks Chunk coordinates, encoded using {@link MathUtil#longHashToLong(int, int)}
+     * @return chunk set
+     */
+    public static FlatChunkSet create(LongHashSet chunks) {
+        long[] coordinates = new long[chunks.size()];
+        LongHashSet.LongIterator iter = chunks.longIterator();
+        for (int i = 0; iter.hasNext(); i++) {
+            coordinates[i] = iter.next();
+        }
+        return create(coordinates);
+    }
+
+    /**
+     * Creates a chunk set from an array of chunk coordinates
+     *
+     * @param chunks Chunk coordinates, encoded using {@link MathUtil#longHashToLong(int, int)}
+     * @return chunk set
+     */
+    public static FlatChunkSet create(long[] chunks) {
+        if (chunks.length == 0) {
+            return EMPTY;
+        }
+
+        // Compute the bounding box of all chunks
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (long chunk : chunks) {
+            int cx = MathUtil.longHashMsw(chunk);
+            int cz = MathUtil.longHashLsw(chunk);
+            minX = Math.min(minX, cx);
+            minZ = Math.min(minZ, cz);
+            maxX = Math.max(maxX, cx);
+            maxZ = Math.max(maxZ, cz);
+        }
+
+        // If the bitmap would take up more room than storing the coordinates, store the coordinates
+        // The area is compared by division, as multiplying both sizes can overflow
+        long sizeX = (long) maxX - (long) minX + 1;
+        long sizeZ = (long) maxZ - (long) minZ + 1;
+        if (sizeX > (((long) chunks.length * Long.SIZE) / sizeZ)) {
+            long[] coordinates = new long[chunks.length];
+            for (int i = 0; i < chunks.length; i++) {
+                coordinates[i] = toSortKey(MathUtil.longHashMsw(chunks[i]), MathUtil.longHashLsw(chunks[i]));
+            }
+            Arrays.sort(coordinates);
+
+            // Remove duplicates
+            int count = 0;
+            for (int i = 0; i < coordinates.length; i++) {
+                if (i == 0 || coordinates[i] != coordinates[count - 1]) {
+                    coordinates[count++] = coordinates[i];
+                }
+            }
+            if (count != coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, count);
+            }
+            return new FlatChunkSet(0, 0, 0, 0, null, coordinates, count);
+        }
+
+        // Store as a bitmap
+        long[] bitmap = new long[getBitmapLength((int) sizeX, (int) sizeZ)];
+        int count = 0;
+        for (long chunk : chunks) {
+            int index = (MathUtil.longHashMsw(chunk) - minX) * (int) sizeZ + (MathUtil.longHashLsw(chunk) - minZ);
+            long mask = (1L << index);
+            if ((bitmap[index >> 6] & mask) == 0) {
+                bitmap[index >> 6] |= mask;
+                count++;
+            }
+        }
+        return new FlatChunkSet(minX, minZ, (int) sizeX, (int) sizeZ, bitmap, null, count);
+    }
+
+    /**
+     * Starts building a new chunk set of chunks within a rectangular area. This avoids
+     * having to collect the chunk coordinates into a set first.
+     *
+     * @param minX Minimum chunk x-coordinate (inclusive)
+     * @param minZ Minimum chunk z-coordinate (inclusive)
+     * @param sizeX Number of chunks along the x-axis
+     * @param sizeZ Number of chunks along the z-axis
+     * @return builder
+     */
+    public static Builder builder(int minX, int minZ, int sizeX, int sizeZ) {
+        return new Builder(minX, minZ, sizeX, sizeZ);
+    }
+
+    private static int getBitmapLength(int sizeX, int sizeZ) {
+        return (int) (((long) sizeX * (long) sizeZ + 63) >> 6);
+    }
+
+    // Sorting these keys as signed longs sorts by x-coordinate, then z-coordinate
+    private static long toSortKey(int cx, int cz) {
+        return ((long) cx << 32) | ((cz ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int fromSortKeyX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int fromSortKeyZ(long key) {
+        return ((int) key) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Builds a {@link FlatChunkSet} by setting the bits of the chunks within an area
+     */
+    public static final class Builder {
+        private final int originX, originZ;
+        private final int sizeX, sizeZ;
+        private final long[] bitmap;
+        private int count;
+
+        private Builder(int originX, int originZ, int sizeX, int sizeZ) {
+            this.originX = originX;
+            this.originZ = originZ;
+            this.sizeX = sizeX;
+            this.sizeZ = sizeZ;
+            this.bitmap = new long[getBitmapLength(sizeX, sizeZ)];
+            this.count = 0;
+        }
+
+        /**
+         * Adds a chunk. Chunks outside of the area of this builder are ignored.
+         *
+         * @param cx Chunk x-coordinate
+         * @param cz Chunk z-coordinate
+         * @return this builder
+         */
+        public Builder add(int cx, int cz) {
+            int dx = cx - this.originX;
+            int dz = cz - this.originZ;
+            if (dx >= 0 && dz >= 0 && dx < this.sizeX && dz < this.sizeZ) {
+                int index = dx * this.sizeZ + dz;
+                long mask = (1L << index);
+                if ((this.bitmap[index >> 6] & mask) == 0) {
+                    this.bitmap[index >> 6] |= mask;
+                    this.count++;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Gets the number of chunks added so far
+         *
+         * @return chunk count
+         */
+        public int size() {
+            return this.count;
+        }
+
+        /**
+         * Builds the chunk set. This builder should not be used afterwards.
+         *
+         * @return chunk set
+         */
+        public FlatChunkSet build() {
+            if (this.count == 0) {
+                return EMPTY;
+            }
+            return new FlatChunkSet(this.originX, this.originZ, this.sizeX, this.sizeZ, this.bitmap, null, this.count);
+        }
+    }
+
+    /**
+     * Receives chunk coordinates while iterating a {@link FlatChunkSet}
+     */
+    @FunctionalInterface
+    public static interface ChunkConsumer {
+        void accept(int cx, int cz);
+    }
+}
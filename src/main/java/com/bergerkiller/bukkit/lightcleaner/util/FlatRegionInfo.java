@@ -1,25 +1,30 @@
 package com.bergerkiller.bukkit.lightcleaner.util;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.logging.Level;
 import java.util.stream.IntStream;
 
 import org.bukkit.World;
 
 import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
 
 /**
  * Loads region information, storing whether or not
- * the 32x32 (1024) chunks are available.
+ * the 32x32 (1024) chunks are available. The chunks are stored
+ * as 32 rows of 32 bits, two rows in every 64-bit word.
  */
 public class FlatRegionInfo {
     private static final int[] DEFAULT_RY_0 = new int[] {0}; // Optimization
+    private static final Object WORLDUTIL_LOAD_LOCK = new Object();
     public final World world;
     public final int rx, rz;
     public final int[] ry;
     public final int cx, cz;
-    private final BitSet _chunks;
-    private boolean _loadedFromDisk;
+    private final long[] _chunks;
+    private volatile boolean _loadedFromDisk;
 
     public FlatRegionInfo(World world, int rx, int ry, int rz) {
         this(world, rx, (ry==0) ? DEFAULT_RY_0 : new int[] {ry}, rz);
@@ -32,7 +37,7 @@ public class FlatRegionInfo {
         this.ry = ry;
         this.cx = (rx << 5);
         this.cz = (rz << 5);
-        this._chunks = new BitSet(1024);
+        this._chunks = new long[16];
         this._loadedFromDisk = false;
     }
 
@@ -53,7 +58,9 @@ public class FlatRegionInfo {
         if (cx < 0 || cx >= 32 || cz < 0 || cz >= 32) {
             return;
         }
-        this._chunks.set((cz << 5) | cx);
+        synchronized (this._chunks) {
+            this._chunks[cz >> 1] |= (1L << (((cz & 0x1) << 5) | cx));
+        }
     }
 
     /**
@@ -63,7 +70,13 @@ public class FlatRegionInfo {
      * @return chunk count
      */
     public int getChunkCount() {
-        return this._chunks.cardinality();
+        synchronized (this._chunks) {
+            int count = 0;
+            for (long word : this._chunks) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
     }
 
     /**
@@ -76,22 +89,67 @@ public class FlatRegionInfo {
     }
 
     /**
-     * Loads the region information, now telling what chunks are contained
+     * Loads the region information, now telling what chunks are contained.
+     * This method is thread-safe, and can be called from multiple threads
+     * to load different regions in parallel.
      */
     public void load() {
-        if (!this._loadedFromDisk) {
-            this._loadedFromDisk = true;
-            for (int ry : this.ry) {
-                this._chunks.or(WorldUtil.getWorldSavedRegionChunks3(this.world, this.rx, ry, this.rz));
+        if (this._loadedFromDisk) {
+            return;
+        }
+        synchronized (this._chunks) {
+            if (this._loadedFromDisk) {
+                return;
+            }
+
+            // Vanilla .mca region files store all y-coordinates of a chunk column
+            // Read the chunk location table at the start of the file directly,
+            // or use the indexed chunks if the file was not modified since
+            BitSet presence = null;
+            try {
+                presence = RegionChunkIndex.get(this.world).getChunks(this.rx, this.rz,
+                        RegionFileScanner.getRegionFile(this.world, this.rx, this.rz));
+            } catch (IOException ex) {
+                LightCleaner.plugin.log(Level.WARNING, "Failed to read region file header of region " +
+                        "[" + this.rx + ", " + this.rz + "] of world " + this.world.getName() + ": " + ex.getMessage());
+            }
+            if (presence != null) {
+                this.addChunks(presence);
+            } else {
+                // Other region storage formats, let BKCommonLib figure it out
+                synchronized (WORLDUTIL_LOAD_LOCK) {
+                    for (int ry : this.ry) {
+                        this.addChunks(WorldUtil.getWorldSavedRegionChunks3(this.world, this.rx, ry, this.rz));
+                    }
+                }
             }
+            this._loadedFromDisk = true;
         }
     }
 
+    private void addChunks(BitSet chunks) {
+        long[] words = chunks.toLongArray();
+        for (int i = 0; i < words.length && i < this._chunks.length; i++) {
+            this._chunks[i] |= words[i];
+        }
+    }
+
+    /**
+     * Gets whether the chunks stored in this region have been loaded yet
+     *
+     * @return True if loaded
+     */
+    public boolean isLoaded() {
+        return this._loadedFromDisk;
+    }
+
     /**
      * Ignores loading region chunk information from chunks that aren't loaded
      */
     public void ignoreLoad() {
-        this._loadedFromDisk = true;
+        synchronized (this._chunks) {
+            this._loadedFromDisk = true;
+        }
     }
 
     /**
@@ -126,7 +184,25 @@ public class FlatRegionInfo {
         this.load();
 
         // Check in bitset
-        return this._chunks.get((cz << 5) | cx);
+        synchronized (this._chunks) {
+            return (this._chunks[cz >> 1] & (1L << (((cz & 0x1) << 5) | cx))) != 0L;
+        }
+    }
+
+    /**
+     * Gets a row of 32 chunks along the x-axis of this region. Bit i is set
+     * when the chunk at x-coordinate {@link #cx} + i exists.
+     *
+     * @param dz Chunk z-coordinate relative to the region (0 - 31)
+     * @return row of chunks
+     */
+    public int getChunkRow(int dz) {
+        // Load region file information the first time this is accessed
+        this.load();
+
+        synchronized (this._chunks) {
+            return (int) (this._chunks[dz >> 1] >>> ((dz & 0x1) << 5));
+        }
     }
 
     /**
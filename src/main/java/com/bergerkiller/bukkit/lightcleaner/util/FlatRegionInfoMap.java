@@ -1,5 +1,6 @@
 package com.bergerkiller.bukkit.lightcleaner.util;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Set;
 import java.util.stream.IntStream;
@@ -20,7 +21,7 @@ public class FlatRegionInfoMap {
     private final World _world;
     private final LongHashMap<FlatRegionInfo> _regions;
 
-    private FlatRegionInfoMap(World world, LongHashMap<FlatRegionInfo> regions) {
+    FlatRegionInfoMap(World world, LongHashMap<FlatRegionInfo> regions) {
         this._world = world;
         this._regions = regions;
     }
@@ -65,28 +66,86 @@ public class FlatRegionInfoMap {
      * @return True if the chunk and all its neighbours exist
      */
     public boolean containsChunkAndNeighbours(int cx, int cz) {
-        FlatRegionInfo region = getRegionAtChunk(cx, cz);
-        if (region == null) {
-            return false;
-        }
-        for (int dx = -LightCleaner.WORLD_EDGE; dx <= LightCleaner.WORLD_EDGE; dx++) {
-            for (int dz = -LightCleaner.WORLD_EDGE; dz <= LightCleaner.WORLD_EDGE; dz++) {
-                int mx = cx + dx;
-                int mz = cz + dz;
-                if (region.isInRange(mx, mz)) {
-                    if (!region.containsChunk(mx, mz)) {
-                        return false;
-                    }
-                } else {
-                    if (!this.containsChunk(mx, mz)) {
-                        return false;
-                    }
-                }
+        int width = 2 * LightCleaner.WORLD_EDGE + 1;
+        long mask = (1L << width) - 1L;
+        for (int dz = -LightCleaner.WORLD_EDGE; dz <= LightCleaner.WORLD_EDGE; dz++) {
+            if (this.getChunkRow(cx - LightCleaner.WORLD_EDGE, cz + dz, width) != mask) {
+                return false;
             }
         }
         return true;
     }
 
+    /**
+     * Gets a row of up to 64 chunks along the x-axis that exist. Bit i is set when
+     * chunk [cx + i, cz] exists.
+     *
+     * @param cx Chunk x-coordinate of the first chunk of the row
+     * @param cz Chunk z-coordinate of the row
+     * @param width Number of chunks in the row, at most 64
+     * @return row of chunks
+     */
+    public long getChunkRow(int cx, int cz, int width) {
+        long row = 0L;
+        int rz = cz >> 5;
+        int dz = cz & 0x1F;
+        for (int rx = (cx >> 5); rx <= ((cx + width - 1) >> 5); rx++) {
+            FlatRegionInfo region = this.getRegion(rx, rz);
+            if (region == null) {
+                continue;
+            }
+            long regionRow = region.getChunkRow(dz) & 0xFFFFFFFFL;
+            int shift = (rx << 5) - cx;
+            if (shift >= 0) {
+                row |= (regionRow << shift);
+            } else {
+                row |= (regionRow >>> -shift);
+            }
+        }
+        return (width == 64) ? row : (row & ((1L << width) - 1L));
+    }
+
+    /**
+     * Computes which chunks exist in a rectangular area of chunks, as rows of 64-bit
+     * bitmaps. Bit i of row j is set when chunk [minCx + i, minCz + j] exists. When
+     * neighbours are checked, a chunk is only set when all chunks within
+     * {@link LightCleaner#WORLD_EDGE} around it exist as well. This is computed by
+     * eroding the rows of chunks that exist, using shifts and ANDs of whole rows.
+     *
+     * @param minCx Minimum chunk x-coordinate of the area
+     * @param minCz Minimum chunk z-coordinate of the area
+     * @param sizeX Number of chunks along the x-axis, at most 64 - 2 * WORLD_EDGE
+     * @param sizeZ Number of chunks along the z-axis
+     * @param checkNeighbours Whether to require that all neighbouring chunks exist
+     * @return rows of chunks that exist, one for every z-coordinate
+     */
+    public long[] getChunkRows(int minCx, int minCz, int sizeX, int sizeZ, boolean checkNeighbours) {
+        int edge = checkNeighbours ? LightCleaner.WORLD_EDGE : 0;
+        int width = sizeX + 2 * edge;
+        if (width > 64) {
+            throw new IllegalArgumentException("Area is too wide: " + sizeX);
+        }
+
+        // Read the rows of the area plus the edge, eroding along the x-axis
+        long[] eroded = new long[sizeZ + 2 * edge];
+        for (int i = 0; i < eroded.length; i++) {
+            long row = this.getChunkRow(minCx - edge, minCz - edge + i, width);
+            eroded[i] = ChunkRowBitmap.erodeRow(row, edge);
+        }
+
+        // Erode along the z-axis, and drop the edge
+        long mask = (sizeX == 64) ? -1L : ((1L << sizeX) - 1L);
+        long[] rows = new long[sizeZ];
+        for (int i = 0; i < sizeZ; i++) {
+            long row = eroded[i + edge];
+            for (int d = 1; d <= edge; d++) {
+                row &= eroded[i + edge - d] & eroded[i + edge + d];
+            }
+            rows[i] = (row >>> edge) & mask;
+        }
+        return rows;
+    }
+
     /**
      * Computes all the region Y-coordinates used by a region and its neighbouring 8 regions.
      * The returned array is sorted in increasing order and is distinct (no duplicate values).
@@ -114,6 +173,45 @@ public class FlatRegionInfoMap {
         return region_y_coord_stream.sorted().distinct().toArray();
     }
 
+    /**
+     * Sorts region coordinates in a serpentine order. Regions are sorted row by row
+     * along the z-axis, visiting every other row in reverse. Regions that follow one
+     * another are then next to each other, also when moving on to the next row.
+     * This order is used everywhere batches of regions are scheduled one after another.
+     *
+     * @param regionKeys Region coordinates, encoded using {@link MathUtil#longHashToLong(int, int)}
+     */
+    public static void sortSerpentine(long[] regionKeys) {
+        // Sort by z-coordinate, then x-coordinate, using keys that sort as signed values
+        long[] sorted = new long[regionKeys.length];
+        for (int i = 0; i < regionKeys.length; i++) {
+            int rx = MathUtil.longHashMsw(regionKeys[i]);
+            int rz = MathUtil.longHashLsw(regionKeys[i]);
+            sorted[i] = ((long) rz << 32) | ((rx ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(sorted);
+
+        // Write every other row in reverse. Rows are counted as they occur, so that
+        // rows without regions in between do not break the serpentine.
+        int rowIndex = 0;
+        int rowStart = 0;
+        while (rowStart < sorted.length) {
+            int rz = (int) (sorted[rowStart] >> 32);
+            int rowEnd = rowStart + 1;
+            while (rowEnd < sorted.length && (int) (sorted[rowEnd] >> 32) == rz) {
+                rowEnd++;
+            }
+            boolean reverse = (rowIndex & 1) != 0;
+            for (int i = rowStart; i < rowEnd; i++) {
+                long key = sorted[reverse ? (rowStart + rowEnd - 1 - i) : i];
+                int rx = ((int) key) ^ Integer.MIN_VALUE;
+                regionKeys[i] = MathUtil.longHashToLong(rx, rz);
+            }
+            rowIndex++;
+            rowStart = rowEnd;
+        }
+    }
+
     /**
      * Creates a region information mapping of all existing chunks of a world
      * that are currently loaded. No further loading is required.
@@ -151,7 +249,10 @@ public class FlatRegionInfoMap {
     }
 
     /**
-     * Creates a region information mapping of all existing chunks of a world
+     * Creates a region information mapping of all existing chunks of a world.
+     * The chunks stored in the regions are read lazily, using the {@link RegionChunkIndex}
+     * of the world to avoid reading region files that did not change since they were
+     * last read.
      * 
      * @param world
      * @return region info map
@@ -184,6 +285,9 @@ public class FlatRegionInfoMap {
             }
         }
 
+        // Load the region chunk index now, rather than on the first region load
+        RegionChunkIndex.get(world);
+
         return new FlatRegionInfoMap(world, regions);
     }
 }
@@ -0,0 +1,319 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Records the chunks of a world found to have faulty light while auditing it. For every
+ * faulty chunk the number of blocks whose stored sky and block light differ from the
+ * light computed for them is kept. The faulty chunks can then be cleaned, instead of
+ * cleaning all the chunks that were audited.<br>
+ * <br>
+ * The report of a world is saved to AuditReport/&lt;world&gt;.txt in the plugin folder,
+ * with a line with the chunk coordinates and differing sky and block light per faulty chunk.<br>
+ * <br>
+ * Scanning a world for faulty light only checks some of the blocks, so its results are kept
+ * in a separate report saved to ScanReport/&lt;world&gt;.txt. It does not replace the exact
+ * results of auditing.
+ */
+public class LightAuditReport {
+    private static final Map<String, LightAuditReport> reports = new HashMap<String, LightAuditReport>();
+    private static final Map<String, LightAuditReport> scans = new HashMap<String, LightAuditReport>();
+    private final String worldName;
+    private final boolean isScan;
+    private final LongHashMap<int[]> faulty = new LongHashMap<int[]>();
+    private long numAudited = 0;
+    private long numSkyLightDifferences = 0;
+    private long numBlockLightDifferences = 0;
+    private boolean changed = false;
+
+    private LightAuditReport(String worldName, boolean isScan) {
+        this.worldName = worldName;
+        this.isScan = isScan;
+    }
+
+    /**
+     * Records the result of auditing a chunk
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @param skyLightDifferences Number of blocks whose stored sky light is wrong
+     * @param blockLightDifferences Number of blocks whose stored block light is wrong
+     */
+    public synchronized void record(int cx, int cz, int skyLightDifferences, int blockLightDifferences) {
+        int[] previous = this.faulty.get(cx, cz);
+        if (previous != null) {
+            this.numSkyLightDifferences -= previous[0];
+            this.numBlockLightDifferences -= previous[1];
+            this.faulty.remove(cx, cz);
+        } else {
+            this.numAudited++;
+        }
+        if (skyLightDifferences > 0 || blockLightDifferences > 0) {
+            this.faulty.put(cx, cz, new int[] { skyLightDifferences, blockLightDifferences });
+            this.numSkyLightDifferences += skyLightDifferences;
+            this.numBlockLightDifferences += blockLightDifferences;
+        }
+        this.changed = true;
+    }
+
+    /**
+     * Removes a chunk from the faulty chunks, because its light was cleaned since it was audited
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public synchronized void remove(int cx, int cz) {
+        int[] previous = this.faulty.remove(cx, cz);
+        if (previous != null) {
+            this.numSkyLightDifferences -= previous[0];
+            this.numBlockLightDifferences -= previous[1];
+            this.changed = true;
+        }
+    }
+
+    /**
+     * Gets the number of chunks audited since the report was started
+     *
+     * @return audited chunk count
+     */
+    public synchronized long getAuditedCount() {
+        return this.numAudited;
+    }
+
+    /**
+     * Gets the number of chunks found to have faulty light
+     *
+     * @return faulty chunk count
+     */
+    public synchronized int getFaultyCount() {
+        return this.faulty.size();
+    }
+
+    /**
+     * Gets the coordinates of all chunks found to have faulty light
+     *
+     * @return faulty chunks
+     */
+    public synchronized LongHashSet getFaultyChunks() {
+        LongHashSet chunks = new LongHashSet(this.faulty.size());
+        for (long key : this.faulty.getKeys()) {
+            chunks.add(key);
+        }
+        return chunks;
+    }
+
+    /**
+     * Gets a summary of this report, for in log messages
+     *
+     * @return summary
+     */
+    public synchronized String getSummary() {
+        return this.faulty.size() + " of " + this.numAudited + " chunks of world " + this.worldName +
+                " have faulty light (" + this.numSkyLightDifferences + " sky light and " +
+                this.numBlockLightDifferences + " block light levels differ)";
+    }
+
+    /**
+     * Saves this report to disk, if it was changed since it was loaded or last saved
+     */
+    public void save() {
+        final List<String> lines;
+        synchronized (this) {
+            if (!this.changed) {
+                return;
+            }
+            this.changed = false;
+            lines = new ArrayList<String>(this.faulty.size() + 1);
+            lines.add("# audited=" + this.numAudited);
+            for (long key : this.faulty.getKeys()) {
+                int[] counts = this.faulty.get(key);
+                lines.add(MathUtil.longHashMsw(key) + " " + MathUtil.longHashLsw(key) + " " + counts[0] + " " + counts[1]);
+            }
+        }
+
+        File file = getFile(this.worldName, this.isScan);
+        file.getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            for (String line : lines) {
+                writer.println(line);
+            }
+        } catch (IOException ex) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to save light audit report of world " + this.worldName + ": " + ex.getMessage());
+        }
+    }
+
+    private void load() {
+        File file = getFile(this.worldName, this.isScan);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("# audited=")) {
+                    this.numAudited = Long.parseLong(line.substring(10));
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    String[] parts = line.split(" ");
+                    int[] counts = new int[] { Integer.parseInt(parts[2]), Integer.parseInt(parts[3]) };
+                    this.faulty.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), counts);
+                    this.numSkyLightDifferences += counts[0];
+                    this.numBlockLightDifferences += counts[1];
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to read light audit report of world " + this.worldName + ": " + ex.getMessage());
+            this.faulty.clear();
+            this.numAudited = 0;
+            this.numSkyLightDifferences = 0;
+            this.numBlockLightDifferences = 0;
+        }
+    }
+
+    /**
+     * Gets the light audit report of a world, loading it from disk the first time
+     *
+     * @param world
+     * @return light audit report
+     */
+    public static LightAuditReport get(World world) {
+        return get(reports, world, false);
+    }
+
+    /**
+     * Gets the report of the faulty chunks found by scanning a world, loading it
+     * from disk the first time
+     *
+     * @param world
+     * @return scan report
+     */
+    public static LightAuditReport getScan(World world) {
+        return get(scans, world, true);
+    }
+
+    /**
+     * Starts a new, empty light audit report for a world, discarding the previous one
+     *
+     * @param world
+     * @return new light audit report
+     */
+    public static LightAuditReport start(World world) {
+        return start(reports, world, false);
+    }
+
+    /**
+     * Starts a new, empty scan report for a world, discarding the previous scan.
+     * The light audit report of the world is kept.
+     *
+     * @param world
+     * @return new scan report
+     */
+    public static LightAuditReport startScan(World world) {
+        return start(scans, world, true);
+    }
+
+    /**
+     * Gets the chunks of a world found to have faulty light, by auditing or scanning it
+     *
+     * @param world
+     * @return faulty chunks
+     */
+    public static LongHashSet getAllFaultyChunks(World world) {
+        LongHashSet chunks = get(world).getFaultyChunks();
+        LongHashSet scanned = getScan(world).getFaultyChunks();
+        LongHashSet.LongIterator iter = scanned.longIterator();
+        while (iter.hasNext()) {
+            chunks.add(iter.next());
+        }
+        return chunks;
+    }
+
+    /**
+     * Removes a chunk from the faulty chunks of both the light audit report and scan report
+     * of a world, because its light was cleaned
+     *
+     * @param world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     */
+    public static void removeCleaned(World world, int cx, int cz) {
+        get(world).remove(cx, cz);
+        getScan(world).remove(cx, cz);
+    }
+
+    private static LightAuditReport get(Map<String, LightAuditReport> map, World world, boolean isScan) {
+        synchronized (map) {
+            LightAuditReport report = map.get(world.getName());
+            if (report == null) {
+                report = new LightAuditReport(world.getName(), isScan);
+                report.load();
+                map.put(world.getName(), report);
+            }
+            return report;
+        }
+    }
+
+    private static LightAuditReport start(Map<String, LightAuditReport> map, World world, boolean isScan) {
+        synchronized (map) {
+            LightAuditReport report = new LightAuditReport(world.getName(), isScan);
+            report.changed = true;
+            map.put(world.getName(), report);
+            return report;
+        }
+    }
+
+    /**
+     * Saves the light audit reports of all worlds that were changed, and logs a summary of them
+     */
+    public static void saveAll() {
+        List<LightAuditReport> toSave = new ArrayList<LightAuditReport>();
+        synchronized (reports) {
+            toSave.addAll(reports.values());
+        }
+        synchronized (scans) {
+            toSave.addAll(scans.values());
+        }
+        for (LightAuditReport report : toSave) {
+            synchronized (report) {
+                if (report.changed) {
+                    LightCleaner.plugin.log(Level.INFO, (report.isScan ? "Scan: " : "Audit: ") + report.getSummary());
+                }
+            }
+            report.save();
+        }
+    }
+
+    /**
+     * Saves and then unloads the light audit reports of all worlds
+     */
+    public static void unloadAll() {
+        saveAll();
+        synchronized (reports) {
+            reports.clear();
+        }
+        synchronized (scans) {
+            scans.clear();
+        }
+    }
+
+    private static File getFile(String worldName, boolean isScan) {
+        return LightCleaner.plugin.getDataFile(isScan ? "ScanReport" : "AuditReport", worldName + ".txt");
+    }
+}
@@ -1,5 +1,10 @@
 package com.bergerkiller.bukkit.lightcleaner.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 import com.bergerkiller.bukkit.common.utils.MathUtil;
 
 /**
@@ -13,6 +18,7 @@ public class LightingUtil {
     private static final long MINUTE_MILLIS = 60L * SECOND_MILLIS;
     private static final long HOUR_MILLIS = 60L * MINUTE_MILLIS;
     private static final long DAY_MILLIS = 24L * HOUR_MILLIS;
+    private static final Consumer<ByteBuffer> CLEANER = findCleaner();
 
     public static String formatDuration(long duration) {
         if (duration < MINUTE_MILLIS) {
@@ -27,4 +33,52 @@ public class LightingUtil {
             return num_days + " days " + num_hours + " hours";
         }
     }
+
+    /**
+     * Frees the memory of a direct or memory-mapped buffer right away, if supported
+     * by the JVM. Otherwise, this is left to the garbage collector. The buffer,
+     * and all buffers sliced from it, may no longer be used afterwards.
+     *
+     * @param buffer Direct buffer to free
+     */
+    public static void freeDirectBuffer(ByteBuffer buffer) {
+        CLEANER.accept(buffer);
+    }
+
+    private static Consumer<ByteBuffer> findCleaner() {
+        // Java 9 and later
+        try {
+            Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+            Field theUnsafeField = unsafeType.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            final Object unsafe = theUnsafeField.get(null);
+            final Method invokeCleanerMethod = unsafeType.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleanerMethod.invoke(unsafe, buffer);
+                } catch (Throwable t) {
+                    // Freed by the garbage collector instead
+                }
+            };
+        } catch (Throwable t) {}
+
+        // Java 8
+        try {
+            final Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                try {
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleanMethod.invoke(cleaner);
+                    }
+                } catch (Throwable t) {
+                    // Freed by the garbage collector instead
+                }
+            };
+        } catch (Throwable t) {}
+
+        // Not supported, the garbage collector frees the buffers
+        return buffer -> {};
+    }
 }
@@ -0,0 +1,56 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores a 4-bit value for every block of a 16x16x16 area of blocks.
+ * The data is stored in a buffer of 2048 bytes, which can be on the heap
+ * or allocated by a {@link CubeStorage}.
+ */
+public class NibbleSection {
+    public static final int SIZE = 2048;
+    private final ByteBuffer _data;
+
+    /**
+     * Creates a new nibble section storing its data on the heap
+     */
+    public NibbleSection() {
+        this(ByteBuffer.wrap(new byte[SIZE]));
+    }
+
+    /**
+     * Creates a new nibble section storing its data in a buffer
+     *
+     * @param data Buffer of {@link #SIZE} bytes, all set to 0
+     */
+    public NibbleSection(ByteBuffer data) {
+        this._data = data;
+    }
+
+    public int get(int x, int y, int z) {
+        int index = (y << 8) | (z << 4) | x;
+        int value = _data.get(index >> 1);
+        return ((index & 0x1) == 0) ? (value & 0xF) : ((value >> 4) & 0xF);
+    }
+
+    public void set(int x, int y, int z, int value) {
+        int index = (y << 8) | (z << 4) | x;
+        int i = index >> 1;
+        int old = _data.get(i);
+        if ((index & 0x1) == 0) {
+            _data.put(i, (byte) ((old & 0xF0) | (value & 0xF)));
+        } else {
+            _data.put(i, (byte) ((old & 0x0F) | ((value & 0xF) << 4)));
+        }
+    }
+
+    /**
+     * Gets the raw data of all 4096 blocks. Should not be modified.
+     * If the data is not stored on the heap, a copy is returned.
+     *
+     * @return nibble data
+     */
+    public byte[] getData() {
+        return CubeStorage.getBytes(_data);
+    }
+}
@@ -0,0 +1,220 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.config.CompressedDataReader;
+import com.bergerkiller.bukkit.common.config.CompressedDataWriter;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.LongHashMap;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Persistent index of the chunks stored in the region files of a world.
+ * For every region file the last-modified time and size of the file are stored,
+ * together with the 1024 bits telling which chunks are stored in it. As long as
+ * the region file is not modified, the chunks stored in it do not have to be
+ * read from the region file again.<br>
+ * <br>
+ * The index of a world is saved to RegionIndex/&lt;world&gt;.dat in the plugin folder.
+ */
+public class RegionChunkIndex {
+    private static final int FILE_VERSION = 1;
+    private static final Map<String, RegionChunkIndex> indices = new HashMap<String, RegionChunkIndex>();
+    private final String worldName;
+    private final LongHashMap<Entry> entries = new LongHashMap<Entry>();
+    private boolean changed = false;
+
+    private RegionChunkIndex(String worldName) {
+        this.worldName = worldName;
+    }
+
+    /**
+     * Gets the chunks stored in a region file. If the index stores the chunks of the
+     * file, and the file has not been modified since, the indexed chunks are returned.
+     * Otherwise the region file is read, and the index is updated.
+     * This method is thread-safe.
+     *
+     * @param rx Region x-coordinate
+     * @param rz Region z-coordinate
+     * @param regionFile The .mca region file of the region
+     * @return chunks stored in the region, null if the region file does not exist
+     * @throws IOException If reading the region file fails
+     */
+    public BitSet getChunks(int rx, int rz, File regionFile) throws IOException {
+        // Note: lastModified() returns 0 and length() returns 0 for missing files
+        long lastModified = (regionFile == null) ? 0L : regionFile.lastModified();
+        long size = (regionFile == null) ? 0L : regionFile.length();
+        long key = MathUtil.longHashToLong(rx, rz);
+        if (lastModified == 0L) {
+            synchronized (this) {
+                if (this.entries.remove(key) != null) {
+                    this.changed = true;
+                }
+            }
+            return RegionFileScanner.readChunkPresence(regionFile);
+        }
+
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+                return BitSet.valueOf(entry.chunks);
+            }
+        }
+
+        BitSet chunks = RegionFileScanner.readChunkPresence(regionFile);
+        if (chunks != null) {
+            synchronized (this) {
+                this.entries.put(key, new Entry(lastModified, size, chunks));
+                this.changed = true;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Saves this index to disk, if it was changed since it was loaded or last saved
+     */
+    public void save() {
+        final List<Long> keys;
+        final List<Entry> values;
+        synchronized (this) {
+            if (!this.changed) {
+                return;
+            }
+            this.changed = false;
+            keys = new ArrayList<Long>(this.entries.size());
+            values = new ArrayList<Entry>(this.entries.size());
+            for (long key : this.entries.getKeys()) {
+                keys.add(key);
+                values.add(this.entries.get(key));
+            }
+        }
+
+        File file = getFile(this.worldName);
+        file.getParentFile().mkdirs();
+        if (!new CompressedDataWriter(file) {
+            @Override
+            public void write(DataOutputStream stream) throws IOException {
+                stream.writeByte(FILE_VERSION);
+                stream.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    long key = keys.get(i).longValue();
+                    Entry entry = values.get(i);
+                    stream.writeInt(MathUtil.longHashMsw(key));
+                    stream.writeInt(MathUtil.longHashLsw(key));
+                    stream.writeLong(entry.lastModified);
+                    stream.writeLong(entry.size);
+                    for (int n = 0; n < Entry.WORDS; n++) {
+                        stream.writeLong((n < entry.chunks.length) ? entry.chunks[n] : 0L);
+                    }
+                }
+            }
+        }.write()) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to save region chunk index of world " + this.worldName);
+        }
+    }
+
+    private void load() {
+        File file = getFile(this.worldName);
+        if (!file.exists()) {
+            return;
+        }
+        if (!new CompressedDataReader(file) {
+            @Override
+            public void read(DataInputStream stream) throws IOException {
+                int version = stream.readUnsignedByte();
+                if (version != FILE_VERSION) {
+                    return; // Outdated, rebuild it
+                }
+                int count = stream.readInt();
+                for (int i = 0; i < count; i++) {
+                    int rx = stream.readInt();
+                    int rz = stream.readInt();
+                    long lastModified = stream.readLong();
+                    long size = stream.readLong();
+                    long[] chunks = new long[Entry.WORDS];
+                    for (int n = 0; n < Entry.WORDS; n++) {
+                        chunks[n] = stream.readLong();
+                    }
+                    entries.put(rx, rz, new Entry(lastModified, size, chunks));
+                }
+            }
+        }.read()) {
+            LightCleaner.plugin.log(Level.WARNING, "Failed to read region chunk index of world " + this.worldName + ", rebuilding it");
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Gets the region chunk index of a world, loading it from disk the first time
+     *
+     * @param world
+     * @return region chunk index
+     */
+    public static RegionChunkIndex get(World world) {
+        synchronized (indices) {
+            RegionChunkIndex index = indices.get(world.getName());
+            if (index == null) {
+                index = new RegionChunkIndex(world.getName());
+                index.load();
+                indices.put(world.getName(), index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Saves the region chunk indices of all worlds that were changed
+     */
+    public static void saveAll() {
+        List<RegionChunkIndex> toSave;
+        synchronized (indices) {
+            toSave = new ArrayList<RegionChunkIndex>(indices.values());
+        }
+        for (RegionChunkIndex index : toSave) {
+            index.save();
+        }
+    }
+
+    /**
+     * Saves and then unloads the region chunk indices of all worlds
+     */
+    public static void unloadAll() {
+        saveAll();
+        synchronized (indices) {
+            indices.clear();
+        }
+    }
+
+    private static File getFile(String worldName) {
+        return LightCleaner.plugin.getDataFile("RegionIndex", worldName + ".dat");
+    }
+
+    private static final class Entry {
+        public static final int WORDS = 1024 / Long.SIZE;
+        public final long lastModified;
+        public final long size;
+        public final long[] chunks;
+
+        public Entry(long lastModified, long size, BitSet chunks) {
+            this(lastModified, size, chunks.toLongArray());
+        }
+
+        public Entry(long lastModified, long size, long[] chunks) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.chunks = chunks;
+        }
+    }
+}
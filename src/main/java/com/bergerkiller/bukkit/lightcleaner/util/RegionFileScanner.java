@@ -0,0 +1,198 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+/**
+ * Reads which chunks are stored in region files by reading the 4 KB chunk location
+ * table at the start of every .mca file. Many regions can be scanned in parallel
+ * using a bounded pool of threads.
+ */
+public final class RegionFileScanner {
+    private static final int LOCATION_TABLE_SIZE = 4096;
+    private static final ThreadLocal<ByteBuffer> LOCATION_TABLE_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(LOCATION_TABLE_SIZE));
+    private final ExecutorService executor;
+    private final AtomicInteger numScanned = new AtomicInteger();
+    private final int numTotal;
+    private final long timeStarted;
+    private volatile long timeFinished;
+
+    private RegionFileScanner(Collection<FlatRegionInfo> regions, int numThreads) {
+        this.numTotal = regions.size();
+        this.timeStarted = System.currentTimeMillis();
+        this.timeFinished = (this.numTotal == 0) ? this.timeStarted : 0;
+
+        final AtomicInteger threadIdx = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LightCleaner-RegionScanner-" + threadIdx.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Regions are submitted in the order they are processed, so the scan stays ahead
+        for (final FlatRegionInfo region : regions) {
+            this.executor.execute(() -> {
+                try {
+                    region.load();
+                } catch (Throwable t) {
+                    LightCleaner.plugin.getLogger().log(Level.SEVERE, "Failed to read chunks of region " +
+                            "[" + region.rx + ", " + region.rz + "] of world " + region.world.getName(), t);
+                }
+                if (this.numScanned.incrementAndGet() == this.numTotal) {
+                    this.timeFinished = System.currentTimeMillis();
+                }
+            });
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Gets the number of regions that have been scanned so far
+     *
+     * @return number of scanned regions
+     */
+    public int getScannedCount() {
+        return this.numScanned.get();
+    }
+
+    /**
+     * Gets the total number of regions this scanner is scanning
+     *
+     * @return total number of regions
+     */
+    public int getTotalCount() {
+        return this.numTotal;
+    }
+
+    /**
+     * Gets whether all regions have been scanned
+     *
+     * @return True if done
+     */
+    public boolean isDone() {
+        return this.timeFinished != 0;
+    }
+
+    /**
+     * Gets the average number of regions scanned every second
+     *
+     * @return scanned regions per second
+     */
+    public double getRegionsPerSecond() {
+        long end = this.timeFinished;
+        if (end == 0) {
+            end = System.currentTimeMillis();
+        }
+        long duration = Math.max(1, end - this.timeStarted);
+        return (1000.0 * this.numScanned.get()) / duration;
+    }
+
+    /**
+     * Gets the time in milliseconds it took to scan all regions, or the time
+     * spent so far if not done yet
+     *
+     * @return duration in milliseconds
+     */
+    public long getDuration() {
+        long end = this.timeFinished;
+        if (end == 0) {
+            end = System.currentTimeMillis();
+        }
+        return end - this.timeStarted;
+    }
+
+    /**
+     * Stops scanning regions that have not been scanned yet
+     */
+    public void cancel() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Starts scanning the chunks stored in all the regions specified in parallel.
+     * Regions are scanned in the order of the collection. Regions that are
+     * loaded by other threads in the meantime are skipped.
+     *
+     * @param regions Regions to scan
+     * @return region scanner tracking the progress of the scan
+     */
+    public static RegionFileScanner start(Collection<FlatRegionInfo> regions) {
+        int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        return new RegionFileScanner(regions, numThreads);
+    }
+
+    /**
+     * Gets the .mca region file of a world storing the chunks of a 32x32 column of chunks
+     *
+     * @param world
+     * @param rx Region x-coordinate
+     * @param rz Region z-coordinate
+     * @return region file, null if the region folder of the world could not be found
+     */
+    public static File getRegionFile(World world, int rx, int rz) {
+        File regionFolder = WorldUtil.getWorldRegionFolder(world.getName());
+        if (regionFolder == null) {
+            return null;
+        }
+        return new File(regionFolder, "r." + rx + "." + rz + ".mca");
+    }
+
+    /**
+     * Reads which of the 1024 chunks of a region are stored in a region file,
+     * by reading the chunk location table of the file. Chunks with a non-zero
+     * location are stored. Bit (cz << 5) | cx is set for chunks that exist,
+     * where cx and cz are relative to the region.
+     *
+     * @param regionFile The .mca region file to read
+     * @return chunks stored in the region, null if the region file does not exist
+     * @throws IOException If reading the region file fails
+     */
+    public static BitSet readChunkPresence(File regionFile) throws IOException {
+        if (regionFile == null || !regionFile.isFile()) {
+            return null;
+        }
+
+        BitSet chunks = new BitSet(1024);
+        try (FileChannel channel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ)) {
+            // Empty or truncated region files store no chunks
+            if (channel.size() < LOCATION_TABLE_SIZE) {
+                return chunks;
+            }
+
+            ByteBuffer table = LOCATION_TABLE_BUFFER.get();
+            table.clear();
+            while (table.hasRemaining()) {
+                if (channel.read(table, table.position()) < 0) {
+                    return chunks;
+                }
+            }
+
+            // Every chunk has a 4-byte entry storing the sector offset and sector count
+            for (int i = 0; i < 1024; i++) {
+                if (table.getInt(i << 2) != 0) {
+                    chunks.set(i);
+                }
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,112 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.bergerkiller.bukkit.common.wrappers.LongHashSet;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+import junit.framework.TestCase;
+
+public class LightingAutoCleanTest extends TestCase {
+    private static final int RX = -3;
+    private static final int RZ = 2;
+
+    public void testAddTake() {
+        LightingAutoClean.RegionQueue region = new LightingAutoClean.RegionQueue(RX, RZ, 0);
+        for (int i = 0; i < 1024; i += 7) {
+            assertTrue(region.add(RX * 32 + (i & 0x1F), RZ * 32 + (i >> 5), 20, 0));
+            assertTrue(region.add(RX * 32 + (i & 0x1F), RZ * 32 + (i >> 5), 20, 0));
+        }
+        LongHashSet chunks = region.takeChunks();
+        assertEquals((1024 + 6) / 7, chunks.size());
+        for (int i = 0; i < 1024; i++) {
+            assertEquals((i % 7) == 0, chunks.contains(RX * 32 + (i & 0x1F), RZ * 32 + (i >> 5)));
+        }
+
+        // Chunks added after taking must go to a new region queue
+        assertFalse(region.add(RX * 32, RZ * 32, 20, 0));
+    }
+
+    public void testIsReady() {
+        LightingAutoClean.RegionQueue region = new LightingAutoClean.RegionQueue(RX, RZ, 100);
+        region.add(RX * 32, RZ * 32, 20, 100);
+        region.add(RX * 32 + 1, RZ * 32, 20, 110);
+        assertFalse(region.isReady(129));
+        assertTrue(region.isReady(130));
+
+        // Adding a chunk that is already queued does not delay the region
+        region.add(RX * 32, RZ * 32, 20, 125);
+        assertTrue(region.isReady(130));
+
+        // Enough chunks make the region ready right away
+        region = new LightingAutoClean.RegionQueue(RX, RZ, 0);
+        for (int i = 0; i < LightCleaner.autoCleanRegionCap; i++) {
+            region.add(RX * 32 + (i & 0x1F), RZ * 32 + (i >> 5), 1000, 0);
+            assertEquals(i == (LightCleaner.autoCleanRegionCap - 1), region.isReady(0));
+        }
+        assertTrue(region.isReady(0));
+    }
+
+    public void testConcurrentAddTake() throws InterruptedException {
+        // Queued the same way as the world queue: a new region queue replaces one that is taken
+        final int threadCount = 3;
+        final int rounds = 2000;
+        final AtomicReference<LightingAutoClean.RegionQueue> current =
+                new AtomicReference<LightingAutoClean.RegionQueue>(new LightingAutoClean.RegionQueue(RX, RZ, 0));
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount + 1);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        barrier.await();
+                        for (int i = offset; i < 1024; i += threadCount) {
+                            int cx = RX * 32 + (i & 0x1F);
+                            int cz = RZ * 32 + (i >> 5);
+                            while (!current.get().add(cx, cz, 20, 0));
+                        }
+                        barrier.await();
+                    }
+                } catch (Exception ex) {
+                    failed.set(true);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            for (int round = 0; round < rounds; round++) {
+                // Take the chunks repeatedly while they are added
+                List<LongHashSet> taken = new ArrayList<LongHashSet>();
+                barrier.await();
+                while (barrier.getNumberWaiting() < threadCount) {
+                    taken.add(current.getAndSet(new LightingAutoClean.RegionQueue(RX, RZ, 0)).takeChunks());
+                }
+                barrier.await();
+                taken.add(current.getAndSet(new LightingAutoClean.RegionQueue(RX, RZ, 0)).takeChunks());
+
+                // No chunk may be lost, chunks added twice while being taken are fine
+                LongHashSet all = new LongHashSet();
+                for (LongHashSet chunks : taken) {
+                    LongHashSet.LongIterator iter = chunks.longIterator();
+                    while (iter.hasNext()) {
+                        all.add(iter.next());
+                    }
+                }
+                assertEquals(1024, all.size());
+            }
+        } catch (BrokenBarrierException ex) {
+            fail("Adding threads failed");
+        } finally {
+            barrier.reset();
+        }
+        assertFalse(failed.get());
+    }
+}
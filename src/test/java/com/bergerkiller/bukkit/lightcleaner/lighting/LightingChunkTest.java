@@ -0,0 +1,172 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bergerkiller.bukkit.common.wrappers.IntHashMap;
+import com.bergerkiller.bukkit.lightcleaner.util.BlockFaceSetSection;
+
+import junit.framework.TestCase;
+
+public class LightingChunkTest extends TestCase {
+    private static final int MIN_CY = -4;
+    private static final int MAX_CY = 19;
+    private static final int GAP_CY = 7;
+    private static final int LOOKUP_ROUNDS = 200000;
+    private static final int LINK_ROUNDS = 20000;
+
+    public void testGetCube() {
+        LightingChunk chunk = createChunk(0, 0);
+        for (int cy = MIN_CY - 3; cy <= MAX_CY + 3; cy++) {
+            LightingCube cube = chunk.getCube(cy);
+            if (cy < MIN_CY || cy > MAX_CY || cy == GAP_CY) {
+                assertNull(cube);
+            } else {
+                assertNotNull(cube);
+                assertEquals(cy, cube.cy);
+            }
+        }
+        assertEquals(MAX_CY - MIN_CY, chunk.getSections().size());
+    }
+
+    public void testDetectCubeNeighbors() {
+        LightingChunk[] chunks = createChunks();
+        LightingChunk middle = chunks[4];
+        middle.detectCubeNeighbors();
+        for (LightingCube cube : middle.getSections()) {
+            assertSame(middle.getCube(cube.cy + 1), cube.neighbors.get(0, 1, 0));
+            assertSame(middle.getCube(cube.cy - 1), cube.neighbors.get(0, -1, 0));
+            assertSame(chunks[3].getCube(cube.cy), cube.neighbors.get(-1, 0, 0));
+            assertSame(chunks[5].getCube(cube.cy), cube.neighbors.get(1, 0, 0));
+            assertSame(chunks[1].getCube(cube.cy), cube.neighbors.get(0, 0, -1));
+            assertSame(chunks[7].getCube(cube.cy), cube.neighbors.get(0, 0, 1));
+        }
+    }
+
+    /**
+     * Compares the time taken by cube lookups and neighbour linking with the
+     * IntHashMap keyed by cube y-coordinate that the dense array replaced
+     */
+    public void testLookupTiming() {
+        LightingChunk[] chunks = createChunks();
+        List<IntHashMap<LightingCube>> maps = new ArrayList<IntHashMap<LightingCube>>();
+        for (LightingChunk chunk : chunks) {
+            maps.add(createLegacyMap(chunk));
+        }
+        LightingChunk middle = chunks[4];
+        IntHashMap<LightingCube> middleMap = maps.get(4);
+
+        // Both must find the same cubes
+        for (int cy = MIN_CY - 3; cy <= MAX_CY + 3; cy++) {
+            assertSame(middleMap.get(cy), middle.getCube(cy));
+        }
+
+        // Warm up, then measure
+        long arrayLookup = 0, mapLookup = 0, arrayLink = 0, mapLink = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            arrayLookup = timeArrayLookup(middle);
+            mapLookup = timeLegacyLookup(middleMap);
+            arrayLink = timeArrayLink(middle);
+            mapLink = timeLegacyLink(maps);
+        }
+        System.out.println("getCube: dense array " + (arrayLookup / 1000000) + "ms, IntHashMap " +
+                (mapLookup / 1000000) + "ms for " + ((long) LOOKUP_ROUNDS * (MAX_CY - MIN_CY + 7)) + " lookups");
+        System.out.println("detectCubeNeighbors: dense array " + (arrayLink / 1000000) + "ms, IntHashMap " +
+                (mapLink / 1000000) + "ms for " + LINK_ROUNDS + " chunks");
+    }
+
+    private static long timeArrayLookup(LightingChunk chunk) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int n = 0; n < LOOKUP_ROUNDS; n++) {
+            for (int cy = MIN_CY - 3; cy <= MAX_CY + 3; cy++) {
+                if (chunk.getCube(cy) != null) {
+                    found++;
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        assertEquals((long) LOOKUP_ROUNDS * (MAX_CY - MIN_CY), (long) found);
+        return time;
+    }
+
+    private static long timeLegacyLookup(IntHashMap<LightingCube> map) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int n = 0; n < LOOKUP_ROUNDS; n++) {
+            for (int cy = MIN_CY - 3; cy <= MAX_CY + 3; cy++) {
+                if (map.get(cy) != null) {
+                    found++;
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        assertEquals((long) LOOKUP_ROUNDS * (MAX_CY - MIN_CY), (long) found);
+        return time;
+    }
+
+    private static long timeArrayLink(LightingChunk chunk) {
+        long start = System.nanoTime();
+        for (int n = 0; n < LINK_ROUNDS; n++) {
+            chunk.detectCubeNeighbors();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Links the neighbours of the cubes of a chunk the way it was done before,
+     * looking up every neighbour in the maps of cubes of the chunks
+     */
+    private static long timeLegacyLink(List<IntHashMap<LightingCube>> maps) {
+        IntHashMap<LightingCube> self = maps.get(4);
+        long start = System.nanoTime();
+        for (int n = 0; n < LINK_ROUNDS; n++) {
+            for (LightingCube cube : self.values()) {
+                cube.neighbors.set(0,  1, 0, self.get(cube.cy + 1));
+                cube.neighbors.set(0, -1, 0, self.get(cube.cy - 1));
+                cube.neighbors.set(-1, 0,  0, maps.get(3).get(cube.cy));
+                cube.neighbors.set( 1, 0,  0, maps.get(5).get(cube.cy));
+                cube.neighbors.set( 0, 0, -1, maps.get(1).get(cube.cy));
+                cube.neighbors.set( 0, 0,  1, maps.get(7).get(cube.cy));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static IntHashMap<LightingCube> createLegacyMap(LightingChunk chunk) {
+        IntHashMap<LightingCube> map = new IntHashMap<LightingCube>();
+        for (LightingCube cube : chunk.getSections()) {
+            map.put(cube.cy, cube);
+        }
+        return map;
+    }
+
+    /**
+     * Creates 3x3 chunks, indexed by (dz + 1) * 3 + (dx + 1), which know their neighbours
+     */
+    private static LightingChunk[] createChunks() {
+        LightingChunk[] chunks = new LightingChunk[9];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = createChunk((i % 3) - 1, (i / 3) - 1);
+        }
+        for (LightingChunk chunk : chunks) {
+            chunk.resetAccessible();
+            for (LightingChunk neigh : chunks) {
+                chunk.notifyAccessible(neigh);
+            }
+        }
+        return chunks;
+    }
+
+    private static LightingChunk createChunk(int cx, int cz) {
+        LightingChunk chunk = new LightingChunk(null, cx, cz);
+        List<LightingCube> cubes = new ArrayList<LightingCube>();
+        for (int cy = MIN_CY; cy <= MAX_CY; cy++) {
+            if (cy != GAP_CY) {
+                cubes.add(LightingCube.createBoundary(chunk, cy, null, null, new BlockFaceSetSection()));
+            }
+        }
+        chunk.fillFixedBoundary(cubes, false);
+        return chunk;
+    }
+}
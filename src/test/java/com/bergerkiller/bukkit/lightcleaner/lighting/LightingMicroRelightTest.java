@@ -0,0 +1,133 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.bergerkiller.bukkit.common.internal.CommonBootstrap;
+import com.bergerkiller.bukkit.lightcleaner.util.BlockFaceSetSection;
+import com.bergerkiller.bukkit.lightcleaner.util.NibbleSection;
+import com.bergerkiller.generated.net.minecraft.world.level.chunk.NibbleArrayHandle;
+
+import junit.framework.TestCase;
+
+public class LightingMicroRelightTest extends TestCase {
+    static {
+        CommonBootstrap.initServer();
+    }
+
+    public void testIncrease() {
+        // A light source at the border of the middle chunk that was never spread
+        LightingChunk[] chunks = createChunks();
+        setEmission(chunks, 0, 5, 8, 14);
+        getCube(chunks, 1, 5, 8).opacity.set(1, 5, 8, 3);
+
+        Set<LightingCube> changed = LightingMicroRelight.relightSeams(null, chunks);
+        assertTrue(changed.contains(getCube(chunks, 0, 5, 8)));
+        assertEquals(14, getLight(chunks, 0, 5, 8));
+        assertEquals(11, getLight(chunks, 1, 5, 8));
+        assertEquals(10, getLight(chunks, 2, 5, 8));
+        assertEquals(13, getLight(chunks, 0, 6, 8));
+        assertEquals(12, getLight(chunks, 0, 5, 10));
+        assertEquals(2, getLight(chunks, 10, 5, 8));
+        assertEquals(3, getLight(chunks, 10, 5, 9));
+        assertEquals(1, getLight(chunks, 0, 18, 8));
+        assertEquals(0, getLight(chunks, 0, 19, 8));
+
+        // Chunks at the edge, whose neighbours are not all loaded, keep their light
+        assertEquals(0, getLight(chunks, -1, 5, 8));
+        assertFalse(changed.contains(getCube(chunks, -1, 5, 8)));
+    }
+
+    public void testDecrease() {
+        // Light left behind at the border of the middle chunk without a source
+        LightingChunk[] chunks = createChunks();
+        for (int x = 0; x < 12; x++) {
+            setLight(chunks, x, 5, 8, 12 - x);
+            setLight(chunks, x, 6, 8, 11 - x);
+        }
+
+        Set<LightingCube> changed = LightingMicroRelight.relightSeams(null, chunks);
+        assertTrue(changed.contains(getCube(chunks, 0, 5, 8)));
+        for (int x = 0; x < 12; x++) {
+            assertEquals(0, getLight(chunks, x, 5, 8));
+            assertEquals(0, getLight(chunks, x, 6, 8));
+        }
+    }
+
+    public void testDecreaseKeepsOtherSources() {
+        // Stale light is removed, but the light of a source further in spreads back
+        LightingChunk[] chunks = createChunks();
+        for (int x = 0; x < 12; x++) {
+            setLight(chunks, x, 5, 8, 12 - x);
+        }
+        setEmission(chunks, 8, 5, 8, 6);
+        setLight(chunks, 8, 5, 8, 6);
+        setLight(chunks, 7, 5, 8, 5);
+
+        LightingMicroRelight.relightSeams(null, chunks);
+        assertEquals(0, getLight(chunks, 0, 5, 8));
+        assertEquals(1, getLight(chunks, 3, 5, 8));
+        assertEquals(5, getLight(chunks, 7, 5, 8));
+        assertEquals(6, getLight(chunks, 8, 5, 8));
+        assertEquals(5, getLight(chunks, 9, 5, 8));
+    }
+
+    public void testSpreadFromEdgeChunk() {
+        // Light of a chunk at the edge is kept and spreads into the middle chunk
+        LightingChunk[] chunks = createChunks();
+        setLight(chunks, -1, 5, 8, 9);
+
+        LightingMicroRelight.relightSeams(null, chunks);
+        assertEquals(9, getLight(chunks, -1, 5, 8));
+        assertEquals(8, getLight(chunks, 0, 5, 8));
+        assertEquals(1, getLight(chunks, 7, 5, 8));
+        assertEquals(0, getLight(chunks, 8, 5, 8));
+        assertEquals(0, getLight(chunks, -1, 5, 9));
+    }
+
+    private static LightingCube getCube(LightingChunk[] chunks, int x, int y, int z) {
+        return chunks[((z >> 4) + 1) * 3 + ((x >> 4) + 1)].getCube(y >> 4);
+    }
+
+    private static int getLight(LightingChunk[] chunks, int x, int y, int z) {
+        return getCube(chunks, x, y, z).blockLight.get(x & 0xF, y & 0xF, z & 0xF);
+    }
+
+    private static void setLight(LightingChunk[] chunks, int x, int y, int z, int level) {
+        getCube(chunks, x, y, z).blockLight.set(x & 0xF, y & 0xF, z & 0xF, level);
+    }
+
+    private static void setEmission(LightingChunk[] chunks, int x, int y, int z, int level) {
+        getCube(chunks, x, y, z).emittedLight.set(x & 0xF, y & 0xF, z & 0xF, level);
+    }
+
+    /**
+     * Creates 3x3 dark chunks without sky light, indexed by (cz + 1) * 3 + (cx + 1).
+     * Only the middle chunk has all its neighbours.
+     */
+    private static LightingChunk[] createChunks() {
+        LightingChunk[] chunks = new LightingChunk[9];
+        for (int i = 0; i < chunks.length; i++) {
+            LightingChunk chunk = new LightingChunk(null, (i % 3) - 1, (i / 3) - 1);
+            List<LightingCube> cubes = new ArrayList<LightingCube>();
+            for (int cy = 0; cy <= 1; cy++) {
+                LightingCube cube = LightingCube.createBoundary(chunk, cy, null,
+                        NibbleArrayHandle.createNew(), new BlockFaceSetSection());
+                cube.opacity = new NibbleSection();
+                cube.emittedLight = new NibbleSection();
+                cubes.add(cube);
+            }
+            chunk.fillFixedBoundary(cubes, false);
+            chunk.isFixedBoundary = false;
+            chunks[i] = chunk;
+        }
+        for (LightingChunk chunk : chunks) {
+            chunk.resetAccessible();
+            for (LightingChunk neigh : chunks) {
+                chunk.notifyAccessible(neigh);
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,186 @@
+package com.bergerkiller.bukkit.lightcleaner.lighting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.lightcleaner.util.FlatChunkSet;
+
+import junit.framework.TestCase;
+
+public class PendingLightFileTest extends TestCase {
+    private static final Predicate<String> ALL_LOADABLE = name -> true;
+
+    public void testReadVersion2() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(-1);
+        out.writeByte(2);
+        out.writeInt(3);
+
+        // Batch of a world that is loadable
+        out.writeUTF("world");
+        out.writeInt(2);
+        out.writeInt(-1);
+        out.writeInt(0);
+        out.writeInt(3);
+        out.writeLong(MathUtil.longHashToLong(4, -7));
+        out.writeLong(MathUtil.longHashToLong(-2, 5));
+        out.writeLong(MathUtil.longHashToLong(-2, -7));
+
+        // Batch of a world that is missing
+        out.writeUTF("missing");
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt(2);
+        out.writeLong(MathUtil.longHashToLong(1, 1));
+        out.writeLong(MathUtil.longHashToLong(1, 2));
+
+        // Another batch of a world that is loadable
+        out.writeUTF("world_nether");
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeLong(MathUtil.longHashToLong(-100000, 100000));
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Predicate<String> loadable = name -> !name.equals("missing");
+        int version = PendingLightFile.readVersion(in);
+        assertEquals(2, version);
+        assertTrue(PendingLightFile.isSupported(version));
+        assertEquals(3, in.readInt());
+
+        PendingLightFile.Entry entry = PendingLightFile.readEntry(in, version, loadable);
+        assertEquals(PendingLightFile.TYPE_BATCH, entry.type);
+        assertEquals("world", entry.worldName);
+        assertTrue(entry.isLoaded);
+        assertEquals(2, entry.regionYCoordinates.length);
+        assertEquals(-1, entry.regionYCoordinates[0]);
+        assertEquals(0, entry.regionYCoordinates[1]);
+        assertEquals(3, entry.chunks.size());
+        assertTrue(entry.chunks.contains(4, -7));
+        assertTrue(entry.chunks.contains(-2, 5));
+        assertTrue(entry.chunks.contains(-2, -7));
+
+        entry = PendingLightFile.readEntry(in, version, loadable);
+        assertEquals("missing", entry.worldName);
+        assertFalse(entry.isLoaded);
+        assertNull(entry.chunks);
+
+        entry = PendingLightFile.readEntry(in, version, loadable);
+        assertEquals("world_nether", entry.worldName);
+        assertTrue(entry.isLoaded);
+        assertEquals(0, entry.regionYCoordinates.length);
+        assertEquals(1, entry.chunks.size());
+        assertTrue(entry.chunks.contains(-100000, 100000));
+        assertEquals(-1, in.read());
+    }
+
+    public void testRoundTrip() throws IOException {
+        FlatChunkSet chunks = FlatChunkSet.create(new long[] {
+                MathUtil.longHashToLong(-33, -1),
+                MathUtil.longHashToLong(-32, 0),
+                MathUtil.longHashToLong(31, 31)
+        });
+        long[] regionCursor = new long[] {
+                MathUtil.longHashToLong(-1, -1),
+                MathUtil.longHashToLong(0, -1),
+                MathUtil.longHashToLong(3, 2)
+        };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PendingLightFile.writeHeader(out, 3);
+        PendingLightFile.writeBatch(out, "world", new int[] { -4, 0, 19 }, chunks);
+        PendingLightFile.writeWorld(out, "world_the_end", regionCursor);
+        PendingLightFile.writeWorld(out, "world_nether", null);
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int version = PendingLightFile.readVersion(in);
+        assertEquals(PendingLightFile.VERSION, version);
+        assertEquals(3, in.readInt());
+
+        PendingLightFile.Entry entry = PendingLightFile.readEntry(in, version, ALL_LOADABLE);
+        assertEquals(PendingLightFile.TYPE_BATCH, entry.type);
+        assertEquals("world", entry.worldName);
+        assertEquals(3, entry.regionYCoordinates.length);
+        assertEquals(-4, entry.regionYCoordinates[0]);
+        assertEquals(0, entry.regionYCoordinates[1]);
+        assertEquals(19, entry.regionYCoordinates[2]);
+        long[] expected = chunks.toLongArray();
+        long[] actual = entry.chunks.toLongArray();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+
+        entry = PendingLightFile.readEntry(in, version, ALL_LOADABLE);
+        assertEquals(PendingLightFile.TYPE_WORLD, entry.type);
+        assertEquals("world_the_end", entry.worldName);
+        assertEquals(regionCursor.length, entry.regionCursor.length);
+        for (int i = 0; i < regionCursor.length; i++) {
+            assertEquals(regionCursor[i], entry.regionCursor[i]);
+        }
+
+        entry = PendingLightFile.readEntry(in, version, ALL_LOADABLE);
+        assertEquals(PendingLightFile.TYPE_WORLD, entry.type);
+        assertEquals("world_nether", entry.worldName);
+        assertNull(entry.regionCursor);
+        assertEquals(-1, in.read());
+    }
+
+    public void testSkipMissingWorlds() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PendingLightFile.writeHeader(out, 4);
+        PendingLightFile.writeWorld(out, "missing", new long[] { MathUtil.longHashToLong(5, 5) });
+        PendingLightFile.writeWorld(out, "missing", null);
+        PendingLightFile.writeBatch(out, "missing", new int[] { 1, 2 }, FlatChunkSet.create(new long[] {
+                MathUtil.longHashToLong(-70000, 0),
+                MathUtil.longHashToLong(70000, 0)
+        }));
+        PendingLightFile.writeBatch(out, "world", new int[] { 0 }, FlatChunkSet.create(new long[] {
+                MathUtil.longHashToLong(-1, -1)
+        }));
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Predicate<String> loadable = name -> !name.equals("missing");
+        int version = PendingLightFile.readVersion(in);
+        assertEquals(4, in.readInt());
+        for (int i = 0; i < 3; i++) {
+            PendingLightFile.Entry entry = PendingLightFile.readEntry(in, version, loadable);
+            assertEquals("missing", entry.worldName);
+            assertFalse(entry.isLoaded);
+        }
+        PendingLightFile.Entry entry = PendingLightFile.readEntry(in, version, loadable);
+        assertEquals("world", entry.worldName);
+        assertTrue(entry.isLoaded);
+        assertTrue(entry.chunks.contains(-1, -1));
+        assertEquals(-1, in.read());
+    }
+
+    public void testUnsupportedFormats() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(5);
+        out.close();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(-1, PendingLightFile.readVersion(in));
+        assertFalse(PendingLightFile.isSupported(1));
+        assertFalse(PendingLightFile.isSupported(PendingLightFile.VERSION + 1));
+
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeByte(7);
+        out.writeUTF("world");
+        out.close();
+        in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertNull(PendingLightFile.readEntry(in, PendingLightFile.VERSION, ALL_LOADABLE));
+    }
+}
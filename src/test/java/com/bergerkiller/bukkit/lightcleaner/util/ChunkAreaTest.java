@@ -0,0 +1,92 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ChunkAreaTest extends TestCase {
+
+    public void testCircleContains() {
+        for (int radius = 0; radius <= 12; radius++) {
+            ChunkArea circle = ChunkArea.circle(-3, 5, radius);
+            for (int cx = -20; cx <= 20; cx++) {
+                for (int cz = -20; cz <= 20; cz++) {
+                    long dx = cx + 3;
+                    long dz = cz - 5;
+                    assertEquals(Math.sqrt(dx * dx + dz * dz) <= radius, circle.contains(cx, cz));
+                }
+            }
+        }
+    }
+
+    public void testCircleForEach() {
+        for (int radius = 0; radius <= 12; radius++) {
+            final ChunkArea circle = ChunkArea.circle(7, -9, radius);
+            final Set<Long> chunks = new HashSet<Long>();
+            circle.forEach((cx, cz) -> {
+                assertTrue(circle.contains(cx, cz));
+                assertTrue(chunks.add(key(cx, cz)));
+            });
+            assertEquals(chunks.size(), circle.getChunkCount());
+
+            int count = 0;
+            for (int cx = circle.getMinChunkX() - 1; cx <= circle.getMaxChunkX() + 1; cx++) {
+                for (int cz = circle.getMinChunkZ() - 1; cz <= circle.getMaxChunkZ() + 1; cz++) {
+                    if (circle.contains(cx, cz)) {
+                        assertTrue(chunks.contains(key(cx, cz)));
+                        count++;
+                    }
+                }
+            }
+            assertEquals(chunks.size(), count);
+        }
+    }
+
+    public void testCircleRectangles() {
+        Random random = new Random(4321);
+        for (int n = 0; n < 3000; n++) {
+            int radius = random.nextInt(16);
+            ChunkArea circle = ChunkArea.circle(random.nextInt(20) - 10, random.nextInt(20) - 10, radius);
+            int minCx = random.nextInt(60) - 30;
+            int minCz = random.nextInt(60) - 30;
+            int maxCx = minCx + random.nextInt(20);
+            int maxCz = minCz + random.nextInt(20);
+            assertRectangle(circle, minCx, minCz, maxCx, maxCz);
+        }
+    }
+
+    public void testRectangle() {
+        ChunkArea rectangle = ChunkArea.rectangle(-4, 2, 3, 6);
+        assertEquals(8 * 5, rectangle.getChunkCount());
+        Random random = new Random(8765);
+        for (int n = 0; n < 1000; n++) {
+            int minCx = random.nextInt(20) - 10;
+            int minCz = random.nextInt(20) - 10;
+            int maxCx = minCx + random.nextInt(8);
+            int maxCz = minCz + random.nextInt(8);
+            assertRectangle(rectangle, minCx, minCz, maxCx, maxCz);
+        }
+    }
+
+    private static void assertRectangle(ChunkArea area, int minCx, int minCz, int maxCx, int maxCz) {
+        boolean any = false;
+        boolean all = true;
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cz = minCz; cz <= maxCz; cz++) {
+                if (area.contains(cx, cz)) {
+                    any = true;
+                } else {
+                    all = false;
+                }
+            }
+        }
+        assertEquals(any, area.intersects(minCx, minCz, maxCx, maxCz));
+        assertEquals(all, area.containsAll(minCx, minCz, maxCx, maxCz));
+    }
+
+    private static Long key(int cx, int cz) {
+        return Long.valueOf(((long) cx << 32) | (cz & 0xFFFFFFFFL));
+    }
+}
@@ -0,0 +1,83 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class CleanStateLedgerTest extends TestCase {
+
+    public void testRoundTrip() throws IOException {
+        CleanStateLedger ledger = new CleanStateLedger("world");
+        long before = System.currentTimeMillis() / 1000L * 1000L;
+        ledger.record(0, 0, 0x1234L);
+        ledger.record(-1, -1, -5L);
+        ledger.record(-33, 31, Long.MIN_VALUE);
+        ledger.record(100000, -100000, Long.MAX_VALUE);
+        ledger.record(5, 6, 99L);
+        ledger.remove(5, 6);
+        long after = System.currentTimeMillis();
+
+        CleanStateLedger loaded = roundTrip(ledger);
+        assertEquals(0x1234L, loaded.getFingerprint(0, 0));
+        assertEquals(-5L, loaded.getFingerprint(-1, -1));
+        assertEquals(Long.MIN_VALUE, loaded.getFingerprint(-33, 31));
+        assertEquals(Long.MAX_VALUE, loaded.getFingerprint(100000, -100000));
+        assertEquals(0L, loaded.getFingerprint(5, 6));
+        assertEquals(0L, loaded.getTimeCleaned(5, 6));
+
+        // Chunks next to recorded ones, in the same region or not, stay unknown
+        assertEquals(0L, loaded.getFingerprint(1, 0));
+        assertEquals(0L, loaded.getFingerprint(-1, 0));
+        assertEquals(0L, loaded.getFingerprint(-33, 32));
+        assertEquals(0L, loaded.getTimeCleaned(-2, -1));
+
+        // Times are stored in seconds
+        for (int[] chunk : new int[][] { { 0, 0 }, { -1, -1 }, { -33, 31 }, { 100000, -100000 } }) {
+            long time = loaded.getTimeCleaned(chunk[0], chunk[1]);
+            assertEquals(ledger.getTimeCleaned(chunk[0], chunk[1]), time);
+            assertTrue(time >= before && time <= after);
+        }
+    }
+
+    public void testRoundTripEmpty() throws IOException {
+        CleanStateLedger loaded = roundTrip(new CleanStateLedger("world"));
+        assertEquals(0L, loaded.getFingerprint(0, 0));
+        assertEquals(0L, loaded.getTimeCleaned(0, 0));
+    }
+
+    public void testOtherVersionIgnored() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt(0);
+        for (int n = 0; n < 1024; n++) {
+            out.writeLong(n + 1);
+            out.writeInt(n);
+        }
+        out.close();
+
+        CleanStateLedger ledger = new CleanStateLedger("world");
+        ledger.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(0L, ledger.getFingerprint(0, 0));
+        assertEquals(0L, ledger.getFingerprint(31, 31));
+    }
+
+    private static CleanStateLedger roundTrip(CleanStateLedger ledger) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ledger.write(out);
+        out.close();
+
+        CleanStateLedger loaded = new CleanStateLedger("world");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        loaded.read(in);
+        assertEquals(-1, in.read());
+        return loaded;
+    }
+}
@@ -0,0 +1,87 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import com.bergerkiller.bukkit.common.collections.BlockFaceSet;
+
+import junit.framework.TestCase;
+
+public class CubeBufferPoolTest extends TestCase {
+
+    public void testReuseClearsHeap() {
+        assertReuseClears(new CubeBufferPool(false));
+    }
+
+    public void testReuseClearsOffHeap() {
+        assertReuseClears(new CubeBufferPool(true));
+    }
+
+    public void testUnreleasedNotReused() {
+        CubeBufferPool pool = new CubeBufferPool(false);
+        CubeStorage first = pool.createStorage();
+        NibbleSection kept = first.createNibbleSection();
+        kept.set(3, 4, 5, 9);
+
+        // A storage that is never released, like of an aborted batch, keeps its buffers
+        CubeStorage second = pool.createStorage();
+        NibbleSection other = second.createNibbleSection();
+        assertEquals(0, other.get(3, 4, 5));
+        other.set(3, 4, 5, 2);
+        assertEquals(9, kept.get(3, 4, 5));
+        assertEquals(0L, pool.getReusedBytes());
+        assertEquals(2L * NibbleSection.SIZE, pool.getAllocatedBytes());
+    }
+
+    public void testClearForgetsBuffers() {
+        CubeBufferPool pool = new CubeBufferPool(true);
+        CubeStorage storage = pool.createStorage();
+        storage.createNibbleSection().set(0, 0, 0, 15);
+        storage.release();
+        pool.clear();
+
+        NibbleSection section = pool.createStorage().createNibbleSection();
+        assertEquals(0, section.get(0, 0, 0));
+        assertEquals(0L, pool.getReusedBytes());
+    }
+
+    private static void assertReuseClears(CubeBufferPool pool) {
+        // Fill sections of the first batch with data everywhere
+        CubeStorage first = pool.createStorage();
+        for (int n = 0; n < 3; n++) {
+            NibbleSection nibbles = first.createNibbleSection();
+            BlockFaceSetSection faces = first.createFaceSection();
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        nibbles.set(x, y, z, 15);
+                        faces.set(x, y, z, BlockFaceSet.ALL);
+                    }
+                }
+            }
+        }
+        long usedBytes = first.getUsedBytes();
+        assertEquals(3L * (NibbleSection.SIZE + BlockFaceSetSection.SIZE), usedBytes);
+        assertEquals(usedBytes, pool.getAllocatedBytes());
+        first.release();
+        assertEquals(0L, first.getUsedBytes());
+
+        // The next batch reuses those buffers, which must be all zeroes again
+        CubeStorage second = pool.createStorage();
+        for (int n = 0; n < 3; n++) {
+            NibbleSection nibbles = second.createNibbleSection();
+            BlockFaceSetSection faces = second.createFaceSection();
+            for (byte b : nibbles.getData()) {
+                assertEquals(0, b);
+            }
+            for (byte b : faces.getData()) {
+                assertEquals(0, b);
+            }
+        }
+        assertEquals(usedBytes, pool.getReusedBytes());
+        assertEquals(usedBytes, pool.getAllocatedBytes());
+
+        // Asking for more than was handed back allocates new buffers
+        second.createNibbleSection();
+        assertEquals(usedBytes + NibbleSection.SIZE, pool.getAllocatedBytes());
+        second.release();
+        pool.clear();
+    }
+}
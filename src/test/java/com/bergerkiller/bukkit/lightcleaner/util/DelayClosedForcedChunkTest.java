@@ -0,0 +1,140 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DelayClosedForcedChunkTest extends TestCase {
+    private static final Object WORLD = "world";
+    private static final Object OTHER_WORLD = "world_nether";
+
+    public void testExpiry() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        assertNull(cache.store(WORLD, 1, -1, "a", 100, 1000));
+        assertNull(cache.store(OTHER_WORLD, 1, -1, "b", 150, 1000));
+        assertEquals(2, cache.getHeldCount());
+
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 1000, 1099));
+        assertEquals(Collections.singletonList("a"), cache.cleanup(1100));
+        assertEquals(1, cache.getHeldCount());
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 1101, 1149));
+        assertEquals(Collections.singletonList("b"), cache.cleanup(1150));
+        assertEquals(0, cache.getHeldCount());
+        assertEquals(0, cache.getExpiredCount());
+    }
+
+    public void testSkippedTicks() {
+        // Cleanup does not run every tick when the server lags
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        cache.cleanup(-10);
+        cache.store(WORLD, 0, 0, "a", 5, -10);
+        cache.store(WORLD, 0, 1, "b", 40, -10);
+        assertEquals(Collections.singletonList("a"), cache.cleanup(20));
+        assertEquals(Collections.singletonList("b"), cache.cleanup(20 + DelayClosedForcedChunk.Cache.WHEEL_SIZE * 3));
+    }
+
+    public void testLongDelay() {
+        // Delays longer than a turn of the wheel are kept until their turn comes
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        int delay = DelayClosedForcedChunk.HANDOVER_TICK_DELAY;
+        cache.store(WORLD, 3, 3, "a", delay, 0);
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 0, delay - 1));
+        assertEquals(1, cache.getHeldCount());
+        assertEquals(Collections.singletonList("a"), cache.cleanup(delay));
+    }
+
+    public void testTakeOver() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        cache.store(WORLD, 5, 6, "a", 100, 0);
+        assertNull(cache.take(OTHER_WORLD, 5, 6));
+        assertNull(cache.take(WORLD, 6, 5));
+        assertEquals("a", cache.take(WORLD, 5, 6));
+        assertNull(cache.take(WORLD, 5, 6));
+        assertEquals(0, cache.getHeldCount());
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 0, 400));
+    }
+
+    public void testTakeOverExpired() {
+        // Taken over after it expired, but before it was handed out to be closed
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        int budget = DelayClosedForcedChunk.Cache.CLOSE_BUDGET_PER_TICK;
+        cache.cleanup(0);
+        for (int i = 0; i < 2 * budget; i++) {
+            cache.store(OTHER_WORLD, i, i, "f" + i, 1, 0);
+        }
+        cache.store(WORLD, 5, 6, "c", 1, 0);
+        assertEquals(budget, cache.cleanup(1).size());
+        assertEquals(budget + 1, cache.getExpiredCount());
+        assertEquals("c", cache.take(WORLD, 5, 6));
+        List<String> closed = cleanupUntil(cache, 2, 3);
+        assertEquals(budget, closed.size());
+        assertFalse(closed.contains("c"));
+        assertEquals(0, cache.getHeldCount());
+        assertEquals(0, cache.getExpiredCount());
+    }
+
+    public void testReplace() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        cache.store(WORLD, 0, 0, "a", 10, 0);
+        assertEquals("a", cache.store(WORLD, 0, 0, "b", 200, 5));
+        assertEquals(1, cache.getHeldCount());
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 0, 204));
+        assertEquals(Collections.singletonList("b"), cache.cleanup(205));
+    }
+
+    public void testCloseBudget() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        int budget = DelayClosedForcedChunk.Cache.CLOSE_BUDGET_PER_TICK;
+        cache.cleanup(0);
+        for (int i = 0; i < 3 * budget + 4; i++) {
+            cache.store(WORLD, i, 0, "c" + i, 10, 0);
+        }
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 1, 9));
+        assertEquals(budget, cache.cleanup(10).size());
+        assertEquals(2 * budget + 4, cache.getExpiredCount());
+        assertEquals(budget, cache.cleanup(11).size());
+        assertEquals(budget, cache.cleanup(12).size());
+        assertEquals(4, cache.cleanup(13).size());
+        assertEquals(0, cache.getHeldCount());
+    }
+
+    public void testLowMemory() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        cache.cleanup(0);
+        cache.store(WORLD, 0, 0, "old", DelayClosedForcedChunk.HANDOVER_TICK_DELAY, 0);
+        cache.store(WORLD, 1, 0, "new", DelayClosedForcedChunk.HANDOVER_TICK_DELAY, 15);
+
+        // Only chunks held long enough expire right away
+        assertEquals(1, cache.setLowMemory(true, 25));
+        assertEquals(1, cache.getExpiredCount());
+        assertEquals(Collections.singletonList("old"), cache.cleanup(25));
+
+        // Chunks stored while low on memory are kept shortly
+        cache.store(WORLD, 2, 0, "short", DelayClosedForcedChunk.HANDOVER_TICK_DELAY, 26);
+        assertEquals(0, cache.setLowMemory(false, 26));
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 26, 45));
+        assertEquals(Collections.singletonList("short"), cache.cleanup(46));
+        assertEquals(1, cache.getHeldCount());
+    }
+
+    public void testClear() {
+        DelayClosedForcedChunk.Cache<String> cache = new DelayClosedForcedChunk.Cache<String>();
+        cache.store(WORLD, 0, 0, "a", 10, 0);
+        cache.store(OTHER_WORLD, 0, 0, "b", 10, 0);
+        List<String> cleared = cache.clear();
+        assertEquals(2, cleared.size());
+        assertTrue(cleared.contains("a") && cleared.contains("b"));
+        assertEquals(0, cache.getHeldCount());
+        assertEquals(Collections.emptyList(), cleanupUntil(cache, 0, 20));
+    }
+
+    private static List<String> cleanupUntil(DelayClosedForcedChunk.Cache<String> cache, int fromTick, int toTick) {
+        List<String> closed = new ArrayList<String>();
+        for (int tick = fromTick; tick <= toTick; tick++) {
+            closed.addAll(cache.cleanup(tick));
+        }
+        return closed;
+    }
+}
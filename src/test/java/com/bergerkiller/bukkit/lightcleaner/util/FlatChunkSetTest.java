@@ -0,0 +1,186 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+
+import junit.framework.TestCase;
+
+public class FlatChunkSetTest extends TestCase {
+
+    public void testBitmapRoundTrip() throws IOException {
+        long[] chunks = new long[] {
+                MathUtil.longHashToLong(-3, -2),
+                MathUtil.longHashToLong(-3, 4),
+                MathUtil.longHashToLong(0, 0),
+                MathUtil.longHashToLong(5, -1),
+                MathUtil.longHashToLong(5, 4)
+        };
+        FlatChunkSet set = FlatChunkSet.create(chunks);
+        assertTrue(set.isBitmap());
+        assertSameChunks(chunks, set);
+        assertSameChunks(chunks, writeAndRead(set));
+    }
+
+    public void testCoordinatesRoundTrip() throws IOException {
+        long[] chunks = new long[] {
+                MathUtil.longHashToLong(-100000, 7),
+                MathUtil.longHashToLong(-1, -1),
+                MathUtil.longHashToLong(-1, 0),
+                MathUtil.longHashToLong(0, -1),
+                MathUtil.longHashToLong(100000, -100000),
+                MathUtil.longHashToLong(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                MathUtil.longHashToLong(Integer.MAX_VALUE, Integer.MIN_VALUE)
+        };
+        FlatChunkSet set = FlatChunkSet.create(chunks);
+        assertFalse(set.isBitmap());
+        assertSameChunks(chunks, set);
+        assertSameChunks(chunks, writeAndRead(set));
+        assertFalse(set.contains(1, -1));
+        assertFalse(set.contains(-1, 1));
+    }
+
+    public void testSortOrderNegativeCoordinates() {
+        // Coordinates are sparse enough to be stored as coordinates, not as a bitmap
+        long[] chunks = new long[] {
+                MathUtil.longHashToLong(2000, -2000),
+                MathUtil.longHashToLong(-2000, 2000),
+                MathUtil.longHashToLong(-2000, -2000),
+                MathUtil.longHashToLong(0, 2000),
+                MathUtil.longHashToLong(0, -2000),
+                MathUtil.longHashToLong(-1, 0)
+        };
+        FlatChunkSet set = FlatChunkSet.create(chunks);
+        assertFalse(set.isBitmap());
+
+        final List<int[]> order = new ArrayList<int[]>();
+        set.forEach((cx, cz) -> order.add(new int[] { cx, cz }));
+        assertEquals(6, order.size());
+        int[][] expected = new int[][] {
+                { -2000, -2000 }, { -2000, 2000 }, { -1, 0 },
+                { 0, -2000 }, { 0, 2000 }, { 2000, -2000 }
+        };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], order.get(i)[0]);
+            assertEquals(expected[i][1], order.get(i)[1]);
+        }
+    }
+
+    public void testDuplicates() {
+        long[] chunks = new long[] {
+                MathUtil.longHashToLong(-4, 4),
+                MathUtil.longHashToLong(-4, 4),
+                MathUtil.longHashToLong(100000, 4),
+                MathUtil.longHashToLong(100000, 4)
+        };
+        FlatChunkSet set = FlatChunkSet.create(chunks);
+        assertEquals(2, set.size());
+        assertEquals(1, FlatChunkSet.create(Arrays.copyOf(chunks, 2)).size());
+    }
+
+    public void testRandomRoundTrip() throws IOException {
+        Random random = new Random(8392);
+        for (int n = 0; n < 200; n++) {
+            int spread = 1 + random.nextInt((n % 2) == 0 ? 40 : 100000);
+            int count = 1 + random.nextInt(200);
+            long[] chunks = new long[count];
+            for (int i = 0; i < count; i++) {
+                chunks[i] = MathUtil.longHashToLong(random.nextInt(spread) - spread / 2,
+                                                    random.nextInt(spread) - spread / 2);
+            }
+            FlatChunkSet set = FlatChunkSet.create(chunks);
+            assertSameChunks(chunks, set);
+            assertSameChunks(chunks, writeAndRead(set));
+        }
+    }
+
+    public void testBuilder() {
+        FlatChunkSet.Builder builder = FlatChunkSet.builder(-2, -3, 4, 5);
+        builder.add(-2, -3).add(1, 1).add(1, 1).add(2, 0).add(-3, 0);
+        assertEquals(2, builder.size());
+        FlatChunkSet set = builder.build();
+        assertTrue(set.isBitmap());
+        assertSameChunks(new long[] {
+                MathUtil.longHashToLong(-2, -3),
+                MathUtil.longHashToLong(1, 1)
+        }, set);
+    }
+
+    public void testSkip() throws IOException {
+        FlatChunkSet bitmap = FlatChunkSet.create(new long[] {
+                MathUtil.longHashToLong(-1, -1),
+                MathUtil.longHashToLong(3, 2)
+        });
+        FlatChunkSet coordinates = FlatChunkSet.create(new long[] {
+                MathUtil.longHashToLong(-50000, -1),
+                MathUtil.longHashToLong(50000, 2)
+        });
+        assertTrue(bitmap.isBitmap());
+        assertFalse(coordinates.isBitmap());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        bitmap.write(out);
+        out.writeInt(0x12345678);
+        coordinates.write(out);
+        out.writeInt(0x0BADF00D);
+        FlatChunkSet.empty().write(out);
+        out.writeInt(0x7EADBEEF);
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        FlatChunkSet.skip(in);
+        assertEquals(0x12345678, in.readInt());
+        FlatChunkSet.skip(in);
+        assertEquals(0x0BADF00D, in.readInt());
+        FlatChunkSet.skip(in);
+        assertEquals(0x7EADBEEF, in.readInt());
+        assertEquals(-1, in.read());
+    }
+
+    private static FlatChunkSet writeAndRead(FlatChunkSet set) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        set.write(out);
+        out.close();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        FlatChunkSet result = FlatChunkSet.read(in);
+        assertEquals(-1, in.read());
+        return result;
+    }
+
+    private static void assertSameChunks(long[] expected, FlatChunkSet set) {
+        // Expected order is by x-coordinate, then z-coordinate, without duplicates
+        long[] sorted = new long[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            sorted[i] = ((long) MathUtil.longHashMsw(expected[i]) << 32) |
+                        ((MathUtil.longHashLsw(expected[i]) & 0xFFFFFFFFL) ^ 0x80000000L);
+        }
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[count - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+
+        long[] actual = set.toLongArray();
+        assertEquals(count, set.size());
+        assertEquals(count, actual.length);
+        for (int i = 0; i < count; i++) {
+            int cx = (int) (sorted[i] >> 32);
+            int cz = (int) (sorted[i] ^ 0x80000000L);
+            assertEquals(cx, MathUtil.longHashMsw(actual[i]));
+            assertEquals(cz, MathUtil.longHashLsw(actual[i]));
+            assertTrue(set.contains(cx, cz));
+        }
+    }
+}
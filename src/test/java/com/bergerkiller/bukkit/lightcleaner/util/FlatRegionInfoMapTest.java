@@ -0,0 +1,175 @@
+package com.bergerkiller.bukkit.lightcleaner.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.lightcleaner.LightCleaner;
+
+import junit.framework.TestCase;
+
+public class FlatRegionInfoMapTest extends TestCase {
+
+    public void testErodeRow() {
+        Random random = new Random(1234);
+        for (int n = 0; n < 2000; n++) {
+            long row = random.nextLong() | random.nextLong() | random.nextLong();
+            if ((n % 3) == 0) {
+                row = -1L ^ (1L << random.nextInt(64));
+            }
+            for (int radius = 0; radius <= 3; radius++) {
+                long expected = 0L;
+                for (int i = 0; i < 64; i++) {
+                    boolean set = true;
+                    for (int d = -radius; d <= radius && set; d++) {
+                        int j = i + d;
+                        set = (j >= 0 && j < 64 && (row & (1L << j)) != 0L);
+                    }
+                    if (set) {
+                        expected |= (1L << i);
+                    }
+                }
+                assertEquals(expected, ChunkRowBitmap.erodeRow(row, radius));
+            }
+        }
+    }
+
+    public void testGetChunkRowsRandom() {
+        Random random = new Random(5678);
+        for (int n = 0; n < 20; n++) {
+            // Regions -2 to 1 span chunks -64 to 63, with region boundaries at -32, 0 and 32
+            // Leave some regions out entirely so the area ends at a missing region
+            TestRegionInfoMap map = new TestRegionInfoMap();
+            double density = 0.85 + 0.15 * random.nextDouble();
+            for (int rx = -2; rx <= 1; rx++) {
+                for (int rz = -2; rz <= 1; rz++) {
+                    if (random.nextInt(8) != 0) {
+                        map.addRegion(rx, rz, random, density);
+                    }
+                }
+            }
+
+            for (int k = 0; k < 20; k++) {
+                int sizeX = 1 + random.nextInt(64 - 2 * LightCleaner.WORLD_EDGE);
+                int sizeZ = 1 + random.nextInt(70);
+                int minCx = random.nextInt(140) - 70 - sizeX / 2;
+                int minCz = random.nextInt(140) - 70 - sizeZ / 2;
+                assertRowsMatch(map, minCx, minCz, sizeX, sizeZ, true);
+                assertRowsMatch(map, minCx, minCz, sizeX, sizeZ, false);
+            }
+
+            // The full-width area used when scheduling a region
+            assertRowsMatch(map, -33, -33, 34, 34, true);
+            assertRowsMatch(map, -1, -1, 34, 34, true);
+            assertRowsMatch(map, -64, -64, 64, 64, false);
+        }
+    }
+
+    public void testContainsChunkAndNeighbours() {
+        Random random = new Random(9012);
+        TestRegionInfoMap map = new TestRegionInfoMap();
+        map.addRegion(-1, -1, random, 0.95);
+        map.addRegion(0, -1, random, 0.95);
+        map.addRegion(-1, 0, random, 1.0);
+        for (int cx = -40; cx < 40; cx++) {
+            for (int cz = -40; cz < 40; cz++) {
+                assertEquals(containsChunkAndNeighboursLegacy(map, cx, cz),
+                             map.containsChunkAndNeighbours(cx, cz));
+            }
+        }
+    }
+
+    public void testSortSerpentine() {
+        // Row z=1 is missing, so row z=2 must still be visited in reverse after row z=0
+        long[] keys = new long[] {
+                MathUtil.longHashToLong(1, 2),
+                MathUtil.longHashToLong(-1, 0),
+                MathUtil.longHashToLong(0, -1),
+                MathUtil.longHashToLong(-2, 2),
+                MathUtil.longHashToLong(1, 0),
+                MathUtil.longHashToLong(-1, -1),
+                MathUtil.longHashToLong(0, 2),
+                MathUtil.longHashToLong(0, 0)
+        };
+        FlatRegionInfoMap.sortSerpentine(keys);
+        int[][] expected = new int[][] {
+                { -1, -1 }, { 0, -1 },
+                { 1, 0 }, { 0, 0 }, { -1, 0 },
+                { -2, 2 }, { 0, 2 }, { 1, 2 }
+        };
+        assertEquals(expected.length, keys.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], MathUtil.longHashMsw(keys[i]));
+            assertEquals(expected[i][1], MathUtil.longHashLsw(keys[i]));
+        }
+    }
+
+    private static void assertRowsMatch(FlatRegionInfoMap map, int minCx, int minCz, int sizeX, int sizeZ, boolean checkNeighbours) {
+        long[] rows = map.getChunkRows(minCx, minCz, sizeX, sizeZ, checkNeighbours);
+        assertEquals(sizeZ, rows.length);
+        for (int j = 0; j < sizeZ; j++) {
+            for (int i = 0; i < 64; i++) {
+                boolean actual = (rows[j] & (1L << i)) != 0L;
+                if (i >= sizeX) {
+                    assertFalse(actual);
+                } else if (checkNeighbours) {
+                    assertEquals(containsChunkAndNeighboursLegacy(map, minCx + i, minCz + j), actual);
+                } else {
+                    assertEquals(map.containsChunk(minCx + i, minCz + j), actual);
+                }
+            }
+        }
+    }
+
+    /**
+     * The per-chunk check of all neighbours that getChunkRows replaced
+     */
+    private static boolean containsChunkAndNeighboursLegacy(FlatRegionInfoMap map, int cx, int cz) {
+        for (int dx = -LightCleaner.WORLD_EDGE; dx <= LightCleaner.WORLD_EDGE; dx++) {
+            for (int dz = -LightCleaner.WORLD_EDGE; dz <= LightCleaner.WORLD_EDGE; dz++) {
+                if (!map.containsChunk(cx + dx, cz + dz)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Region info map that stores its regions in a plain hashmap, without a world
+     */
+    private static final class TestRegionInfoMap extends FlatRegionInfoMap {
+        private final HashMap<Long, FlatRegionInfo> regions = new HashMap<Long, FlatRegionInfo>();
+
+        public TestRegionInfoMap() {
+            super(null, null);
+        }
+
+        public void addRegion(int rx, int rz, Random random, double density) {
+            FlatRegionInfo region = new FlatRegionInfo(null, rx, 0, rz);
+            region.ignoreLoad();
+            for (int cx = region.cx; cx < region.cx + 32; cx++) {
+                for (int cz = region.cz; cz < region.cz + 32; cz++) {
+                    if (random.nextDouble() < density) {
+                        region.addChunk(cx, cz);
+                    }
+                }
+            }
+            this.regions.put(key(rx, rz), region);
+        }
+
+        @Override
+        public FlatRegionInfo getRegion(int rx, int rz) {
+            return this.regions.get(key(rx, rz));
+        }
+
+        @Override
+        public FlatRegionInfo getRegionAtChunk(int cx, int cz) {
+            return this.getRegion(cx >> 5, cz >> 5);
+        }
+
+        private static Long key(int rx, int rz) {
+            return Long.valueOf(((long) rx << 32) | (rz & 0xFFFFFFFFL));
+        }
+    }
+}